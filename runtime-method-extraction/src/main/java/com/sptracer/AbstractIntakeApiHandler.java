@@ -14,7 +14,6 @@ import java.net.HttpURLConnection;
 import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 public class AbstractIntakeApiHandler {
     protected final Logger logger = LoggerFactory.getLogger(getClass());
@@ -33,11 +32,30 @@ public class AbstractIntakeApiHandler {
     protected OutputStream os;
     protected int errorCount;
     protected volatile boolean shutDown;
+    /**
+     * If set, requests are buffered in memory and sent by a separate thread, see {@link ReporterConfiguration#isAsyncSending()}
+     */
+    @Nullable
+    protected final AsyncRequestSender asyncSender;
+    @Nullable
+    protected AsyncRequestSender.RequestBuffer requestBuffer;
+    protected final AdaptiveCompression compression;
+    protected final ReporterMetrics reporterMetrics;
+    private long requestStartNanos;
 
-    public AbstractIntakeApiHandler(ReporterConfiguration reporterConfiguration, PayloadSerializer payloadSerializer, TracerServerClient tracerServerClient) {
+    /**
+     * @param asyncSender  sends the requests on separate threads if set, see {@link ReporterConfiguration#isAsyncSending()}
+     * @param dependencies provides the compression and the metrics shared with the rest of the reporter
+     */
+    public AbstractIntakeApiHandler(ReporterConfiguration reporterConfiguration, PayloadSerializer payloadSerializer,
+                                    TracerServerClient tracerServerClient, @Nullable AsyncRequestSender asyncSender,
+                                    ReporterDependencies dependencies) {
         this.reporterConfiguration = reporterConfiguration;
         this.payloadSerializer = payloadSerializer;
         this.tracerServerClient = tracerServerClient;
+        this.asyncSender = asyncSender;
+        this.compression = dependencies.getCompression();
+        this.reporterMetrics = dependencies.getReporterMetrics();
         this.deflater = new Deflater();
     }
 
@@ -57,7 +75,7 @@ public class AbstractIntakeApiHandler {
     }
 
     protected boolean shouldEndRequest() {
-        final long written = deflater.getBytesWritten() + DslJsonSerializer.BUFFER_SIZE;
+        final long written = compression.getCompressedBytes() + DslJsonSerializer.BUFFER_SIZE;
         final boolean endRequest = written >= reporterConfiguration.getApiRequestSize();
         if (endRequest && logger.isDebugEnabled()) {
             logger.debug("Flushing, because request size limit exceeded {}/{}", written, reporterConfiguration.getApiRequestSize());
@@ -70,11 +88,10 @@ public class AbstractIntakeApiHandler {
         payloadSerializer.blockUntilReady();
         final HttpURLConnection connection = tracerServerClient.startRequest(endpoint);
         if (connection != null) {
-            if (isLocalhost(connection)) {
-                deflater.setLevel(Deflater.NO_COMPRESSION);
-            } else {
-                deflater.setLevel(Deflater.BEST_SPEED);
-            }
+            requestStartNanos = System.nanoTime();
+            compression.startRequest(!isLocalhost(connection));
+            boolean connected = false;
+            boolean started = false;
             try {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Starting new request to {}", connection.getURL());
@@ -82,14 +99,16 @@ public class AbstractIntakeApiHandler {
                 connection.setRequestMethod("POST");
                 connection.setDoOutput(true);
                 connection.setChunkedStreamingMode(DslJsonSerializer.BUFFER_SIZE);
-                connection.setRequestProperty("Content-Encoding", "deflate");
-                connection.setRequestProperty("Content-Type", "application/x-ndjson");
+                connection.setRequestProperty("Content-Encoding", compression.getContentEncoding());
+                connection.setRequestProperty("Content-Type", payloadSerializer.getContentType());
                 connection.setUseCaches(false);
-                connection.connect();
-                os = new DeflaterOutputStream(connection.getOutputStream(), deflater);
+                tracerServerClient.connect(connection);
+                connected = true;
+                os = compression.createOutputStream(connection.getOutputStream(), deflater, DslJsonSerializer.BUFFER_SIZE);
                 payloadSerializer.setOutputStream(os);
-                payloadSerializer.appendMetaDataNdJsonToStream();
+                appendMetaData();
                 payloadSerializer.flushToOutputStream();
+                started = true;
             } catch (IOException e) {
                 logger.error("Error trying to connect to APM Server at {}. Some details about SSL configurations corresponding " +
                         "the current connection are logged at INFO level.", connection.getURL());
@@ -114,12 +133,55 @@ public class AbstractIntakeApiHandler {
                     }
                 }
                 throw e;
+            } finally {
+                if (connected && !started) {
+                    tracerServerClient.endRequest(connection, null);
+                }
             }
         }
         return connection;
     }
 
-    private boolean isLocalhost(HttpURLConnection connection) {
+    /**
+     * Starts a request which is serialized and compressed into an in-memory buffer.
+     * Once the request ends, the buffer is sent by the {@link #asyncSender}.
+     *
+     * @return {@code false} if no buffer could be acquired because the {@link #asyncSender} has been closed
+     */
+    protected boolean startBufferedRequest(String endpoint) throws Exception {
+        if (asyncSender == null) {
+            throw new IllegalStateException("Buffered requests require an async sender");
+        }
+        payloadSerializer.blockUntilReady();
+        final AsyncRequestSender.RequestBuffer buffer = asyncSender.acquireBuffer(endpoint, payloadSerializer.getContentType());
+        if (buffer == null) {
+            return false;
+        }
+        compression.startRequest(asyncSender.isCompressionEnabled());
+        buffer.setContentEncoding(compression.getContentEncoding());
+        requestBuffer = buffer;
+        os = compression.createOutputStream(buffer, deflater, DslJsonSerializer.BUFFER_SIZE);
+        payloadSerializer.setOutputStream(os);
+        appendMetaData();
+        payloadSerializer.flushToOutputStream();
+        return true;
+    }
+
+    /**
+     * Appends the metadata line each request starts with
+     */
+    protected void appendMetaData() throws Exception {
+        payloadSerializer.appendMetaDataNdJsonToStream();
+    }
+
+    /**
+     * @return whether a request has been started and not been ended yet
+     */
+    protected boolean isRequestInProgress() {
+        return connection != null || requestBuffer != null;
+    }
+
+    static boolean isLocalhost(HttpURLConnection connection) {
         switch (connection.getURL().getHost()) {
             case "localhost":
             case "127.0.0.1":
@@ -132,17 +194,20 @@ public class AbstractIntakeApiHandler {
     }
 
     public void endRequest() {
-        if (connection != null) {
+        if (requestBuffer != null) {
+            endBufferedRequest(requestBuffer);
+        } else if (connection != null) {
+            Integer responseCode = null;
             try {
                 payloadSerializer.fullFlush();
                 if (os != null) {
                     os.close();
                 }
                 if (logger.isDebugEnabled()) {
-                    logger.debug("Flushing {} uncompressed {} compressed bytes", deflater.getBytesRead(), deflater.getBytesWritten());
+                    logger.debug("Flushing {} uncompressed {} compressed bytes", compression.getUncompressedBytes(), compression.getCompressedBytes());
                 }
                 InputStream inputStream = connection.getInputStream();
-                final int responseCode = connection.getResponseCode();
+                responseCode = connection.getResponseCode();
                 if (responseCode >= 400) {
                     onRequestError(responseCode, inputStream, null);
                 } else {
@@ -150,20 +215,67 @@ public class AbstractIntakeApiHandler {
                 }
             } catch (IOException e) {
                 try {
-                    onRequestError(connection.getResponseCode(), connection.getErrorStream(), e);
+                    responseCode = connection.getResponseCode();
+                    onRequestError(responseCode, connection.getErrorStream(), e);
                 } catch (IOException e1) {
                     onRequestError(-1, connection.getErrorStream(), e);
                 }
             } finally {
                 HttpUtils.consumeAndClose(connection);
+                tracerServerClient.endRequest(connection, responseCode);
+                reporterMetrics.onRequestEnd(System.nanoTime() - requestStartNanos, compression.getCompressedBytes());
                 connection = null;
                 os = null;
+                compression.endRequest();
                 deflater.reset();
                 currentlyTransmitting = 0;
             }
         }
     }
 
+    private void endBufferedRequest(AsyncRequestSender.RequestBuffer buffer) {
+        try {
+            payloadSerializer.fullFlush();
+            if (os != null) {
+                // finishes the compressed stream, closing the buffer itself has no effect
+                os.close();
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Buffered {} uncompressed {} compressed bytes", compression.getUncompressedBytes(), compression.getCompressedBytes());
+            }
+            //noinspection ConstantConditions
+            asyncSender.send(buffer, currentlyTransmitting);
+        } catch (IOException e) {
+            // not expected as nothing but in-memory buffers are involved
+            logger.error("Failed to buffer request: {}", e.getMessage());
+            dropped += currentlyTransmitting;
+            //noinspection ConstantConditions
+            asyncSender.release(buffer);
+        } finally {
+            requestBuffer = null;
+            os = null;
+            compression.endRequest();
+            deflater.reset();
+            currentlyTransmitting = 0;
+        }
+    }
+
+    /**
+     * Discards the buffered request in progress, for example because it may contain a partially serialized event
+     */
+    protected void discardBufferedRequest() {
+        if (requestBuffer != null && asyncSender != null) {
+            dropped += currentlyTransmitting;
+            payloadSerializer.getJsonWriter().reset();
+            asyncSender.release(requestBuffer);
+            requestBuffer = null;
+            os = null;
+            compression.endRequest();
+            deflater.reset();
+            currentlyTransmitting = 0;
+        }
+    }
+
     protected void onRequestError(Integer responseCode, InputStream inputStream, @Nullable IOException e) {
         // TODO read accepted, dropped and invalid
         onConnectionError(responseCode, currentlyTransmitting, 0);
@@ -197,22 +309,32 @@ public class AbstractIntakeApiHandler {
         final long backoffTimeMillis = TimeUnit.SECONDS.toMillis(backoffTimeSeconds);
         if (backoffTimeMillis > 0) {
             // back off because there are connection issues with the apm server
-            try {
-                synchronized (WAIT_LOCK) {
-                    WAIT_LOCK.wait(backoffTimeMillis + getRandomJitter(backoffTimeMillis));
-                }
-            } catch (InterruptedException e) {
-                logger.info("APM Agent ReportingEventHandler had been interrupted", e);
+            backoff(backoffTimeMillis + getRandomJitter(backoffTimeMillis));
+        }
+    }
+
+    /**
+     * Blocks the reporter thread for the provided time, or until {@link #close()} is called
+     */
+    protected void backoff(long backoffTimeMillis) {
+        final long start = System.currentTimeMillis();
+        try {
+            synchronized (WAIT_LOCK) {
+                WAIT_LOCK.wait(backoffTimeMillis);
             }
+        } catch (InterruptedException e) {
+            logger.info("APM Agent ReportingEventHandler had been interrupted", e);
+        } finally {
+            reporterMetrics.onBackoff(System.currentTimeMillis() - start);
         }
     }
 
     public long getReported() {
-        return reported;
+        return asyncSender != null ? reported + asyncSender.getReported() : reported;
     }
 
     public long getDropped() {
-        return dropped;
+        return asyncSender != null ? dropped + asyncSender.getDropped() : dropped;
     }
 
     public int getErrorCount() {
@@ -224,6 +346,9 @@ public class AbstractIntakeApiHandler {
         synchronized (WAIT_LOCK) {
             WAIT_LOCK.notifyAll();
         }
+        if (asyncSender != null) {
+            asyncSender.close();
+        }
     }
 
     protected void onRequestSuccess() {
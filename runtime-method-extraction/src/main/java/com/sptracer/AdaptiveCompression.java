@@ -0,0 +1,307 @@
+package com.sptracer;
+
+import com.sptracer.metrics.DoubleSupplier;
+import com.sptracer.metrics.Labels;
+import com.sptracer.metrics.MetricRegistry;
+import com.sptracer.util.LzOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Chooses how the requests to the APM server are compressed and measures the cost and the effect of the compression.
+ * <p>
+ * By default, requests are compressed with {@link Deflater#BEST_SPEED}, unless they are sent to localhost.
+ * If {@link ReporterConfiguration#isAdaptiveCompression()} is enabled, the compression is adjusted after each request,
+ * one step at a time:
+ * </p>
+ * <ul>
+ *     <li>
+ *         If the share of the request duration spent compressing exceeds the {@link ReporterConfiguration#getCompressionCpuBudget()},
+ *         a faster step is chosen, down to the {@link LzOutputStream LZ codec} (if enabled) and ultimately to no compression.
+ *     </li>
+ *     <li>
+ *         If less than half of the CPU budget is used and the compressed bytes per second exceed the
+ *         {@link ReporterConfiguration#getCompressionBandwidthTarget()}, a stronger deflate level is chosen, up to {@link #MAX_DEFLATE_LEVEL}.
+ *         Below {@link Deflater#BEST_SPEED}, a stronger step is chosen regardless of the bandwidth.
+ *     </li>
+ *     <li>
+ *         If less than half of the bandwidth target is used, the deflate level is lowered again, down to {@link Deflater#BEST_SPEED}.
+ *     </li>
+ * </ul>
+ * <p>
+ * The time spent compressing is the time spent writing to the compressing stream,
+ * minus the time the compressing stream spent writing to the underlying stream.
+ * That way, the latency of the network is not mistaken for compression time.
+ * </p>
+ * <p>
+ * Requests are started and ended by the reporter thread, only the totals for the metrics are read by other threads.
+ * </p>
+ */
+public class AdaptiveCompression {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveCompression.class);
+    static final int MAX_DEFLATE_LEVEL = 6;
+    /*
+     * The steps are ordered from the cheapest to the most effective,
+     * starting with STEP_BEST_SPEED, the step is the deflate level plus one
+     */
+    private static final int STEP_STORED = 0;
+    private static final int STEP_LZ = 1;
+    private static final int STEP_BEST_SPEED = Deflater.BEST_SPEED + 1;
+    private static final int MAX_STEP = MAX_DEFLATE_LEVEL + 1;
+
+    private final ReporterConfiguration reporterConfiguration;
+    private int step = STEP_BEST_SPEED;
+    private int requestStep = STEP_BEST_SPEED;
+    private boolean requestCompressed;
+    private long requestStartNanos;
+    @Nullable
+    private MeteredOutputStream uncompressed;
+    @Nullable
+    private MeteredOutputStream compressed;
+    private volatile long totalUncompressedBytes;
+    private volatile long totalCompressedBytes;
+    private volatile long totalCompressionNanos;
+    private volatile double lastRatio = Double.NaN;
+
+    public AdaptiveCompression(ReporterConfiguration reporterConfiguration) {
+        this.reporterConfiguration = reporterConfiguration;
+    }
+
+    /**
+     * Chooses the compression of the next request, which has to be created via {@link #createOutputStream}
+     *
+     * @param compress {@code false} if the request should not be compressed, for example because it's sent to localhost
+     */
+    void startRequest(boolean compress) {
+        requestCompressed = compress;
+        requestStep = compress ? step : STEP_STORED;
+        requestStartNanos = System.nanoTime();
+        uncompressed = null;
+        compressed = null;
+    }
+
+    /**
+     * @return the value of the {@code Content-Encoding} header of the current request
+     */
+    String getContentEncoding() {
+        return requestStep == STEP_LZ ? LzOutputStream.CONTENT_ENCODING : "deflate";
+    }
+
+    /**
+     * @param target     the stream the compressed request body is written to
+     * @param deflater   used unless the request is compressed with the LZ codec, has to be reset when the request ends
+     * @param bufferSize the size of the buffer of the compressing stream
+     * @return the stream the uncompressed request body is written to
+     */
+    OutputStream createOutputStream(OutputStream target, Deflater deflater, int bufferSize) {
+        compressed = new MeteredOutputStream(target);
+        OutputStream compressing;
+        if (requestStep == STEP_LZ) {
+            compressing = new LzOutputStream(compressed);
+        } else {
+            deflater.setLevel(requestStep == STEP_STORED ? Deflater.NO_COMPRESSION : requestStep - 1);
+            compressing = new DeflaterOutputStream(compressed, deflater, bufferSize);
+        }
+        uncompressed = new MeteredOutputStream(compressing);
+        return uncompressed;
+    }
+
+    /**
+     * @return the number of uncompressed bytes which have been written in the current request
+     */
+    long getUncompressedBytes() {
+        return uncompressed != null ? uncompressed.bytes : 0;
+    }
+
+    /**
+     * @return the number of compressed bytes which have been written to the target of the current request
+     */
+    long getCompressedBytes() {
+        return compressed != null ? compressed.bytes : 0;
+    }
+
+    /**
+     * Accounts for the compression of the current request and adjusts the compression of the next requests.
+     * Must be called after the stream returned by {@link #createOutputStream} has been closed.
+     */
+    void endRequest() {
+        final MeteredOutputStream uncompressed = this.uncompressed;
+        final MeteredOutputStream compressed = this.compressed;
+        if (uncompressed == null || compressed == null) {
+            return;
+        }
+        this.uncompressed = null;
+        this.compressed = null;
+        final long durationNanos = System.nanoTime() - requestStartNanos;
+        final long compressionNanos = Math.max(0, uncompressed.nanos - compressed.nanos);
+        totalUncompressedBytes += uncompressed.bytes;
+        totalCompressedBytes += compressed.bytes;
+        totalCompressionNanos += compressionNanos;
+        if (compressed.bytes > 0) {
+            lastRatio = (double) uncompressed.bytes / compressed.bytes;
+        }
+        if (requestCompressed && reporterConfiguration.isAdaptiveCompression() && durationNanos > 0 && uncompressed.bytes > 0) {
+            adjust(uncompressed.bytes, compressed.bytes, compressionNanos, durationNanos);
+        }
+    }
+
+    private void adjust(long uncompressedBytes, long compressedBytes, long compressionNanos, long durationNanos) {
+        final double cpuPercent = compressionNanos * 100.0 / durationNanos;
+        final double bytesPerSecond = compressedBytes * (double) TimeUnit.SECONDS.toNanos(1) / durationNanos;
+        final int cpuBudget = reporterConfiguration.getCompressionCpuBudget();
+        final long bandwidthTarget = reporterConfiguration.getCompressionBandwidthTarget();
+        final int previousStep = step;
+        if (cpuPercent > cpuBudget) {
+            step = fasterStep(step);
+        } else if (cpuPercent * 2 < cpuBudget && (step < STEP_BEST_SPEED || bandwidthTarget > 0 && bytesPerSecond > bandwidthTarget)) {
+            step = strongerStep(step);
+        } else if (bandwidthTarget > 0 && bytesPerSecond * 2 < bandwidthTarget && step > STEP_BEST_SPEED) {
+            step = fasterStep(step);
+        }
+        if (step != previousStep && logger.isDebugEnabled()) {
+            logger.debug("Changing compression from {} to {}: {}% CPU, ratio {}, {} bytes/s compressed, {} bytes/s throughput",
+                describe(previousStep), describe(step), (int) cpuPercent, (double) uncompressedBytes / Math.max(1, compressedBytes),
+                (long) bytesPerSecond, compressionNanos > 0 ? uncompressedBytes * TimeUnit.SECONDS.toNanos(1) / compressionNanos : -1);
+        }
+    }
+
+    private int fasterStep(int step) {
+        int faster = step - 1;
+        if (faster == STEP_LZ && !reporterConfiguration.isLzCompression()) {
+            faster = STEP_STORED;
+        }
+        return Math.max(faster, STEP_STORED);
+    }
+
+    private int strongerStep(int step) {
+        int stronger = step + 1;
+        if (stronger == STEP_LZ && !reporterConfiguration.isLzCompression()) {
+            stronger = STEP_BEST_SPEED;
+        }
+        return Math.min(stronger, MAX_STEP);
+    }
+
+    private static String describe(int step) {
+        switch (step) {
+            case STEP_STORED:
+                return "no compression";
+            case STEP_LZ:
+                return "LZ";
+            default:
+                return "deflate level " + (step - 1);
+        }
+    }
+
+    public long getTotalUncompressedBytes() {
+        return totalUncompressedBytes;
+    }
+
+    public long getTotalCompressedBytes() {
+        return totalCompressedBytes;
+    }
+
+    public long getTotalCompressionMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalCompressionNanos);
+    }
+
+    /**
+     * @return the ratio of uncompressed to compressed bytes of the last request, or {@link Double#NaN} if there has been none
+     */
+    public double getLastRatio() {
+        return lastRatio;
+    }
+
+    /**
+     * Registers gauges for the compression ratio of the last request, the total time spent compressing
+     * and the total number of uncompressed and compressed bytes
+     */
+    public void registerMetrics(MetricRegistry metricRegistry) {
+        metricRegistry.add("agent.reporter.compression.ratio", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getLastRatio();
+            }
+        });
+        metricRegistry.add("agent.reporter.compression.time_ms", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getTotalCompressionMillis();
+            }
+        });
+        metricRegistry.add("agent.reporter.compression.bytes", Labels.Mutable.of("stage", "uncompressed"), new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getTotalUncompressedBytes();
+            }
+        });
+        metricRegistry.add("agent.reporter.compression.bytes", Labels.Mutable.of("stage", "compressed"), new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getTotalCompressedBytes();
+            }
+        });
+    }
+
+    /**
+     * Counts the bytes written to the underlying stream and the time spent doing so
+     */
+    private static class MeteredOutputStream extends FilterOutputStream {
+        private long bytes;
+        private long nanos;
+
+        private MeteredOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                out.write(b);
+                bytes++;
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                out.write(b, off, len);
+                bytes += len;
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            final long start = System.nanoTime();
+            try {
+                out.flush();
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            final long start = System.nanoTime();
+            try {
+                out.close();
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.sptracer;
+
+import com.sptracer.util.ExecutorUtils;
+import com.sptracer.util.HttpUtils;
+import com.sptracer.util.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the requests to the APM server on a dedicated thread, so that the reporter thread does not have to wait for the network.
+ * <p>
+ * The reporter thread serializes and compresses the events of a request into a {@link RequestBuffer}.
+ * When the request ends, the buffer is handed over to the sender thread and the reporter thread continues with the next free buffer.
+ * The number of buffers is fixed, which bounds the memory of the requests in flight to roughly
+ * {@link ReporterConfiguration#getAsyncSendingBuffers()} times {@link ReporterConfiguration#getApiRequestSize()}.
+ * If all buffers are in flight, the reporter thread waits for a buffer to become free,
+ * which lets the back-pressure of the ring buffer take over.
+ * </p>
+ * <p>
+ * As the size of a request is known before it is sent, the requests have a fixed content length instead of being chunked.
+ * The responses are fully consumed, so that {@link HttpURLConnection} can keep the underlying TCP connections alive and reuse them.
+ * </p>
+ * <p>
+ * With more than one {@link ReporterConfiguration#getAsyncSendingThreads() sender thread}, multiple requests are in flight at the same time,
+ * the {@link TracerServerConnectionManager} spreads them across the APM servers.
+ * </p>
+ */
+public class AsyncRequestSender implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncRequestSender.class);
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    private final ReporterConfiguration reporterConfiguration;
+    private final TracerServerClient tracerServerClient;
+    private final BlockingQueue<RequestBuffer> freeBuffers;
+    private final BlockingQueue<RequestBuffer> pendingBuffers;
+    private final Thread[] threads;
+    private final Object backoffLock = new Object();
+    private final AtomicLong reported = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ReporterMetrics reporterMetrics;
+    /**
+     * Compression is disabled when sending to localhost, which is only known after the first request.
+     * Otherwise, the compression is chosen by the {@link AdaptiveCompression} of the reporter thread.
+     */
+    private volatile boolean compressionEnabled = true;
+    private volatile boolean closed;
+    /**
+     * Shared by the sender threads, which all back off after consecutive errors
+     */
+    private final AtomicInteger errorCount = new AtomicInteger();
+
+    public AsyncRequestSender(ReporterConfiguration reporterConfiguration, TracerServerClient tracerServerClient,
+                              ReporterMetrics reporterMetrics) {
+        this.reporterConfiguration = reporterConfiguration;
+        this.tracerServerClient = tracerServerClient;
+        this.reporterMetrics = reporterMetrics;
+        int bufferCount = reporterConfiguration.getAsyncSendingBuffers();
+        this.freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        this.pendingBuffers = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            freeBuffers.add(new RequestBuffer());
+        }
+        int threadCount = reporterConfiguration.getAsyncSendingThreads();
+        this.threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            String threadName = threadCount == 1 ? "server-request-sender" : "server-request-sender-" + i;
+            threads[i] = new ExecutorUtils.SingleNamedThreadFactory(ThreadUtils.addElasticApmThreadPrefix(threadName)).newThread(this);
+        }
+    }
+
+    public void start() {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Waits until a buffer is available for the next request
+     *
+     * @param endpoint    the endpoint the request is sent to
+     * @param contentType the content type of the request body
+     * @return a buffer, or {@code null} if this sender has been closed
+     */
+    @Nullable
+    RequestBuffer acquireBuffer(String endpoint, String contentType) {
+        RequestBuffer buffer = freeBuffers.poll();
+        try {
+            while (buffer == null && !closed) {
+                buffer = freeBuffers.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (buffer != null) {
+            buffer.endpoint = endpoint;
+            buffer.contentType = contentType;
+        }
+        return buffer;
+    }
+
+    /**
+     * Hands over a buffer, which has been acquired via {@link #acquireBuffer(String, String)}, to the sender thread
+     *
+     * @param buffer     the buffer containing the complete, compressed request body
+     * @param eventCount the number of events within the request
+     */
+    void send(RequestBuffer buffer, long eventCount) {
+        buffer.eventCount = eventCount;
+        // can't fail as there are never more buffers than the capacity of the queue
+        pendingBuffers.offer(buffer);
+    }
+
+    /**
+     * Makes a buffer available again without sending it
+     */
+    void release(RequestBuffer buffer) {
+        buffer.reset();
+        freeBuffers.offer(buffer);
+    }
+
+    boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    @Override
+    public void run() {
+        while (!closed || !pendingBuffers.isEmpty()) {
+            try {
+                RequestBuffer buffer = pendingBuffers.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (buffer != null) {
+                    try {
+                        sendRequest(buffer);
+                    } finally {
+                        release(buffer);
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.info("Request sender has been interrupted");
+                return;
+            } catch (Exception e) {
+                logger.error("Unexpected error while sending request to APM server: {}", e.getMessage());
+                logger.debug("Unexpected request sender failure", e);
+            }
+        }
+    }
+
+    private void sendRequest(RequestBuffer buffer) {
+        HttpURLConnection connection = null;
+        boolean connected = false;
+        Integer responseCode = null;
+        final long start = System.nanoTime();
+        try {
+            connection = tracerServerClient.startRequest(buffer.endpoint);
+            if (connection == null) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Failed to get APM server connection, dropping {} events", buffer.eventCount);
+                }
+                dropped.addAndGet(buffer.eventCount);
+                return;
+            }
+            compressionEnabled = !AbstractIntakeApiHandler.isLocalhost(connection);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Sending {} compressed bytes to {}", buffer.size(), connection.getURL());
+            }
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(buffer.size());
+            connection.setRequestProperty("Content-Encoding", buffer.contentEncoding);
+            connection.setRequestProperty("Content-Type", buffer.contentType);
+            connection.setUseCaches(false);
+            tracerServerClient.connect(connection);
+            connected = true;
+            OutputStream os = connection.getOutputStream();
+            buffer.writeTo(os);
+            os.close();
+            responseCode = connection.getResponseCode();
+            if (responseCode >= 400) {
+                onRequestError(responseCode, connection.getErrorStream(), buffer, null);
+            } else {
+                errorCount.set(0);
+                reported.addAndGet(buffer.eventCount);
+            }
+        } catch (IOException e) {
+            if (connection != null) {
+                try {
+                    responseCode = connection.getResponseCode();
+                } catch (IOException ignore) {
+                    // the server did not send a response
+                }
+            }
+            onRequestError(responseCode, connection != null ? connection.getErrorStream() : null, buffer, e);
+        } finally {
+            HttpUtils.consumeAndClose(connection);
+            if (connected) {
+                tracerServerClient.endRequest(connection, responseCode);
+            }
+            if (connection != null) {
+                reporterMetrics.onRequestEnd(System.nanoTime() - start, buffer.size());
+            }
+        }
+    }
+
+    private void onRequestError(@Nullable Integer responseCode, @Nullable InputStream errorStream, RequestBuffer buffer, @Nullable IOException e) {
+        dropped.addAndGet(buffer.eventCount);
+        if (e != null) {
+            logger.error("Error sending data to APM server: {}, response code is {}", e.getMessage(), responseCode);
+            logger.debug("Sending payload to APM server failed", e);
+        }
+        if (errorStream != null && logger.isWarnEnabled()) {
+            try {
+                logger.warn(HttpUtils.readToString(errorStream));
+            } catch (IOException e1) {
+                logger.warn(e1.getMessage(), e1);
+            }
+        }
+        // if the response code is null, the server did not even send a response
+        if (responseCode == null || responseCode > 429) {
+            // this server seems to have connection or capacity issues, try next
+            tracerServerClient.onConnectionError();
+        } else if (responseCode == 404) {
+            logger.warn("It seems like you are using a version of the APM Server which is not compatible with this agent. " +
+                    "Please use APM Server 6.5.0 or newer.");
+        }
+        long backoffTimeSeconds = AbstractIntakeApiHandler.getBackoffTimeSeconds(errorCount.getAndIncrement());
+        final long backoffTimeMillis = TimeUnit.SECONDS.toMillis(backoffTimeSeconds);
+        if (backoffTimeMillis > 0 && !closed) {
+            logger.info("Backing off for {} seconds (+/-10%)", backoffTimeSeconds);
+            // only the sender threads back off, the reporter thread keeps filling the free buffers in the meantime
+            final long start = System.currentTimeMillis();
+            try {
+                synchronized (backoffLock) {
+                    backoffLock.wait(backoffTimeMillis + AbstractIntakeApiHandler.getRandomJitter(backoffTimeMillis));
+                }
+            } catch (InterruptedException e1) {
+                Thread.currentThread().interrupt();
+            } finally {
+                reporterMetrics.onBackoff(System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+    public long getReported() {
+        return reported.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Sends the pending requests and stops the sender threads.
+     * Waits for at most {@link ReporterConfiguration#getServerTimeout()} for the pending requests to be sent.
+     */
+    public void close() {
+        closed = true;
+        synchronized (backoffLock) {
+            backoffLock.notifyAll();
+        }
+        final long deadline = System.currentTimeMillis() + reporterConfiguration.getServerTimeout().getMillis();
+        try {
+            for (Thread thread : threads) {
+                thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!pendingBuffers.isEmpty()) {
+            logger.warn("Timeout while sending pending requests to the APM server");
+        }
+    }
+
+    /**
+     * Holds the compressed body of a request
+     */
+    static class RequestBuffer extends ByteArrayOutputStream {
+        private String endpoint = "";
+        private String contentType = DslJsonSerializer.CONTENT_TYPE;
+        private String contentEncoding = "deflate";
+        private long eventCount;
+
+        private RequestBuffer() {
+            super(DslJsonSerializer.BUFFER_SIZE);
+        }
+
+        void setContentEncoding(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+
+        @Override
+        public synchronized void reset() {
+            super.reset();
+            eventCount = 0;
+        }
+    }
+}
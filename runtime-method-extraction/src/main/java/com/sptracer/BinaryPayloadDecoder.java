@@ -0,0 +1,269 @@
+package com.sptracer;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonWriter;
+import com.dslplatform.json.NumberConverter;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.sptracer.BinaryPayloadSerializer.ARRAY;
+import static com.sptracer.BinaryPayloadSerializer.DOUBLE;
+import static com.sptracer.BinaryPayloadSerializer.DURATION;
+import static com.sptracer.BinaryPayloadSerializer.END;
+import static com.sptracer.BinaryPayloadSerializer.FALSE;
+import static com.sptracer.BinaryPayloadSerializer.HEX_ID;
+import static com.sptracer.BinaryPayloadSerializer.INT;
+import static com.sptracer.BinaryPayloadSerializer.JSON_FIELDS;
+import static com.sptracer.BinaryPayloadSerializer.MAGIC;
+import static com.sptracer.BinaryPayloadSerializer.MAX_DICTIONARY_SIZE;
+import static com.sptracer.BinaryPayloadSerializer.NULL;
+import static com.sptracer.BinaryPayloadSerializer.OBJECT;
+import static com.sptracer.BinaryPayloadSerializer.RAW_JSON;
+import static com.sptracer.BinaryPayloadSerializer.STRING;
+import static com.sptracer.BinaryPayloadSerializer.STRING_DEFINE;
+import static com.sptracer.BinaryPayloadSerializer.STRING_REF;
+import static com.sptracer.BinaryPayloadSerializer.TIMESTAMP;
+import static com.sptracer.BinaryPayloadSerializer.TRUE;
+import static com.sptracer.BinaryPayloadSerializer.VERSION;
+
+/**
+ * The reference decoder of the {@link BinaryPayloadSerializer} format,
+ * which converts a request body back to the ND-JSON which the {@link DslJsonSerializer} would have produced.
+ * <p>
+ * Meant to be used by an intake server which stands in for the APM server, for example to forward the events to it.
+ * The request body has to be decompressed before it's decoded.
+ * </p>
+ * <p>
+ * Not thread safe, but can be reused for multiple requests.
+ * </p>
+ */
+public class BinaryPayloadDecoder {
+
+    private static final byte[] HEX_CHARS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * The events produced by the agent are nested much less deeply,
+     * so a deeper request body is rejected before decoding it would overflow the stack
+     */
+    private static final int MAX_DEPTH = 64;
+
+    private final JsonWriter jw = new DslJson<>(new DslJson.Settings<>()).newWriter(DslJsonSerializer.BUFFER_SIZE);
+    private final List<String> dictionary = new ArrayList<>();
+    private byte[] buffer = new byte[256];
+    private long lastTimestamp;
+
+    /**
+     * @param in  the decompressed request body
+     * @param out the stream the ND-JSON lines are written to
+     * @throws IOException if reading or writing fails or the request body is not valid
+     */
+    public void decode(InputStream in, OutputStream out) throws IOException {
+        in = new BufferedInputStream(in);
+        dictionary.clear();
+        lastTimestamp = 0;
+        jw.reset(out);
+        try {
+            readHeader(in);
+            for (int tag = in.read(); tag != -1; tag = in.read()) {
+                if (tag == RAW_JSON) {
+                    copyBytes(in, readLength(in));
+                } else {
+                    decodeValue(in, tag, 0);
+                    jw.writeByte((byte) '\n');
+                }
+            }
+            jw.flush();
+        } finally {
+            jw.reset();
+        }
+    }
+
+    private void readHeader(InputStream in) throws IOException {
+        for (byte b : MAGIC) {
+            if (readByte(in) != b) {
+                throw new IOException("Not a binary encoded request body");
+            }
+        }
+        final int version = readByte(in);
+        if (version != VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+    }
+
+    private void decodeValue(InputStream in, int tag, int depth) throws IOException {
+        if ((tag == OBJECT || tag == ARRAY) && depth >= MAX_DEPTH) {
+            throw new IOException("Exceeded the maximum nesting depth of " + MAX_DEPTH);
+        }
+        switch (tag) {
+            case OBJECT:
+                decodeObject(in, depth + 1);
+                break;
+            case ARRAY:
+                jw.writeByte(JsonWriter.ARRAY_START);
+                boolean first = true;
+                for (int element = readByte(in); element != END; element = readByte(in)) {
+                    if (!first) {
+                        jw.writeByte(JsonWriter.COMMA);
+                    }
+                    decodeValue(in, element, depth + 1);
+                    first = false;
+                }
+                jw.writeByte(JsonWriter.ARRAY_END);
+                break;
+            case NULL:
+                jw.writeNull();
+                break;
+            case TRUE:
+                jw.writeAscii("true");
+                break;
+            case FALSE:
+                jw.writeAscii("false");
+                break;
+            case INT:
+                NumberConverter.serialize(readZigZag(in), jw);
+                break;
+            case DOUBLE:
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | readByte(in);
+                }
+                NumberConverter.serialize(Double.longBitsToDouble(bits), jw);
+                break;
+            case STRING:
+            case STRING_DEFINE:
+            case STRING_REF:
+                jw.writeString(readString(in, tag));
+                break;
+            case TIMESTAMP:
+                lastTimestamp += readZigZag(in);
+                NumberConverter.serialize(lastTimestamp, jw);
+                break;
+            case DURATION:
+                NumberConverter.serialize(readVarint(in) / 1000.0, jw);
+                break;
+            case HEX_ID:
+                final int length = readLength(in);
+                readBytes(in, length);
+                jw.writeByte(JsonWriter.QUOTE);
+                for (int i = 0; i < length; i++) {
+                    jw.writeByte(HEX_CHARS[(buffer[i] >> 4) & 0xF]);
+                    jw.writeByte(HEX_CHARS[buffer[i] & 0xF]);
+                }
+                jw.writeByte(JsonWriter.QUOTE);
+                break;
+            default:
+                throw new IOException("Unexpected tag " + tag);
+        }
+    }
+
+    private void decodeObject(InputStream in, int depth) throws IOException {
+        jw.writeByte(JsonWriter.OBJECT_START);
+        boolean first = true;
+        for (int tag = readByte(in); tag != END; tag = readByte(in)) {
+            if (tag == JSON_FIELDS) {
+                final int length = readLength(in);
+                if (length > 0) {
+                    if (!first) {
+                        jw.writeByte(JsonWriter.COMMA);
+                    }
+                    copyBytes(in, length);
+                    first = false;
+                }
+                continue;
+            }
+            if (!first) {
+                jw.writeByte(JsonWriter.COMMA);
+            }
+            jw.writeString(readString(in, tag));
+            jw.writeByte(JsonWriter.SEMI);
+            decodeValue(in, readByte(in), depth);
+            first = false;
+        }
+        jw.writeByte(JsonWriter.OBJECT_END);
+    }
+
+    private String readString(InputStream in, int tag) throws IOException {
+        switch (tag) {
+            case STRING:
+                return readUtf8(in);
+            case STRING_DEFINE:
+                if (dictionary.size() >= MAX_DICTIONARY_SIZE) {
+                    throw new IOException("Exceeded the maximum dictionary size of " + MAX_DICTIONARY_SIZE);
+                }
+                final String value = readUtf8(in);
+                dictionary.add(value);
+                return value;
+            case STRING_REF:
+                final long index = readVarint(in);
+                if (index >= dictionary.size()) {
+                    throw new IOException("Undefined dictionary index " + index);
+                }
+                return dictionary.get((int) index);
+            default:
+                throw new IOException("Expected a string but got tag " + tag);
+        }
+    }
+
+    private String readUtf8(InputStream in) throws IOException {
+        final int length = readLength(in);
+        readBytes(in, length);
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void copyBytes(InputStream in, int length) throws IOException {
+        readBytes(in, length);
+        jw.writeAscii(buffer, length);
+    }
+
+    private void readBytes(InputStream in, int length) throws IOException {
+        if (buffer.length < length) {
+            buffer = new byte[Integer.highestOneBit(length) << 1];
+        }
+        for (int read = 0; read < length; ) {
+            final int n = in.read(buffer, read, length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+    }
+
+    private int readLength(InputStream in) throws IOException {
+        final long length = readVarint(in);
+        if (length > Integer.MAX_VALUE / 2) {
+            throw new IOException("Invalid length " + length);
+        }
+        return (int) length;
+    }
+
+    private long readZigZag(InputStream in) throws IOException {
+        final long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readByte(in);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        final int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,814 @@
+package com.sptracer;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonWriter;
+import com.sptracer.collections.LongHashSet;
+import com.sptracer.error.ErrorCapture;
+import com.sptracer.impl.AbstractContext;
+import com.sptracer.impl.Composite;
+import com.sptracer.impl.Destination;
+import com.sptracer.impl.DroppedSpanStats;
+import com.sptracer.impl.MetaData;
+import com.sptracer.impl.Span;
+import com.sptracer.impl.SpanContext;
+import com.sptracer.impl.SpanCount;
+import com.sptracer.impl.StackFrame;
+import com.sptracer.impl.StacktraceConfiguration;
+import com.sptracer.impl.Transaction;
+import com.sptracer.impl.TransactionContext;
+import com.sptracer.util.ByteUtils;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import static com.sptracer.DslJsonSerializer.MAX_LONG_STRING_VALUE_LENGTH;
+import static com.sptracer.DslJsonSerializer.MAX_VALUE_LENGTH;
+
+/**
+ * A {@link PayloadSerializer} which encodes the events in a compact binary format instead of ND-JSON.
+ * <p>
+ * The events are encoded as a tree of tagged values which mirrors the JSON schema of the intake API,
+ * so that the {@link BinaryPayloadDecoder} can convert them back to ND-JSON without knowing about the individual event types.
+ * Field names and values which are likely to recur, like service names, span types and the class names of stack frames,
+ * are added to a dictionary when they are written for the first time and are referred to by their index afterwards.
+ * Numbers are written as varints and timestamps as the difference to the previous timestamp.
+ * </p>
+ * <p>
+ * The same stack frames as by the {@link DslJsonSerializer} are omitted, and whether a frame is a library frame is determined
+ * by the shared {@link StackFrameCache}.
+ * The serialized frames themselves are not cached, as they refer to the dictionary of the current request.
+ * </p>
+ * <pre>
+ * request: magic 'S' 'P' 'B' | version (1) | value ...
+ * value:   tag (1) | payload, see the tag constants
+ * </pre>
+ * <p>
+ * Each top-level value corresponds to an ND-JSON line.
+ * The dictionary and the previous timestamp are reset with every {@link #setOutputStream(OutputStream)},
+ * so that each request can be decoded on its own.
+ * The metadata and events which have already been serialized to JSON, like metric sets, are embedded as raw JSON.
+ * The same applies to the free-form parts of the context, like the request, the database statement or the custom context.
+ * </p>
+ * <p>
+ * The APM server does not understand this format,
+ * it's meant for intake servers which decode it via the {@link BinaryPayloadDecoder}.
+ * </p>
+ */
+public class BinaryPayloadSerializer implements PayloadSerializer {
+
+    public static final String CONTENT_TYPE = "application/vnd.sptracer.events.v1+binary";
+    static final byte[] MAGIC = {'S', 'P', 'B'};
+    static final byte VERSION = 1;
+
+    /**
+     * Ends an {@link #OBJECT} or an {@link #ARRAY}
+     */
+    static final byte END = 0x00;
+    /**
+     * Followed by pairs of a field name, which is a string, and a value, terminated by {@link #END}
+     */
+    static final byte OBJECT = 0x01;
+    /**
+     * Followed by values, terminated by {@link #END}
+     */
+    static final byte ARRAY = 0x02;
+    static final byte NULL = 0x03;
+    static final byte TRUE = 0x04;
+    static final byte FALSE = 0x05;
+    /**
+     * ZigZag encoded varint
+     */
+    static final byte INT = 0x06;
+    /**
+     * 8 bytes IEEE 754, big endian
+     */
+    static final byte DOUBLE = 0x07;
+    /**
+     * varint length | UTF-8 bytes
+     */
+    static final byte STRING = 0x08;
+    /**
+     * Like {@link #STRING}, but also appends the string to the dictionary
+     */
+    static final byte STRING_DEFINE = 0x09;
+    /**
+     * varint index of a string within the dictionary
+     */
+    static final byte STRING_REF = 0x0A;
+    /**
+     * ZigZag encoded varint of the difference to the previous timestamp of the request, in µs since epoch
+     */
+    static final byte TIMESTAMP = 0x0B;
+    /**
+     * varint duration in µs, which is decoded to a duration in ms
+     */
+    static final byte DURATION = 0x0C;
+    /**
+     * varint length | bytes of an id, which is decoded to a hex string
+     */
+    static final byte HEX_ID = 0x0D;
+    /**
+     * varint length | one or more complete ND-JSON lines, only valid at the top level
+     */
+    static final byte RAW_JSON = 0x0E;
+    /**
+     * varint length | comma separated JSON fields, only valid in place of a field name within an {@link #OBJECT}
+     */
+    static final byte JSON_FIELDS = 0x0F;
+
+    static final int MAX_DICTIONARY_SIZE = 4096;
+    /**
+     * Longer strings are unlikely to recur and are not worth a dictionary entry
+     */
+    private static final int MAX_DICTIONARY_STRING_LENGTH = 256;
+
+    private final JsonWriter jw;
+    /**
+     * Serializes the metadata and the free-form parts of the context, which are embedded as JSON
+     */
+    private final DslJsonSerializer jsonSerializer;
+    private final StacktraceConfiguration stacktraceConfiguration;
+    private final StackFrameCache stackFrameCache;
+    private final TracerServerClient tracerServerClient;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final StringBuilder replaceBuilder = new StringBuilder(MAX_LONG_STRING_VALUE_LENGTH + 1);
+    private final StringBuilder truncateBuilder = new StringBuilder(MAX_LONG_STRING_VALUE_LENGTH + 1);
+    private final byte[] idBuffer = new byte[16];
+    @Nullable
+    private OutputStream os;
+    private long lastTimestamp;
+    private long mark;
+    private int markDictionarySize;
+    private long markTimestamp;
+
+    public BinaryPayloadSerializer(StacktraceConfiguration stacktraceConfiguration, StackFrameCache stackFrameCache,
+                                   TracerServerClient tracerServerClient, Future<MetaData> metaData) {
+        this.stacktraceConfiguration = stacktraceConfiguration;
+        this.stackFrameCache = stackFrameCache;
+        this.tracerServerClient = tracerServerClient;
+        this.jsonSerializer = new DslJsonSerializer(stacktraceConfiguration, stackFrameCache, tracerServerClient, metaData);
+        // the JsonWriter is only used as a buffer which flushes to the output stream
+        this.jw = new DslJson<>(new DslJson.Settings<>()).newWriter(DslJsonSerializer.BUFFER_SIZE);
+    }
+
+    @Override
+    public void setOutputStream(OutputStream os) {
+        this.os = os;
+        jw.reset(os);
+        dictionary.clear();
+        lastTimestamp = 0;
+    }
+
+    @Override
+    public void blockUntilReady() throws Exception {
+        jsonSerializer.blockUntilReady();
+    }
+
+    /**
+     * Writes the header of the request, followed by the metadata as raw JSON
+     */
+    @Override
+    public void appendMetaDataNdJsonToStream() throws UninitializedException {
+        jw.writeAscii(MAGIC);
+        jw.writeByte(VERSION);
+        JsonWriter json = jsonSerializer.getJsonWriter();
+        json.reset();
+        jsonSerializer.appendMetaDataNdJsonToStream();
+        writeBytes(json.getByteBuffer(), json.size());
+        json.reset();
+    }
+
+    @Override
+    public void appendMetadataToStream() throws UninitializedException {
+        JsonWriter json = jsonSerializer.getJsonWriter();
+        json.reset();
+        jsonSerializer.appendMetadataToStream();
+        writeBytes(json.getByteBuffer(), json.size());
+        json.reset();
+    }
+
+    /**
+     * @return the metadata as JSON, as the binary format embeds it as raw JSON
+     */
+    @Override
+    public byte[] getMetaDataNdJson() throws UninitializedException {
+        return jsonSerializer.getMetaDataNdJson();
+    }
+
+    @Override
+    public void serializeTransactionNdJson(Transaction transaction) {
+        jw.writeByte(OBJECT);
+        writeFieldName("transaction");
+        serializeTransaction(transaction);
+        jw.writeByte(END);
+    }
+
+    @Override
+    public void serializeSpanNdJson(Span span) {
+        jw.writeByte(OBJECT);
+        writeFieldName("span");
+        serializeSpan(span);
+        jw.writeByte(END);
+    }
+
+    @Override
+    public void serializeErrorNdJson(ErrorCapture error) {
+        jw.writeByte(OBJECT);
+        writeFieldName("error");
+        serializeError(error);
+        jw.writeByte(END);
+    }
+
+    @Override
+    public void fullFlush() throws IOException {
+        jw.flush();
+        try {
+            if (os != null) {
+                os.flush();
+            }
+        } finally {
+            jw.reset();
+        }
+    }
+
+    @Override
+    public void flushToOutputStream() {
+        jw.flush();
+    }
+
+    @Override
+    public int getBufferSize() {
+        return jw.size();
+    }
+
+    @Override
+    public void mark() {
+        mark = jw.flushed() + jw.size();
+        markDictionarySize = dictionary.size();
+        markTimestamp = lastTimestamp;
+    }
+
+    /**
+     * Also forgets the dictionary entries and the timestamp which have been written since the last {@link #mark()},
+     * as the decoder never sees them
+     */
+    @Override
+    public boolean resetToMark() {
+        if (!DslJsonSerializer.resetToMark(jw, os, mark)) {
+            return false;
+        }
+        if (dictionary.size() > markDictionarySize) {
+            for (Iterator<Integer> it = dictionary.values().iterator(); it.hasNext(); ) {
+                if (it.next() >= markDictionarySize) {
+                    it.remove();
+                }
+            }
+        }
+        lastTimestamp = markTimestamp;
+        jsonSerializer.getJsonWriter().reset();
+        return true;
+    }
+
+    @Override
+    public void serializeFileMetaData(File file) {
+        JsonWriter json = jsonSerializer.getJsonWriter();
+        json.reset();
+        jsonSerializer.serializeFileMetaData(file);
+        writeBytes(json.getByteBuffer(), json.size());
+        json.reset();
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public JsonWriter getJsonWriter() {
+        return jw;
+    }
+
+    /**
+     * Embeds ND-JSON lines, for example a metric set which has been serialized by the {@link com.sptracer.metrics.MetricRegistry}
+     */
+    @Override
+    public void writeBytes(byte[] bytes, int len) {
+        jw.writeByte(RAW_JSON);
+        writeVarint(len);
+        jw.writeAscii(bytes, len);
+    }
+
+    /**
+     * Embeds ND-JSON lines, for example events which have been serialized by another {@link DslJsonSerializer}
+     */
+    @Override
+    public void writeBytes(byte[] bytes, int offset, int len) throws IOException {
+        if (os == null) {
+            throw new IllegalStateException("No output stream has been set");
+        }
+        jw.writeByte(RAW_JSON);
+        writeVarint(len);
+        // the JsonWriter can't write a slice of an array, so this bypasses it
+        jw.flush();
+        os.write(bytes, offset, len);
+    }
+
+    private void serializeTransaction(Transaction transaction) {
+        TraceContext traceContext = transaction.getTraceContext();
+        jw.writeByte(OBJECT);
+        writeTimestamp(transaction.getTimestamp());
+        writeDictionaryField("name", transaction.getNameForSerialization());
+        serializeTraceContext(traceContext, false);
+        writeDictionaryField("type", transaction.getType());
+        writeDurationField("duration", transaction.getDuration());
+        if (transaction.isDurationBelowClockResolution()) {
+            writeField("duration_below_clock_resolution", true);
+        }
+        writeDictionaryField("result", transaction.getResult());
+        writeDictionaryField("outcome", transaction.getOutcome().toString());
+        serializeContext(transaction, transaction.getContext(), traceContext);
+        serializeSpanCount(transaction.getSpanCount());
+        serializeDroppedSpanStats(transaction.getDroppedSpanStats());
+        writeSampleRate(traceContext);
+        writeField("sampled", transaction.isSampled());
+        jw.writeByte(END);
+    }
+
+    private void serializeSpan(Span span) {
+        TraceContext traceContext = span.getTraceContext();
+        jw.writeByte(OBJECT);
+        writeDictionaryField("name", span.getNameForSerialization());
+        writeTimestamp(span.getTimestamp());
+        writeDictionaryField("outcome", span.getOutcome().toString());
+        serializeTraceContext(traceContext, true);
+        writeDurationField("duration", span.getDuration());
+        if (span.isDurationBelowClockResolution()) {
+            writeField("duration_below_clock_resolution", true);
+        }
+        if (span.getStacktrace() != null) {
+            serializeStacktrace(span.getStacktrace().getStackTrace());
+        } else if (span.getStackFrames() != null) {
+            serializeStackTrace(span.getStackFrames());
+        }
+        serializeSpanContext(span.getContext(), traceContext);
+        writeHexArray("child_ids", span.getChildIds());
+        serializeComposite(span.getComposite());
+        writeSampleRate(traceContext);
+        serializeSpanType(span);
+        jw.writeByte(END);
+    }
+
+    private void serializeError(ErrorCapture errorCapture) {
+        jw.writeByte(OBJECT);
+        writeTimestamp(errorCapture.getTimestamp());
+        writeFieldName("transaction");
+        jw.writeByte(OBJECT);
+        writeDictionaryField("type", errorCapture.getTransactionInfo().getType());
+        writeField("sampled", errorCapture.getTransactionInfo().isSampled());
+        jw.writeByte(END);
+        if (errorCapture.getTraceContext().hasContent()) {
+            serializeTraceContext(errorCapture.getTraceContext(), true);
+        }
+        serializeContext(null, errorCapture.getContext(), errorCapture.getTraceContext());
+        writeDictionaryField("culprit", errorCapture.getCulprit());
+        writeFieldName("exception");
+        serializeException(errorCapture, errorCapture.getException());
+        jw.writeByte(END);
+    }
+
+    private void serializeException(ErrorCapture errorCapture, @Nullable Throwable exception) {
+        jw.writeByte(OBJECT);
+        if (exception != null) {
+            writeField("message", String.valueOf(exception.getMessage()));
+            serializeStacktrace(errorCapture.getStackTrace(exception));
+            writeDictionaryField("type", exception.getClass().getName());
+            Throwable cause = exception.getCause();
+            if (cause != null) {
+                writeFieldName("cause");
+                jw.writeByte(ARRAY);
+                serializeException(errorCapture, cause);
+                jw.writeByte(END);
+            }
+        }
+        jw.writeByte(END);
+    }
+
+    private void serializeTraceContext(TraceContext traceContext, boolean serializeTransactionId) {
+        writeIdField("id", traceContext.getId());
+        if (!traceContext.getTraceId().isEmpty()) {
+            writeIdField("trace_id", traceContext.getTraceId());
+            if (serializeTransactionId && !traceContext.getTransactionId().isEmpty()) {
+                writeIdField("transaction_id", traceContext.getTransactionId());
+            }
+            if (!traceContext.getParentId().isEmpty()) {
+                writeIdField("parent_id", traceContext.getParentId());
+            }
+        }
+    }
+
+    private void serializeContext(@Nullable Transaction transaction, TransactionContext context, TraceContext traceContext) {
+        writeFieldName("context");
+        jw.writeByte(OBJECT);
+        String serviceName = traceContext.getServiceName();
+        boolean hasFramework = transaction != null && transaction.getFrameworkName() != null;
+        if (serviceName != null || hasFramework) {
+            writeFieldName("service");
+            jw.writeByte(OBJECT);
+            if (hasFramework) {
+                writeFieldName("framework");
+                jw.writeByte(OBJECT);
+                writeDictionaryField("version", transaction.getFrameworkVersion());
+                writeDictionaryField("name", transaction.getFrameworkName());
+                jw.writeByte(END);
+            }
+            writeDictionaryFieldOrNull("name", serviceName);
+            jw.writeByte(END);
+        }
+        JsonWriter json = jsonSerializer.getJsonWriter();
+        json.reset();
+        jsonSerializer.serializeEmbeddedContext(context);
+        writeJsonFields(json);
+        writeFieldName("tags");
+        serializeLabels(context);
+        jw.writeByte(END);
+    }
+
+    private void serializeSpanContext(SpanContext context, TraceContext traceContext) {
+        writeFieldName("context");
+        jw.writeByte(OBJECT);
+        String serviceName = traceContext.getServiceName();
+        if (serviceName != null) {
+            writeFieldName("service");
+            jw.writeByte(OBJECT);
+            writeDictionaryFieldOrNull("name", serviceName);
+            jw.writeByte(END);
+        }
+        JsonWriter json = jsonSerializer.getJsonWriter();
+        json.reset();
+        jsonSerializer.serializeEmbeddedContext(context);
+        writeJsonFields(json);
+        serializeDestination(context.getDestination());
+        writeFieldName("tags");
+        serializeLabels(context);
+        jw.writeByte(END);
+    }
+
+    private void serializeDestination(Destination destination) {
+        if (destination.hasContent()) {
+            writeFieldName("destination");
+            jw.writeByte(OBJECT);
+            if (destination.getAddress().length() > 0) {
+                writeDictionaryField("address", destination.getAddress());
+            }
+            if (destination.getPort() > 0) {
+                writeField("port", destination.getPort());
+            }
+            if (destination.getService().hasContent()) {
+                writeFieldName("service");
+                jw.writeByte(OBJECT);
+                writeDictionaryField("name", "");
+                writeDictionaryField("type", "");
+                writeDictionaryFieldOrNull("resource", destination.getService().getResource());
+                jw.writeByte(END);
+            }
+            jw.writeByte(END);
+        }
+    }
+
+    private void serializeLabels(AbstractContext context) {
+        jw.writeByte(OBJECT);
+        if (context.hasLabels()) {
+            boolean supportsNonStringValues = tracerServerClient.supportsNonStringLabels();
+            for (Iterator<? extends Map.Entry<String, ?>> it = context.getLabelIterator(); it.hasNext(); ) {
+                Map.Entry<String, ?> kv = it.next();
+                writeStringValue(DslJsonSerializer.sanitizePropertyName(kv.getKey(), replaceBuilder), true, MAX_VALUE_LENGTH);
+                Object value = kv.getValue();
+                if (value instanceof String) {
+                    writeStringValue((String) value, true, MAX_VALUE_LENGTH);
+                } else if (value instanceof Number && supportsNonStringValues) {
+                    writeDouble(((Number) value).doubleValue());
+                } else if (value instanceof Boolean && supportsNonStringValues) {
+                    jw.writeByte((Boolean) value ? TRUE : FALSE);
+                } else {
+                    jw.writeByte(NULL);
+                }
+            }
+        }
+        jw.writeByte(END);
+    }
+
+    private void serializeSpanCount(SpanCount spanCount) {
+        writeFieldName("span_count");
+        jw.writeByte(OBJECT);
+        writeField("dropped", spanCount.getDropped().get());
+        writeField("started", spanCount.getReported().get());
+        jw.writeByte(END);
+    }
+
+    private void serializeDroppedSpanStats(DroppedSpanStats droppedSpanStats) {
+        if (droppedSpanStats.isEmpty()) {
+            return;
+        }
+        writeFieldName("dropped_spans_stats");
+        jw.writeByte(ARRAY);
+        for (Map.Entry<DroppedSpanStats.StatsKey, DroppedSpanStats.Stats> entry : droppedSpanStats) {
+            jw.writeByte(OBJECT);
+            writeDictionaryField("destination_service_resource", entry.getKey().getDestinationServiceResource());
+            writeDictionaryField("outcome", entry.getKey().getOutcome().toString());
+            writeFieldName("duration");
+            jw.writeByte(OBJECT);
+            writeField("count", entry.getValue().getCount());
+            writeFieldName("sum");
+            jw.writeByte(OBJECT);
+            writeField("us", entry.getValue().getSum());
+            jw.writeByte(END);
+            jw.writeByte(END);
+            jw.writeByte(END);
+        }
+        jw.writeByte(END);
+    }
+
+    private void serializeComposite(Composite composite) {
+        if (composite.isCompressed()) {
+            writeFieldName("composite");
+            jw.writeByte(OBJECT);
+            writeField("count", composite.getCount());
+            writeDurationField("sum", composite.getSum());
+            writeDictionaryField("compression_strategy", composite.getCompressionStrategy());
+            jw.writeByte(END);
+        }
+    }
+
+    /**
+     * Writes the combined type like {@link DslJsonSerializer} does
+     */
+    private void serializeSpanType(Span span) {
+        writeFieldName("type");
+        String type = span.getType();
+        if (type != null) {
+            replaceBuilder.setLength(0);
+            replaceBuilder.append(type);
+            DslJsonSerializer.replace(replaceBuilder, ".", "_", 0);
+            String subtype = span.getSubtype();
+            String action = span.getAction();
+            if (subtype != null || action != null) {
+                replaceBuilder.append('.');
+                int replaceStartIndex = replaceBuilder.length() + 1;
+                if (subtype != null) {
+                    replaceBuilder.append(subtype);
+                    DslJsonSerializer.replace(replaceBuilder, ".", "_", replaceStartIndex);
+                }
+                if (action != null) {
+                    replaceBuilder.append('.');
+                    replaceStartIndex = replaceBuilder.length() + 1;
+                    replaceBuilder.append(action);
+                    DslJsonSerializer.replace(replaceBuilder, ".", "_", replaceStartIndex);
+                }
+            }
+            writeStringValue(replaceBuilder, true, MAX_VALUE_LENGTH);
+        } else {
+            jw.writeByte(NULL);
+        }
+    }
+
+    private void serializeStacktrace(StackTraceElement[] stacktrace) {
+        if (stacktrace.length == 0) {
+            return;
+        }
+        writeFieldName("stacktrace");
+        jw.writeByte(ARRAY);
+        int collectedStackFrames = 0;
+        final int stackTraceLimit = DslJsonSerializer.getStackTraceLimit(stacktraceConfiguration, stacktrace);
+        for (int i = DslJsonSerializer.skipAgentFrames(stacktrace); i < stacktrace.length && collectedStackFrames < stackTraceLimit; i++) {
+            StackTraceElement stackTraceElement = stacktrace[i];
+            if (DslJsonSerializer.isExcluded(stackTraceElement)) {
+                continue;
+            }
+            jw.writeByte(OBJECT);
+            writeDictionaryField("filename", stackTraceElement.getFileName());
+            writeDictionaryField("classname", stackTraceElement.getClassName());
+            writeDictionaryField("function", stackTraceElement.getMethodName());
+            writeField("library_frame", stackFrameCache.isLibraryFrame(stackTraceElement.getClassName()));
+            writeField("lineno", stackTraceElement.getLineNumber());
+            writeModuleField(stackTraceElement.getClassName());
+            jw.writeByte(END);
+            collectedStackFrames++;
+        }
+        jw.writeByte(END);
+    }
+
+    private void serializeStackTrace(List<StackFrame> stackTrace) {
+        if (stackTrace.isEmpty()) {
+            return;
+        }
+        writeFieldName("stacktrace");
+        jw.writeByte(ARRAY);
+        for (int i = 0, size = stackTrace.size(); i < size; i++) {
+            StackFrame frame = stackTrace.get(i);
+            jw.writeByte(OBJECT);
+            replaceBuilder.setLength(0);
+            frame.appendFileName(replaceBuilder);
+            if (replaceBuilder.length() > 0) {
+                writeDictionaryField("filename", replaceBuilder);
+            }
+            final String className = frame.getClassName();
+            writeDictionaryField("classname", className);
+            writeDictionaryField("function", frame.getMethodName());
+            writeField("library_frame", stackFrameCache.isLibraryFrame(className));
+            writeField("lineno", frame.getLineNumber());
+            if (className != null) {
+                writeModuleField(className);
+            }
+            jw.writeByte(END);
+        }
+        jw.writeByte(END);
+    }
+
+    private void writeModuleField(String fullyQualifiedClassName) {
+        writeFieldName("module");
+        final int lastDotIndex = fullyQualifiedClassName.lastIndexOf('.');
+        replaceBuilder.setLength(0);
+        if (lastDotIndex > 0) {
+            replaceBuilder.append(fullyQualifiedClassName, 0, lastDotIndex);
+        }
+        writeStringValue(replaceBuilder, true, MAX_VALUE_LENGTH);
+    }
+
+    private void writeSampleRate(TraceContext traceContext) {
+        double sampleRate = traceContext.getSampleRate();
+        if (!Double.isNaN(sampleRate)) {
+            writeFieldName("sample_rate");
+            writeDouble(sampleRate);
+        }
+    }
+
+    /**
+     * Embeds the comma terminated JSON fields which have been written to the provided writer and resets it
+     */
+    private void writeJsonFields(JsonWriter json) {
+        final int size = json.size();
+        if (size > 0) {
+            jw.writeByte(JSON_FIELDS);
+            // without the trailing comma
+            writeVarint(size - 1);
+            jw.writeAscii(json.getByteBuffer(), size - 1);
+        }
+        json.reset();
+    }
+
+    private void writeTimestamp(long epochMicros) {
+        writeFieldName("timestamp");
+        jw.writeByte(TIMESTAMP);
+        writeZigZag(epochMicros - lastTimestamp);
+        lastTimestamp = epochMicros;
+    }
+
+    private void writeDurationField(String fieldName, long micros) {
+        writeFieldName(fieldName);
+        jw.writeByte(DURATION);
+        writeVarint(Math.max(0, micros));
+    }
+
+    private void writeIdField(String fieldName, Id id) {
+        writeFieldName(fieldName);
+        final int length = id.toBytes(idBuffer, 0);
+        jw.writeByte(HEX_ID);
+        writeVarint(length);
+        jw.writeAscii(idBuffer, length);
+    }
+
+    private void writeHexArray(String fieldName, @Nullable LongHashSet longs) {
+        if (longs != null && !longs.isEmpty()) {
+            writeFieldName(fieldName);
+            jw.writeByte(ARRAY);
+            for (int i = longs.nextIndex(-1); i >= 0; i = longs.nextIndex(i)) {
+                ByteUtils.putLong(idBuffer, 0, longs.valueAt(i));
+                jw.writeByte(HEX_ID);
+                writeVarint(Long.BYTES);
+                jw.writeAscii(idBuffer, Long.BYTES);
+            }
+            jw.writeByte(END);
+        }
+    }
+
+    private void writeField(String fieldName, long value) {
+        writeFieldName(fieldName);
+        jw.writeByte(INT);
+        writeZigZag(value);
+    }
+
+    private void writeField(String fieldName, boolean value) {
+        writeFieldName(fieldName);
+        jw.writeByte(value ? TRUE : FALSE);
+    }
+
+    private void writeField(String fieldName, String value) {
+        writeFieldName(fieldName);
+        writeStringValue(value, false, MAX_VALUE_LENGTH);
+    }
+
+    /**
+     * Writes a field whose value is likely to recur, omitting it if the value is {@code null}
+     */
+    private void writeDictionaryField(String fieldName, @Nullable CharSequence value) {
+        if (value != null) {
+            writeFieldName(fieldName);
+            writeStringValue(value, true, MAX_VALUE_LENGTH);
+        }
+    }
+
+    /**
+     * Writes a field whose value is likely to recur, writing {@code null} if the value is {@code null} or empty
+     */
+    private void writeDictionaryFieldOrNull(String fieldName, @Nullable CharSequence value) {
+        writeFieldName(fieldName);
+        if (value != null && value.length() > 0) {
+            writeStringValue(value, true, MAX_VALUE_LENGTH);
+        } else {
+            jw.writeByte(NULL);
+        }
+    }
+
+    private void writeFieldName(String fieldName) {
+        writeStringValue(fieldName, true, MAX_VALUE_LENGTH);
+    }
+
+    private void writeStringValue(CharSequence value, boolean recurring, int maxLength) {
+        value = truncate(value, maxLength);
+        if (recurring && value.length() <= MAX_DICTIONARY_STRING_LENGTH) {
+            final String string = value.toString();
+            final Integer index = dictionary.get(string);
+            if (index != null) {
+                jw.writeByte(STRING_REF);
+                writeVarint(index);
+                return;
+            }
+            if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+                dictionary.put(string, dictionary.size());
+                jw.writeByte(STRING_DEFINE);
+                writeUtf8(string);
+                return;
+            }
+        }
+        jw.writeByte(STRING);
+        writeUtf8(value);
+    }
+
+    private CharSequence truncate(CharSequence value, int maxLength) {
+        if (value.length() <= maxLength) {
+            return value;
+        }
+        truncateBuilder.setLength(0);
+        truncateBuilder.append(value, 0, maxLength - 1);
+        truncateBuilder.append('…');
+        return truncateBuilder;
+    }
+
+    private void writeUtf8(CharSequence value) {
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) >= 0x80) {
+                final byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+                writeVarint(bytes.length);
+                jw.writeAscii(bytes);
+                return;
+            }
+        }
+        writeVarint(length);
+        if (value instanceof String) {
+            jw.writeAscii((String) value);
+        } else {
+            for (int i = 0; i < length; i++) {
+                jw.writeByte((byte) value.charAt(i));
+            }
+        }
+    }
+
+    private void writeDouble(double value) {
+        jw.writeByte(DOUBLE);
+        final long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            jw.writeByte((byte) (bits >>> shift));
+        }
+    }
+
+    private void writeZigZag(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            jw.writeByte((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        jw.writeByte((byte) value);
+    }
+}
@@ -0,0 +1,70 @@
+package com.sptracer;
+
+import com.sptracer.util.ExecutorUtils;
+import com.sptracer.util.ThreadUtils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A clock which is advanced by a daemon thread at a fixed resolution.
+ * <p>
+ * Reading the time is just a volatile read, which is cheaper than {@link System#nanoTime()},
+ * at the expense of precision: timestamps are only accurate to {@link #getResolutionMicros()}.
+ * The published time is derived from a single wall clock reading and {@link System#nanoTime()},
+ * so that it does not go backwards when the wall clock is adjusted.
+ * </p>
+ */
+public class CoarseClock implements Runnable {
+
+    private final long resolutionMicros;
+    private final long baseEpochMicros;
+    private final long baseNanoTime;
+    private final Thread ticker;
+    private volatile long epochMicros;
+    private volatile boolean running = true;
+
+    public CoarseClock(long resolutionMicros) {
+        if (resolutionMicros <= 0) {
+            throw new IllegalArgumentException("The resolution has to be positive but was " + resolutionMicros);
+        }
+        this.resolutionMicros = resolutionMicros;
+        this.baseNanoTime = System.nanoTime();
+        this.baseEpochMicros = System.currentTimeMillis() * 1000;
+        this.epochMicros = baseEpochMicros;
+        this.ticker = new ExecutorUtils.SingleNamedThreadFactory(ThreadUtils.addElasticApmThreadPrefix("coarse-clock")).newThread(this);
+    }
+
+    public void start() {
+        ticker.start();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+
+    @Override
+    public void run() {
+        long resolutionNanos = TimeUnit.MICROSECONDS.toNanos(resolutionMicros);
+        while (running) {
+            tick();
+            LockSupport.parkNanos(resolutionNanos);
+        }
+    }
+
+    private void tick() {
+        epochMicros = baseEpochMicros + (System.nanoTime() - baseNanoTime) / 1000;
+    }
+
+    /**
+     * @return the current time in microseconds since epoch, as of the last tick
+     */
+    public long getEpochMicros() {
+        return epochMicros;
+    }
+
+    public long getResolutionMicros() {
+        return resolutionMicros;
+    }
+}
@@ -0,0 +1,532 @@
+package com.sptracer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Buffers batches of serialized ND-JSON events on disk while the APM server can't be reached, so that they can be replayed later.
+ * <p>
+ * The batches are appended to memory-mapped segment files of a fixed size, so that buffering doesn't grow the heap.
+ * Each appended batch is forced to disk before {@link #append} returns.
+ * The number of segments is capped, once all segments are full, new batches are rejected.
+ * Segments are read oldest-first.
+ * Each segment records the metadata of the events it contains,
+ * so that events of a previous run are not sent with the metadata of the current one, see {@link #readNext(byte[], RecordHandler)}.
+ * Batches which have been read are only discarded after {@link #commit()}, which allows to {@link #rewind()}
+ * if the request they have been sent with fails.
+ * </p>
+ * <p>
+ * Segment files are mapped once and are never deleted while mapped, as the JDK can't unmap them.
+ * Instead, fully committed segments are marked as free and reused for new batches.
+ * That way, the number of mappings is bounded by {@link ReporterConfiguration#getSpoolMaxSize()} and the files can be deleted on any OS.
+ * </p>
+ * <p>
+ * Segment layout:
+ * </p>
+ * <pre>
+ * header: magic (4) | version (4) | sequence (8) | metadata length (4) | CRC32 of the preceding fields and the metadata (4) | metadata
+ * record: length (4) | event count (4) | CRC32 of the data (4) | data (length)
+ * ...
+ * </pre>
+ * <p>
+ * A record length of {@code 0} marks the end of a segment, it's written after each record,
+ * so that the records of a previous use of the segment are never mistaken for new ones.
+ * A free segment has no valid header.
+ * Segments left behind by a previous run are replayed as well.
+ * The CRCs make sure that torn writes, for example after a crash, are detected instead of sending corrupt data.
+ * In that case, the remainder of the segment is skipped.
+ * </p>
+ * <p>
+ * Not thread safe, only to be used by the reporter thread.
+ * </p>
+ */
+public class DiskSpool implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskSpool.class);
+
+    public static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    /**
+     * The size of the header without the metadata
+     */
+    static final int SEGMENT_HEADER_SIZE = 24;
+    static final int RECORD_HEADER_SIZE = 12;
+    private static final int MAGIC = 0x53505350;
+    private static final int VERSION = 2;
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    /**
+     * Ordered from oldest to newest, the last segment is the one which is appended to, unless it has been sealed
+     */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    /**
+     * Segments which don't contain any unread records and can be reused
+     */
+    private final ArrayDeque<Segment> freeSegments = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private byte[] readBuffer = new byte[1024];
+    private long nextSequence;
+
+    /**
+     * @param maxSize the maximum size of the segment files, has to be at least two segments
+     */
+    public DiskSpool(File directory, long maxSize, int segmentSize) throws IOException {
+        if (maxSize < 2L * segmentSize) {
+            throw new IllegalArgumentException("The spool size has to be at least two segments of " + segmentSize + " bytes");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create spool directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.min(Integer.MAX_VALUE, maxSize / segmentSize);
+        recoverSegments();
+    }
+
+    private void recoverSegments() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<Segment> recovered = new ArrayList<>();
+        List<Segment> free = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+                Segment segment = Segment.open(file, segmentSize);
+                if (segment == null) {
+                    deleteFile(file);
+                } else if (segment.readHeader()) {
+                    recovered.add(segment);
+                } else {
+                    free.add(segment);
+                }
+                nextSequence = Math.max(nextSequence, parseSequence(file) + 1);
+            }
+        }
+        Collections.sort(recovered, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment o1, Segment o2) {
+                return Long.compare(o1.sequence, o2.sequence);
+            }
+        });
+        // the oldest segments are kept, the rest is deleted before mapping it
+        recovered.addAll(free);
+        for (int i = 0; i < recovered.size(); i++) {
+            Segment segment = recovered.get(i);
+            if (i >= maxSegments) {
+                segment.close();
+                deleteFile(segment.file);
+            } else if (!segment.map()) {
+                segment.close();
+                deleteFile(segment.file);
+            } else if (segment.sequence >= 0 && segment.recover(crc)) {
+                // segments of previous runs are never appended to
+                segment.sealed = true;
+                segments.add(segment);
+                nextSequence = Math.max(nextSequence, segment.sequence + 1);
+            } else {
+                segment.free();
+                freeSegments.add(segment);
+            }
+        }
+        if (!segments.isEmpty()) {
+            logger.info("Recovered {} spooled segments from {}", segments.size(), directory);
+        }
+    }
+
+    private static long parseSequence(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            logger.warn("Could not delete spool segment {}", file);
+        }
+    }
+
+    /**
+     * @param metadata the ND-JSON metadata line the events have to be sent with
+     * @return {@code false} if the batch has been rejected because the spool is full or can't be written to
+     */
+    public boolean append(byte[] metadata, byte[] bytes, int offset, int length, int eventCount) {
+        if (length <= 0) {
+            return true;
+        }
+        if (RECORD_HEADER_SIZE + length > segmentSize - SEGMENT_HEADER_SIZE - metadata.length) {
+            logger.debug("Batch of {} bytes exceeds the spool segment size", length);
+            return false;
+        }
+        try {
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.sealed || segment.remaining() < RECORD_HEADER_SIZE + length || !segment.hasMetadata(metadata)) {
+                if (segment != null) {
+                    segment.sealed = true;
+                }
+                segment = nextFreeSegment(metadata);
+                if (segment == null) {
+                    return false;
+                }
+                segments.add(segment);
+            }
+            crc.reset();
+            crc.update(bytes, offset, length);
+            segment.append(bytes, offset, length, eventCount, (int) crc.getValue());
+            return true;
+        } catch (IOException e) {
+            logger.warn("Failed to write to spool segment: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return a reused or newly created segment, or {@code null} if all segments are in use
+     */
+    @Nullable
+    private Segment nextFreeSegment(byte[] metadata) throws IOException {
+        Segment segment = freeSegments.poll();
+        if (segment == null) {
+            if (segments.size() >= maxSegments) {
+                return null;
+            }
+            segment = Segment.create(new File(directory, SEGMENT_PREFIX + nextSequence + SEGMENT_SUFFIX), segmentSize);
+        }
+        segment.init(nextSequence++, metadata, crc);
+        return segment;
+    }
+
+    public boolean hasUnreadRecords() {
+        for (Segment segment : segments) {
+            if (segment.readPosition < segment.writePosition) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the metadata of the oldest record which has not been read yet, {@code null} if there are no more records
+     */
+    @Nullable
+    public byte[] getUnreadMetadata() {
+        for (Segment segment : segments) {
+            if (segment.readPosition < segment.writePosition) {
+                return segment.metadata;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the oldest record which has not been read since the last {@link #commit()} or {@link #rewind()}
+     *
+     * @param metadata the metadata of the request the record is sent with
+     * @return {@code false} if there are no more records, or if the oldest record has to be sent with different metadata
+     */
+    public boolean readNext(byte[] metadata, RecordHandler handler) throws IOException {
+        for (Segment segment : segments) {
+            if (segment.readPosition < segment.writePosition) {
+                if (!segment.hasMetadata(metadata)) {
+                    return false;
+                }
+                MappedByteBuffer buffer = segment.buffer;
+                int position = segment.readPosition;
+                int length = buffer.getInt(position);
+                int eventCount = buffer.getInt(position + 4);
+                int checksum = buffer.getInt(position + 8);
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > segment.writePosition) {
+                    onCorruptSegment(segment);
+                    continue;
+                }
+                if (readBuffer.length < length) {
+                    readBuffer = new byte[Math.min(Integer.highestOneBit(length) << 1, segmentSize)];
+                }
+                buffer.position(position + RECORD_HEADER_SIZE);
+                buffer.get(readBuffer, 0, length);
+                crc.reset();
+                crc.update(readBuffer, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    onCorruptSegment(segment);
+                    continue;
+                }
+                segment.readPosition = position + RECORD_HEADER_SIZE + length;
+                handler.onRecord(readBuffer, length, eventCount);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void onCorruptSegment(Segment segment) {
+        logger.warn("Detected corrupt record in spool segment {}, skipping the rest of the segment", segment.file);
+        segment.readPosition = segment.writePosition;
+        segment.sealed = true;
+    }
+
+    /**
+     * Discards all records which have been read and frees the segments which have been read completely
+     */
+    public void commit() {
+        for (Iterator<Segment> iterator = segments.iterator(); iterator.hasNext(); ) {
+            Segment segment = iterator.next();
+            segment.committedReadPosition = segment.readPosition;
+            if (segment.readPosition == segment.writePosition) {
+                iterator.remove();
+                segment.free();
+                freeSegments.add(segment);
+            } else {
+                // subsequent segments have not been read yet
+                return;
+            }
+        }
+    }
+
+    /**
+     * Makes the records which have been read since the last {@link #commit()} available for reading again
+     */
+    public void rewind() {
+        for (Segment segment : segments) {
+            segment.readPosition = segment.committedReadPosition;
+        }
+    }
+
+    /**
+     * @return the number of bytes used by the segment files
+     */
+    public long getSize() {
+        return (long) (segments.size() + freeSegments.size()) * segmentSize;
+    }
+
+    @Override
+    public void close() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        for (Segment segment : freeSegments) {
+            segment.close();
+        }
+        segments.clear();
+        freeSegments.clear();
+    }
+
+    public interface RecordHandler {
+        /**
+         * @param buffer     the buffer holding the record, only valid during this invocation
+         * @param length     the length of the record
+         * @param eventCount the number of events within the record
+         */
+        void onRecord(byte[] buffer, int length, int eventCount) throws IOException;
+    }
+
+    private static class Segment {
+        private final File file;
+        private final int segmentSize;
+        private final FileChannel channel;
+        @Nullable
+        private MappedByteBuffer buffer;
+        /**
+         * {@code -1} while the segment is free
+         */
+        private long sequence = -1;
+        private byte[] metadata = new byte[0];
+        private int writePosition = SEGMENT_HEADER_SIZE;
+        private int readPosition = SEGMENT_HEADER_SIZE;
+        private int committedReadPosition = SEGMENT_HEADER_SIZE;
+        private boolean sealed;
+
+        private Segment(File file, int segmentSize, FileChannel channel) {
+            this.file = file;
+            this.segmentSize = segmentSize;
+            this.channel = channel;
+        }
+
+        static Segment create(File file, int segmentSize) throws IOException {
+            Segment segment = new Segment(file, segmentSize, new RandomAccessFile(file, "rw").getChannel());
+            if (!segment.map()) {
+                segment.close();
+                throw new IOException("Could not map spool segment " + file);
+            }
+            return segment;
+        }
+
+        /**
+         * Opens the file of a previous run without mapping it
+         *
+         * @return {@code null} if the file has an unexpected size or can't be opened
+         */
+        @Nullable
+        static Segment open(File file, int segmentSize) {
+            if (file.length() != segmentSize) {
+                logger.warn("Ignoring spool segment {} with unexpected size {}", file, file.length());
+                return null;
+            }
+            try {
+                return new Segment(file, segmentSize, new RandomAccessFile(file, "rw").getChannel());
+            } catch (IOException e) {
+                logger.warn("Failed to open spool segment {}: {}", file, e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Reads the sequence from the header without mapping the file
+         *
+         * @return {@code false} if the segment is free or has an invalid header
+         */
+        boolean readHeader() {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            try {
+                while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+                    // reads the whole header
+                }
+            } catch (IOException e) {
+                logger.warn("Failed to read spool segment {}: {}", file, e.getMessage());
+                return false;
+            }
+            if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                return false;
+            }
+            sequence = header.getLong(8);
+            return true;
+        }
+
+        boolean map() {
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+                return true;
+            } catch (IOException e) {
+                logger.warn("Failed to map spool segment {}: {}", file, e.getMessage());
+                return false;
+            }
+        }
+
+        /**
+         * Validates the header and determines where the data ends, the records themselves are validated when reading them
+         *
+         * @return {@code false} if the header is invalid
+         */
+        boolean recover(CRC32 crc) {
+            final int metadataLength = buffer.getInt(16);
+            if (metadataLength < 0 || SEGMENT_HEADER_SIZE + metadataLength > segmentSize) {
+                logger.warn("Ignoring spool segment {} with invalid header", file);
+                return false;
+            }
+            final byte[] metadata = new byte[metadataLength];
+            buffer.position(SEGMENT_HEADER_SIZE);
+            buffer.get(metadata);
+            if (buffer.getInt(20) != headerChecksum(buffer, metadata, crc)) {
+                logger.warn("Ignoring spool segment {} with invalid header", file);
+                return false;
+            }
+            this.metadata = metadata;
+            final int dataStart = SEGMENT_HEADER_SIZE + metadataLength;
+            int position = dataStart;
+            int length;
+            while (position + RECORD_HEADER_SIZE <= segmentSize
+                && (length = buffer.getInt(position)) > 0
+                && position + RECORD_HEADER_SIZE + length <= segmentSize) {
+                position += RECORD_HEADER_SIZE + length;
+            }
+            writePosition = position;
+            readPosition = dataStart;
+            committedReadPosition = dataStart;
+            return true;
+        }
+
+        /**
+         * Prepares a free segment for new records
+         */
+        void init(long sequence, byte[] metadata, CRC32 crc) {
+            this.sequence = sequence;
+            this.metadata = metadata;
+            final int dataStart = SEGMENT_HEADER_SIZE + metadata.length;
+            buffer.position(SEGMENT_HEADER_SIZE);
+            buffer.put(metadata);
+            buffer.putInt(dataStart, 0);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, sequence);
+            buffer.putInt(16, metadata.length);
+            buffer.putInt(20, headerChecksum(buffer, metadata, crc));
+            // written last, so that a torn write leaves the segment free
+            buffer.putInt(0, MAGIC);
+            writePosition = dataStart;
+            readPosition = dataStart;
+            committedReadPosition = dataStart;
+            sealed = false;
+            buffer.force();
+        }
+
+        /**
+         * Invalidates the header, so that the records are not recovered after a restart
+         */
+        void free() {
+            sequence = -1;
+            buffer.putInt(0, 0);
+            buffer.force();
+        }
+
+        private static int headerChecksum(MappedByteBuffer buffer, byte[] metadata, CRC32 crc) {
+            crc.reset();
+            for (int i = 4; i < 20; i++) {
+                crc.update(buffer.get(i));
+            }
+            crc.update(metadata, 0, metadata.length);
+            return (int) crc.getValue();
+        }
+
+        boolean hasMetadata(byte[] metadata) {
+            return this.metadata == metadata || Arrays.equals(this.metadata, metadata);
+        }
+
+        int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+
+        void append(byte[] bytes, int offset, int length, int eventCount, int checksum) {
+            final int end = writePosition + RECORD_HEADER_SIZE + length;
+            // the data is written before the header so that a torn write never leaves a valid-looking header behind
+            buffer.position(writePosition + RECORD_HEADER_SIZE);
+            buffer.put(bytes, offset, length);
+            if (end + 4 <= buffer.capacity()) {
+                buffer.putInt(end, 0);
+            }
+            buffer.putInt(writePosition + 4, eventCount);
+            buffer.putInt(writePosition + 8, checksum);
+            buffer.putInt(writePosition, length);
+            buffer.force();
+            writePosition = end;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close spool segment {}: {}", file, e.getMessage());
+            }
+        }
+    }
+}
@@ -5,7 +5,7 @@ import com.dslplatform.json.DslJson;
 import com.dslplatform.json.JsonWriter;
 import com.dslplatform.json.NumberConverter;
 import com.dslplatform.json.StringConverter;
-import com.sptracer.collections.LongList;
+import com.sptracer.collections.LongHashSet;
 import com.sptracer.error.ErrorCapture;
 import com.sptracer.impl.*;
 import com.sptracer.impl.Span;
@@ -49,14 +49,15 @@ public class DslJsonSerializer implements PayloadSerializer {
     public static final int BUFFER_SIZE = 16384;
     public static final int MAX_VALUE_LENGTH = 1024;
     public static final int MAX_LONG_STRING_VALUE_LENGTH = 10000;
+    public static final String CONTENT_TYPE = "application/x-ndjson";
     private static final byte NEW_LINE = (byte) '\n';
     private static final Logger logger = LoggerFactory.getLogger(DslJsonSerializer.class);
     private static final String[] DISALLOWED_IN_PROPERTY_NAME = new String[]{".", "*", "\""};
-    private static final List<String> excludedStackFrames = Arrays.asList("java.lang.reflect", "com.sun", "sun.", "jdk.internal.");
     // visible for testing
     final JsonWriter jw;
     private final StringBuilder replaceBuilder = new StringBuilder(MAX_LONG_STRING_VALUE_LENGTH + 1);
     private final StacktraceConfiguration stacktraceConfiguration;
+    private final StackFrameCache stackFrameCache;
     private final TracerServerClient tracerServerClient;
     @Nullable
     private OutputStream os;
@@ -64,9 +65,21 @@ public class DslJsonSerializer implements PayloadSerializer {
     private final Future<MetaData> metaData;
     @Nullable
     private byte[] serializedMetaData;
+    @Nullable
+    private byte[] metaDataNdJson;
+    /**
+     * The number of bytes which had been serialized to the {@link #os} when {@link #mark()} was called
+     */
+    private long mark;
 
     public DslJsonSerializer(StacktraceConfiguration stacktraceConfiguration, TracerServerClient tracerServerClient, final Future<MetaData> metaData) {
+        this(stacktraceConfiguration, new StackFrameCache(stacktraceConfiguration), tracerServerClient, metaData);
+    }
+
+    public DslJsonSerializer(StacktraceConfiguration stacktraceConfiguration, StackFrameCache stackFrameCache,
+                             TracerServerClient tracerServerClient, final Future<MetaData> metaData) {
         this.stacktraceConfiguration = stacktraceConfiguration;
+        this.stackFrameCache = stackFrameCache;
         this.tracerServerClient = tracerServerClient;
         this.metaData = metaData;
         jw = new DslJson<>(new DslJson.Settings<>()).newWriter(BUFFER_SIZE);
@@ -166,6 +179,22 @@ public class DslJsonSerializer implements PayloadSerializer {
         jw.writeAscii(serializedMetaData);
     }
 
+    @Override
+    public byte[] getMetaDataNdJson() throws UninitializedException {
+        assertMetaDataReady();
+        if (metaDataNdJson == null) {
+            JsonWriter metadataJW = new DslJson<>(new DslJson.Settings<>()).newWriter(4096);
+            metadataJW.writeByte(JsonWriter.OBJECT_START);
+            writeFieldName("metadata", metadataJW);
+            //noinspection ConstantConditions
+            metadataJW.writeAscii(serializedMetaData);
+            metadataJW.writeByte(JsonWriter.OBJECT_END);
+            metadataJW.writeByte(NEW_LINE);
+            metaDataNdJson = metadataJW.toByteArray();
+        }
+        return metaDataNdJson;
+    }
+
     private void assertMetaDataReady() throws UninitializedException {
         if (serializedMetaData == null) {
             throw new UninitializedException("Cannot serialize metadata as it is not ready yet. Call blockUntilReady()");
@@ -247,6 +276,29 @@ public class DslJsonSerializer implements PayloadSerializer {
         return jw.size();
     }
 
+    @Override
+    public void mark() {
+        mark = jw.flushed() + jw.size();
+    }
+
+    @Override
+    public boolean resetToMark() {
+        return resetToMark(jw, os, mark);
+    }
+
+    static boolean resetToMark(JsonWriter jw, @Nullable OutputStream os, long mark) {
+        final long flushed = jw.flushed();
+        if (mark < flushed) {
+            return false;
+        }
+        final int size = (int) (mark - flushed);
+        // the JsonWriter can't be truncated, so it's reset and the retained bytes are copied to the start of its buffer again
+        final byte[] buffer = jw.getByteBuffer();
+        jw.reset(os);
+        jw.writeAscii(buffer, size);
+        return true;
+    }
+
     @Override
     public void serializeFileMetaData(File file) {
         jw.writeByte(JsonWriter.OBJECT_START);
@@ -265,6 +317,11 @@ public class DslJsonSerializer implements PayloadSerializer {
         jw.writeByte(NEW_LINE);
     }
 
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
     @Override
     public JsonWriter getJsonWriter() {
         return jw;
@@ -275,6 +332,16 @@ public class DslJsonSerializer implements PayloadSerializer {
         jw.writeAscii(bytes, len);
     }
 
+    @Override
+    public void writeBytes(byte[] bytes, int offset, int len) throws IOException {
+        if (os == null) {
+            throw new IllegalStateException("No output stream has been set");
+        }
+        // the JsonWriter can't write a slice of an array, so this bypasses it
+        jw.flush();
+        os.write(bytes, offset, len);
+    }
+
     private void serializeError(ErrorCapture errorCapture) {
         jw.writeByte(JsonWriter.OBJECT_START);
 
@@ -285,7 +352,7 @@ public class DslJsonSerializer implements PayloadSerializer {
         }
         serializeContext(null, errorCapture.getContext(), errorCapture.getTraceContext());
         writeField("culprit", errorCapture.getCulprit());
-        serializeException(errorCapture.getException());
+        serializeException(errorCapture);
 
         jw.writeByte(JsonWriter.OBJECT_END);
     }
@@ -301,16 +368,16 @@ public class DslJsonSerializer implements PayloadSerializer {
         jw.writeByte(COMMA);
     }
 
-    private void serializeException(@Nullable Throwable exception) {
+    private void serializeException(ErrorCapture errorCapture) {
         writeFieldName("exception");
-        recursiveSerializeException(exception);
+        recursiveSerializeException(errorCapture, errorCapture.getException());
     }
 
-    private void recursiveSerializeException(@Nullable Throwable exception) {
+    private void recursiveSerializeException(ErrorCapture errorCapture, @Nullable Throwable exception) {
         jw.writeByte(JsonWriter.OBJECT_START);
         if (exception != null) {
             writeField("message", String.valueOf(exception.getMessage()));
-            serializeStacktrace(exception.getStackTrace());
+            serializeStacktrace(errorCapture.getStackTrace(exception));
             writeFieldName("type");
             writeStringValue(exception.getClass().getName());
 
@@ -319,7 +386,7 @@ public class DslJsonSerializer implements PayloadSerializer {
                 jw.writeByte(COMMA);
                 writeFieldName("cause");
                 jw.writeByte(ARRAY_START);
-                recursiveSerializeException(cause);
+                recursiveSerializeException(errorCapture, cause);
                 jw.writeByte(ARRAY_END);
             }
         }
@@ -562,10 +629,14 @@ public class DslJsonSerializer implements PayloadSerializer {
         serializeTraceContext(traceContext, false);
         writeField("type", transaction.getType());
         writeField("duration", transaction.getDurationMs());
+        if (transaction.isDurationBelowClockResolution()) {
+            writeField("duration_below_clock_resolution", true);
+        }
         writeField("result", transaction.getResult());
         writeField("outcome", transaction.getOutcome().toString());
         serializeContext(transaction, transaction.getContext(), traceContext);
         serializeSpanCount(transaction.getSpanCount());
+        serializeDroppedSpanStats(transaction.getDroppedSpanStats());
         double sampleRate = traceContext.getSampleRate();
         if (!Double.isNaN(sampleRate)) {
             writeField("sample_rate", sampleRate);
@@ -598,6 +669,9 @@ public class DslJsonSerializer implements PayloadSerializer {
         writeField("outcome", span.getOutcome().toString());
         serializeTraceContext(traceContext, true);
         writeField("duration", span.getDurationMs());
+        if (span.isDurationBelowClockResolution()) {
+            writeField("duration_below_clock_resolution", true);
+        }
         if (span.getStacktrace() != null) {
             serializeStacktrace(span.getStacktrace().getStackTrace());
         } else if (span.getStackFrames() != null) {
@@ -605,6 +679,7 @@ public class DslJsonSerializer implements PayloadSerializer {
         }
         serializeSpanContext(span.getContext(), traceContext);
         writeHexArray("child_ids", span.getChildIds());
+        serializeComposite(span.getComposite());
         double sampleRate = traceContext.getSampleRate();
         if (!Double.isNaN(sampleRate)) {
             writeField("sample_rate", sampleRate);
@@ -613,6 +688,18 @@ public class DslJsonSerializer implements PayloadSerializer {
         jw.writeByte(OBJECT_END);
     }
 
+    private void serializeComposite(com.sptracer.impl.Composite composite) {
+        if (composite.isCompressed()) {
+            writeFieldName("composite");
+            jw.writeByte(OBJECT_START);
+            writeField("count", composite.getCount());
+            writeField("sum", composite.getSumMs());
+            writeLastField("compression_strategy", composite.getCompressionStrategy());
+            jw.writeByte(OBJECT_END);
+            jw.writeByte(COMMA);
+        }
+    }
+
     private void serializeServiceName(TraceContext traceContext) {
         String serviceName = traceContext.getServiceName();
         if (serviceName != null) {
@@ -685,21 +772,10 @@ public class DslJsonSerializer implements PayloadSerializer {
     }
 
     private void serializeStackTraceArrayElements(StackTraceElement[] stacktrace) {
-
-        boolean topMostElasticApmPackagesSkipped = false;
         int collectedStackFrames = 0;
-        int stackTraceLimit = stacktraceConfiguration.getStackTraceLimit();
-        if (stackTraceLimit < 0) {
-            stackTraceLimit = stacktrace.length;
-        }
-        for (int i = 0; i < stacktrace.length && collectedStackFrames < stackTraceLimit; i++) {
+        final int stackTraceLimit = getStackTraceLimit(stacktraceConfiguration, stacktrace);
+        for (int i = skipAgentFrames(stacktrace); i < stacktrace.length && collectedStackFrames < stackTraceLimit; i++) {
             StackTraceElement stackTraceElement = stacktrace[i];
-            // only skip the top most apm stack frames
-            if (!topMostElasticApmPackagesSkipped && stackTraceElement.getClassName().startsWith("co.elastic.apm")) {
-                continue;
-            }
-            topMostElasticApmPackagesSkipped = true;
-
             if (isExcluded(stackTraceElement)) {
                 continue;
             }
@@ -712,29 +788,69 @@ public class DslJsonSerializer implements PayloadSerializer {
         }
     }
 
-    private static boolean isExcluded(StackTraceElement stackTraceElement) {
+    /**
+     * @return the maximum number of frames of the stack trace to serialize
+     */
+    static int getStackTraceLimit(StacktraceConfiguration stacktraceConfiguration, StackTraceElement[] stacktrace) {
+        final int stackTraceLimit = stacktraceConfiguration.getStackTraceLimit();
+        return stackTraceLimit < 0 ? stacktrace.length : stackTraceLimit;
+    }
+
+    /**
+     * @return the index of the first frame which does not belong to the agent, only the top-most frames of the agent are skipped
+     */
+    static int skipAgentFrames(StackTraceElement[] stacktrace) {
+        int i = 0;
+        while (i < stacktrace.length && stacktrace[i].getClassName().startsWith(StacktraceConfiguration.AGENT_PACKAGE)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return whether the frame is omitted, regardless of its position within the stack trace
+     */
+    static boolean isExcluded(StackTraceElement stackTraceElement) {
         // file name is a required field
         if (stackTraceElement.getFileName() == null) {
             return true;
         }
-        String className = stackTraceElement.getClassName();
-        for (int i = 0, size = excludedStackFrames.size(); i < size; i++) {
-            if (className.startsWith(excludedStackFrames.get(i))) {
-                return true;
-            }
-        }
-        return false;
+        return StacktraceConfiguration.isExcludedPackage(stackTraceElement.getClassName());
     }
 
     private void serializeStackTraceElement(StackTraceElement stacktrace) {
+        if (writeCachedStackFrame(stacktrace)) {
+            return;
+        }
+        final long cacheGeneration = stackFrameCache.getGeneration();
+        final int start = jw.size();
+        final long flushed = jw.flushed();
         jw.writeByte(OBJECT_START);
         writeField("filename", stacktrace.getFileName());
         writeField("classname", stacktrace.getClassName());
         writeField("function", stacktrace.getMethodName());
-        writeField("library_frame", isLibraryFrame(stacktrace.getClassName()));
+        writeField("library_frame", stackFrameCache.isLibraryFrame(stacktrace.getClassName()));
         writeField("lineno", stacktrace.getLineNumber());
         serializeStackFrameModule(stacktrace.getClassName());
         jw.writeByte(OBJECT_END);
+        cacheStackFrame(stacktrace, start, flushed, cacheGeneration);
+    }
+
+    private boolean writeCachedStackFrame(Object frame) {
+        final byte[] serialized = stackFrameCache.get(frame);
+        if (serialized != null) {
+            // the bytes are already escaped and UTF-8 encoded, writeAscii only copies them
+            jw.writeAscii(serialized);
+            return true;
+        }
+        return false;
+    }
+
+    private void cacheStackFrame(Object frame, int start, long flushedBefore, long cacheGeneration) {
+        // if the writer has been flushed to the output stream in the meantime, the frame is not fully contained in the buffer
+        if (jw.flushed() == flushedBefore) {
+            stackFrameCache.put(frame, Arrays.copyOfRange(jw.getByteBuffer(), start, jw.size()), cacheGeneration);
+        }
     }
 
     private void serializeStackFrameModule(final String fullyQualifiedClassName) {
@@ -747,15 +863,6 @@ public class DslJsonSerializer implements PayloadSerializer {
         writeStringBuilderValue(replaceBuilder, jw);
     }
 
-    private boolean isLibraryFrame(String className) {
-        for (String applicationPackage : stacktraceConfiguration.getApplicationPackages()) {
-            if (className.startsWith(applicationPackage)) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     private void serializeStackTrace(List<StackFrame> stackTrace) {
         if (stackTrace.isEmpty()) {
             return;
@@ -774,15 +881,31 @@ public class DslJsonSerializer implements PayloadSerializer {
     }
 
     private void serializeStackTraceElement(StackFrame frame, StringBuilder replaceBuilder) {
+        if (writeCachedStackFrame(frame)) {
+            return;
+        }
+        final long cacheGeneration = stackFrameCache.getGeneration();
+        final int start = jw.size();
+        final long flushed = jw.flushed();
         jw.writeByte(OBJECT_START);
 
         replaceBuilder.setLength(0);
         frame.appendFileName(replaceBuilder);
         writeField("filename", replaceBuilder);
+        final String className = frame.getClassName();
+        if (className != null) {
+            writeField("classname", className);
+        }
         writeField("function", frame.getMethodName());
-        writeField("library_frame", isLibraryFrame(frame.getClassName()));
-        writeLastField("lineno", -1);
+        writeField("library_frame", stackFrameCache.isLibraryFrame(className));
+        if (className != null) {
+            writeField("lineno", frame.getLineNumber());
+            serializeStackFrameModule(className);
+        } else {
+            writeLastField("lineno", frame.getLineNumber());
+        }
         jw.writeByte(OBJECT_END);
+        cacheStackFrame(frame, start, flushed, cacheGeneration);
     }
 
     private void serializeSpanContext(SpanContext context, TraceContext traceContext) {
@@ -940,6 +1063,35 @@ public class DslJsonSerializer implements PayloadSerializer {
         jw.writeByte(COMMA);
     }
 
+    private void serializeDroppedSpanStats(final DroppedSpanStats droppedSpanStats) {
+        if (droppedSpanStats.isEmpty()) {
+            return;
+        }
+        writeFieldName("dropped_spans_stats");
+        jw.writeByte(ARRAY_START);
+        int i = 0;
+        for (Map.Entry<DroppedSpanStats.StatsKey, DroppedSpanStats.Stats> entry : droppedSpanStats) {
+            if (i++ > 0) {
+                jw.writeByte(COMMA);
+            }
+            jw.writeByte(OBJECT_START);
+            writeField("destination_service_resource", entry.getKey().getDestinationServiceResource());
+            writeField("outcome", entry.getKey().getOutcome().toString());
+            writeFieldName("duration");
+            jw.writeByte(OBJECT_START);
+            writeField("count", entry.getValue().getCount());
+            writeFieldName("sum");
+            jw.writeByte(OBJECT_START);
+            writeFieldName("us");
+            NumberConverter.serialize(entry.getValue().getSum(), jw);
+            jw.writeByte(OBJECT_END);
+            jw.writeByte(OBJECT_END);
+            jw.writeByte(OBJECT_END);
+        }
+        jw.writeByte(ARRAY_END);
+        jw.writeByte(COMMA);
+    }
+
     private void serializeContext(@Nullable final com.sptracer.impl.Transaction transaction, final TransactionContext context, TraceContext traceContext) {
         writeFieldName("context");
         jw.writeByte(OBJECT_START);
@@ -963,6 +1115,35 @@ public class DslJsonSerializer implements PayloadSerializer {
         jw.writeByte(COMMA);
     }
 
+    /**
+     * Serializes the free-form parts of a transaction or error context, which are embedded as JSON by the {@link BinaryPayloadSerializer}.
+     * Each field is followed by a comma.
+     */
+    void serializeEmbeddedContext(final TransactionContext context) {
+        if (context.getUser().hasContent()) {
+            serializeUser(context.getUser());
+            jw.writeByte(COMMA);
+        }
+        serializeRequest(context.getRequest());
+        serializeResponse(context.getResponse());
+        serializeMessageContext(context.getMessage());
+        if (context.hasCustom()) {
+            writeFieldName("custom");
+            serializeStringKeyScalarValueMap(context.getCustomIterator(), replaceBuilder, jw, true, true);
+            jw.writeByte(COMMA);
+        }
+    }
+
+    /**
+     * Serializes the free-form parts of a span context, which are embedded as JSON by the {@link BinaryPayloadSerializer}.
+     * Each field is followed by a comma.
+     */
+    void serializeEmbeddedContext(final SpanContext context) {
+        serializeMessageContext(context.getMessage());
+        serializeDbContext(context.getDb());
+        serializeHttpContext(context.getHttp());
+    }
+
     // visible for testing
     void serializeLabels(AbstractContext context) {
         if (context.hasLabels()) {
@@ -1297,11 +1478,60 @@ public class DslJsonSerializer implements PayloadSerializer {
             replaceBuilder.setLength(0);
             replaceBuilder.append(value, 0, Math.min(value.length(), MAX_VALUE_LENGTH + 1));
             writeStringBuilderValue(replaceBuilder, jw);
+        } else {
+            writeUntruncatedStringValue(value, jw);
+        }
+    }
+
+    /**
+     * Most values, like span names and labels, are short ASCII strings which don't need to be escaped.
+     * Those are copied into the buffer of the {@link JsonWriter} in bulk, instead of being inspected and escaped char by char.
+     */
+    private static void writeUntruncatedStringValue(CharSequence value, JsonWriter jw) {
+        if (value instanceof String && isJsonSafeAscii((String) value)) {
+            jw.writeByte(QUOTE);
+            jw.writeAscii((String) value);
+            jw.writeByte(QUOTE);
         } else {
             jw.writeString(value);
         }
     }
 
+    /**
+     * Checks eight chars at a time, without a branch per char.
+     *
+     * @return whether the string only consists of printable ASCII chars, except for quotes and backslashes
+     */
+    static boolean isJsonSafeAscii(String value) {
+        final int length = value.length();
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            int flags = escapeFlag(value.charAt(i))
+                | escapeFlag(value.charAt(i + 1))
+                | escapeFlag(value.charAt(i + 2))
+                | escapeFlag(value.charAt(i + 3))
+                | escapeFlag(value.charAt(i + 4))
+                | escapeFlag(value.charAt(i + 5))
+                | escapeFlag(value.charAt(i + 6))
+                | escapeFlag(value.charAt(i + 7));
+            if (flags < 0) {
+                return false;
+            }
+        }
+        int flags = 0;
+        for (; i < length; i++) {
+            flags |= escapeFlag(value.charAt(i));
+        }
+        return flags >= 0;
+    }
+
+    /**
+     * @return a negative value if the char is a control char, a non-ASCII char, a quote or a backslash
+     */
+    private static int escapeFlag(char c) {
+        return (c - 0x20) | (0x7E - c) | ((c ^ '"') - 1) | ((c ^ '\\') - 1);
+    }
+
     private static void writeLongStringBuilderValue(StringBuilder value, JsonWriter jw) {
         if (value.length() > MAX_LONG_STRING_VALUE_LENGTH) {
             value.setLength(MAX_LONG_STRING_VALUE_LENGTH - 1);
@@ -1320,7 +1550,7 @@ public class DslJsonSerializer implements PayloadSerializer {
             replaceBuilder.append(value, 0, Math.min(value.length(), MAX_LONG_STRING_VALUE_LENGTH + 1));
             writeLongStringBuilderValue(replaceBuilder, jw);
         } else {
-            jw.writeString(value);
+            writeUntruncatedStringValue(value, jw);
         }
     }
 
@@ -1414,16 +1644,16 @@ public class DslJsonSerializer implements PayloadSerializer {
         jw.writeByte(COMMA);
     }
 
-    private void writeHexArray(String fieldName, @Nullable LongList longList) {
-        if (longList != null && longList.getSize() > 0) {
+    private void writeHexArray(String fieldName, @Nullable LongHashSet longs) {
+        if (longs != null && !longs.isEmpty()) {
             writeFieldName(fieldName);
             jw.writeByte(ARRAY_START);
-            for (int i = 0, size = longList.getSize(); i < size; i++) {
-                if (i > 0) {
+            for (int i = longs.nextIndex(-1), first = i; i >= 0; i = longs.nextIndex(i)) {
+                if (i != first) {
                     jw.writeByte(COMMA);
                 }
                 jw.writeByte(QUOTE);
-                HexUtils.writeAsHex(longList.get(i), jw);
+                HexUtils.writeAsHex(longs.valueAt(i), jw);
                 jw.writeByte(QUOTE);
             }
             jw.writeByte(ARRAY_END);
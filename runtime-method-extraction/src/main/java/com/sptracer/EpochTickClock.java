@@ -1,9 +1,22 @@
 package com.sptracer;
 
+import javax.annotation.Nullable;
+
 public class EpochTickClock implements Recyclable {
 
     private long nanoTimeOffsetToEpoch;
 
+    /**
+     * When set, timestamps are read from this clock instead of {@link System#nanoTime()}.
+     * Not reset when recycling this clock, as it's a tracer-wide setting.
+     */
+    @Nullable
+    private CoarseClock coarseClock;
+
+    void setCoarseClock(@Nullable CoarseClock coarseClock) {
+        this.coarseClock = coarseClock;
+    }
+
     /**
      * Initializes the clock by aligning the {@link #nanoTimeOffsetToEpoch offset} with the offset of another clock.
      *
@@ -19,6 +32,10 @@ public class EpochTickClock implements Recyclable {
      * @return the epoch microsecond timestamp at initialization time
      */
     public long init() {
+        if (coarseClock != null) {
+            // no calibration required as the coarse clock is already aligned with the wall clock
+            return coarseClock.getEpochMicros();
+        }
         return init(System.currentTimeMillis() * 1000, System.nanoTime());
     }
 
@@ -39,9 +56,20 @@ public class EpochTickClock implements Recyclable {
     }
 
     public long getEpochMicros() {
+        if (coarseClock != null) {
+            return coarseClock.getEpochMicros();
+        }
         return getEpochMicros(System.nanoTime());
     }
 
+    /**
+     * @param durationMicros a duration measured with this clock
+     * @return {@code true} if this clock is in coarse mode and the duration is shorter than its resolution
+     */
+    public boolean isBelowResolution(long durationMicros) {
+        return coarseClock != null && durationMicros < coarseClock.getResolutionMicros();
+    }
+
     public long getEpochMicros(final long nanoTime) {
         return (nanoTime + nanoTimeOffsetToEpoch) / 1000;
     }
@@ -0,0 +1,129 @@
+package com.sptracer;
+
+import com.dslplatform.json.JsonWriter;
+import com.sptracer.configuration.ConfigurationRegistry;
+import com.sptracer.impl.MetaData;
+import com.sptracer.impl.Span;
+import com.sptracer.impl.StacktraceConfiguration;
+import com.sptracer.impl.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.Future;
+
+/**
+ * Serializes spans and transactions on the thread which ends them, instead of on the reporter thread.
+ * <p>
+ * Each application thread serializes into its own {@link SerializedEventChunk}, of which only a slice is put into
+ * the ring buffer. This means the spans and transactions can be recycled right after they have been serialized,
+ * which relieves the object pools, and that the serialization work scales with the number of application threads.
+ * The downside is a slightly higher latency when ending a span and a serialization buffer per application thread.
+ * </p>
+ * <p>
+ * See {@link ReporterConfiguration#isSerializeOnEnd()}
+ * </p>
+ */
+public class EventPreSerializer {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventPreSerializer.class);
+    private static final int MAX_POOLED_CHUNKS = 256;
+
+    private final ObjectPool<SerializedEventChunk> chunkPool;
+    private final ThreadLocal<ThreadState> threadState;
+
+    public EventPreSerializer(final ConfigurationRegistry configurationRegistry, final StackFrameCache stackFrameCache,
+                              final TracerServerClient tracerServerClient, final Future<MetaData> metaData,
+                              ObjectPoolFactory poolFactory) {
+        this.chunkPool = poolFactory.createSerializedEventChunkPool(MAX_POOLED_CHUNKS, this);
+        this.threadState = new ThreadLocal<ThreadState>() {
+            @Override
+            protected ThreadState initialValue() {
+                // processors are not thread-safe, so each application thread gets its own, just like each reporter shard
+                return new ThreadState(new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class), stackFrameCache, tracerServerClient, metaData),
+                    ProcessorEventHandler.loadProcessors(configurationRegistry));
+            }
+        };
+    }
+
+    /**
+     * Serializes the transaction, releases the reporter's reference to it and adds the serialized transaction to the reporter's ring buffer
+     */
+    void report(Transaction transaction, TracerServerReporter reporter) {
+        ThreadState state = threadState.get();
+        try {
+            state.processorEventHandler.processBeforeReport(transaction);
+            state.serializer.serializeTransactionNdJson(transaction);
+        } catch (Exception e) {
+            onSerializationError(state, e);
+            return;
+        } finally {
+            transaction.decrementReferences();
+        }
+        publish(state, reporter, EventPriority.TRANSACTION);
+    }
+
+    /**
+     * Serializes the span, releases the reporter's reference to it and adds the serialized span to the reporter's ring buffer
+     */
+    void report(Span span, TracerServerReporter reporter) {
+        ThreadState state = threadState.get();
+        try {
+            state.serializer.serializeSpanNdJson(span);
+        } catch (Exception e) {
+            onSerializationError(state, e);
+            return;
+        } finally {
+            span.decrementReferences();
+        }
+        publish(state, reporter, EventPriority.SPAN);
+    }
+
+    private void onSerializationError(ThreadState state, Exception e) {
+        logger.error("Failed to serialize event with this error: {}", e.getMessage());
+        logger.debug("Event serialization failure", e);
+        state.serializer.getJsonWriter().reset();
+    }
+
+    private void publish(ThreadState state, TracerServerReporter reporter, EventPriority priority) {
+        JsonWriter jw = state.serializer.getJsonWriter();
+        int length = jw.size();
+        if (length > SerializedEventChunk.CAPACITY) {
+            // unusually large events, for example spans with large stack traces, don't get a pooled chunk
+            byte[] serializedEvent = jw.toByteArray();
+            jw.reset();
+            reporter.reportSerializedEvents(serializedEvent, 0, serializedEvent.length, 1, null, priority);
+            return;
+        }
+        SerializedEventChunk chunk = state.chunk;
+        if (chunk == null || chunk.remaining() < length) {
+            if (chunk != null) {
+                // releases the reference of this thread, the chunk is recycled once all slices have been written
+                chunk.decrementReferences();
+            }
+            chunk = state.chunk = chunkPool.createInstance();
+            chunk.incrementReferences();
+        }
+        int offset = chunk.append(jw.getByteBuffer(), length);
+        jw.reset();
+        // released by the reporter thread after the slice has been written
+        chunk.incrementReferences();
+        reporter.reportSerializedEvents(chunk.getBuffer(), offset, length, 1, chunk, priority);
+    }
+
+    void recycle(SerializedEventChunk chunk) {
+        chunkPool.recycle(chunk);
+    }
+
+    private static class ThreadState {
+        private final DslJsonSerializer serializer;
+        private final ProcessorEventHandler processorEventHandler;
+        @Nullable
+        private SerializedEventChunk chunk;
+
+        private ThreadState(DslJsonSerializer serializer, ProcessorEventHandler processorEventHandler) {
+            this.serializer = serializer;
+            this.processorEventHandler = processorEventHandler;
+        }
+    }
+}
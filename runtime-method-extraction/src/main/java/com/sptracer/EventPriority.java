@@ -0,0 +1,56 @@
+package com.sptracer;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The priority classes of reported events, which determine which events are shed first when the reporter's queue fills up.
+ * <p>
+ * Each class is accepted unconditionally until the queue reaches a certain occupancy.
+ * Above that, events are shed with an increasing probability until the occupancy reaches the limit of the class.
+ * The capacity above the limit of a class is reserved for the classes with a higher priority.
+ * </p>
+ */
+public enum EventPriority {
+
+    /**
+     * Errors may use the whole queue
+     */
+    ERROR(1.0, 1.0),
+    TRANSACTION(0.9, 0.9),
+    SPAN(0.6, 0.8),
+    /**
+     * Metric sets are reported in regular intervals, so it's fine to lose one every now and then
+     */
+    METRICS(0.5, 0.5);
+
+    private final double sheddingStart;
+    private final double limit;
+    private final String label;
+
+    EventPriority(double sheddingStart, double limit) {
+        this.sheddingStart = sheddingStart;
+        this.limit = limit;
+        this.label = name().toLowerCase();
+    }
+
+    /**
+     * @param occupied   the number of occupied slots in the queue
+     * @param bufferSize the total number of slots in the queue
+     * @return whether an event of this class should be added to the queue
+     */
+    public boolean isAccepted(long occupied, int bufferSize) {
+        double occupancy = (double) occupied / bufferSize;
+        if (occupancy < sheddingStart) {
+            return true;
+        }
+        if (occupancy >= limit) {
+            return false;
+        }
+        // the probability of shedding increases linearly from sheddingStart to the limit
+        return ThreadLocalRandom.current().nextDouble() >= (occupancy - sheddingStart) / (limit - sheddingStart);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
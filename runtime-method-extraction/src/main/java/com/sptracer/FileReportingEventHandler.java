@@ -0,0 +1,441 @@
+package com.sptracer;
+
+import com.sptracer.util.ExecutorUtils;
+import com.sptracer.util.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the events to local files instead of sending them to the APM server, see {@link ReporterConfiguration#getFileExportDir()}.
+ * <p>
+ * The events are handed over by the same ring buffer as the events which are sent to the APM server,
+ * so that the application threads are not blocked by disk I/O and events are dropped if the disk can't keep up.
+ * The events are serialized into the buffer of the {@link #payloadSerializer}, which is copied into a reusable direct buffer.
+ * The direct buffer is written to a {@link FileChannel} whenever it's full and at the end of each batch of events.
+ * </p>
+ * <p>
+ * Each file starts with the metadata, so that it's in the same format as the body of an intake request.
+ * The current file is rotated once it exceeds {@link ReporterConfiguration#getFileExportMaxFileSize()} or
+ * {@link ReporterConfiguration#getFileExportRotationInterval()}.
+ * The latter is also checked when no events arrive, as a timer publishes a flush event once the interval has elapsed.
+ * Rotated files are compressed with gzip if {@link ReporterConfiguration#isFileExportCompress()} is enabled,
+ * after which the oldest files are deleted until the files take up less than {@link ReporterConfiguration#getFileExportMaxTotalSize()}.
+ * Both happen on a background thread, so that the reporter thread keeps draining the ring buffer in the meantime.
+ * The files are named after their creation time, so that sorting them by name sorts them from oldest to newest.
+ * </p>
+ * <p>
+ * Not thread safe, only to be used by the reporter thread, except for {@link #compressAndDeleteOldestFiles(File)}.
+ * </p>
+ */
+public class FileReportingEventHandler implements ReportingEventHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileReportingEventHandler.class);
+
+    static final String FILE_PREFIX = "events-";
+    static final String FILE_SUFFIX = ".ndjson";
+    static final String COMPRESSED_SUFFIX = ".gz";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Rotated files which are waiting to be compressed, more are left uncompressed
+     */
+    private static final int MAX_PENDING_ROTATIONS = 16;
+
+    private final ReporterConfiguration reporterConfiguration;
+    private final ProcessorEventHandler processorEventHandler;
+    private final PayloadSerializer payloadSerializer;
+    private final ReporterMetrics reporterMetrics;
+    private final File directory;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final ChannelOutputStream outputStream = new ChannelOutputStream();
+    /**
+     * Only used by the {@link #rotationExecutor}
+     */
+    private final byte[] copyBuffer = new byte[8192];
+    private final ExecutorService rotationExecutor;
+    private final Timer rotationTimer;
+    @Nullable
+    private TracerServerReporter reporter;
+    @Nullable
+    private TimerTask rotationTask;
+    @Nullable
+    private FileChannel channel;
+    /**
+     * Read by the {@link #rotationExecutor}, so that the file which is currently written to is not deleted
+     */
+    @Nullable
+    private volatile File currentFile;
+    private long currentFileCreated;
+    private long currentFileSize;
+    private int fileSequence;
+    /**
+     * The number of events which have been serialized but not written to the {@link #channel} yet
+     */
+    private int pendingEvents;
+    private long reported;
+    private long dropped;
+    private boolean shutDown;
+
+    public FileReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
+                                     PayloadSerializer payloadSerializer, ReporterMetrics reporterMetrics, File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create file export directory " + directory);
+        }
+        this.reporterConfiguration = reporterConfiguration;
+        this.processorEventHandler = processorEventHandler;
+        this.payloadSerializer = payloadSerializer;
+        this.reporterMetrics = reporterMetrics;
+        this.directory = directory;
+        this.rotationExecutor = ExecutorUtils.createSingleThreadDaemonPool("file-export-rotation", MAX_PENDING_ROTATIONS);
+        this.rotationTimer = new Timer(ThreadUtils.addElasticApmThreadPrefix("file-export-rotation-timer"), true);
+    }
+
+    @Override
+    public void init(TracerServerReporter reporter) {
+        this.reporter = reporter;
+    }
+
+    @Override
+    public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+        try {
+            if (!shutDown) {
+                handleEvent(event, sequence, endOfBatch);
+            }
+        } finally {
+            event.resetState();
+        }
+    }
+
+    private void handleEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+        if (event.getType() == null) {
+            return;
+        } else if (event.getType() == ReportingEvent.ReportingEventType.FLUSH) {
+            flush();
+            if (channel != null && shouldRotate()) {
+                rotate();
+            }
+            return;
+        } else if (event.getType() == ReportingEvent.ReportingEventType.SHUTDOWN) {
+            shutDown = true;
+            rotate();
+            return;
+        }
+        processorEventHandler.onEvent(event, sequence, endOfBatch);
+        try {
+            if (channel == null) {
+                openFile();
+            }
+            writeEvent(event);
+        } catch (Exception e) {
+            logger.error("Failed to write event of type {} to {}: {}", event.getType(), currentFile, e.getMessage());
+            logger.debug("File export failure", e);
+            if (channel == null) {
+                // the file could not be opened
+                dropped += getEventCount(event);
+            }
+            // the file may end with a partially written event, continue with a new one
+            discardFile();
+        } finally {
+            event.end();
+        }
+        if (endOfBatch) {
+            flush();
+        }
+        if (channel != null && shouldRotate()) {
+            rotate();
+        }
+    }
+
+    private static int getEventCount(ReportingEvent event) {
+        return event.getType() == ReportingEvent.ReportingEventType.SERIALIZED_EVENTS ? event.getSerializedEventCount() : 1;
+    }
+
+    private void writeEvent(ReportingEvent event) throws IOException {
+        final long start = System.nanoTime();
+        if (event.getTransaction() != null) {
+            pendingEvents++;
+            payloadSerializer.serializeTransactionNdJson(event.getTransaction());
+            reporterMetrics.onEventSerialized(ReportingEvent.ReportingEventType.TRANSACTION, System.nanoTime() - start);
+        } else if (event.getSpan() != null) {
+            pendingEvents++;
+            payloadSerializer.serializeSpanNdJson(event.getSpan());
+            reporterMetrics.onEventSerialized(ReportingEvent.ReportingEventType.SPAN, System.nanoTime() - start);
+        } else if (event.getError() != null) {
+            pendingEvents++;
+            payloadSerializer.serializeErrorNdJson(event.getError());
+            reporterMetrics.onEventSerialized(ReportingEvent.ReportingEventType.ERROR, System.nanoTime() - start);
+        } else if (event.getJsonWriter() != null) {
+            payloadSerializer.writeBytes(event.getJsonWriter().getByteBuffer(), event.getJsonWriter().size());
+        } else if (event.getSerializedEvents() != null) {
+            pendingEvents += event.getSerializedEventCount();
+            payloadSerializer.writeBytes(event.getSerializedEvents(), event.getSerializedOffset(), event.getSerializedLength());
+        }
+    }
+
+    private void openFile() throws Exception {
+        payloadSerializer.blockUntilReady();
+        final long now = System.currentTimeMillis();
+        final File file = new File(directory, String.format("%s%013d-%06d%s", FILE_PREFIX, now, fileSequence++ % 1000000, FILE_SUFFIX));
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        currentFile = file;
+        currentFileCreated = now;
+        currentFileSize = 0;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Exporting events to {}", file);
+        }
+        payloadSerializer.setOutputStream(outputStream);
+        payloadSerializer.appendMetaDataNdJsonToStream();
+        scheduleRotation();
+    }
+
+    /**
+     * Makes sure the rotation interval is checked even if no events are reported
+     */
+    private void scheduleRotation() {
+        final long rotationIntervalMillis = reporterConfiguration.getFileExportRotationInterval().getMillis();
+        if (reporter != null && rotationIntervalMillis > 0) {
+            rotationTask = new FlushOnTimeoutTimerTask(reporter);
+            rotationTimer.schedule(rotationTask, rotationIntervalMillis);
+        }
+    }
+
+    private void cancelRotation() {
+        final TimerTask rotationTask = this.rotationTask;
+        if (rotationTask != null) {
+            rotationTask.cancel();
+            this.rotationTask = null;
+        }
+    }
+
+    private boolean shouldRotate() {
+        final long size = currentFileSize + writeBuffer.position() + payloadSerializer.getBufferSize();
+        if (size >= reporterConfiguration.getFileExportMaxFileSize()) {
+            return true;
+        }
+        final long rotationIntervalMillis = reporterConfiguration.getFileExportRotationInterval().getMillis();
+        return rotationIntervalMillis > 0 && System.currentTimeMillis() - currentFileCreated >= rotationIntervalMillis;
+    }
+
+    /**
+     * Writes the serialized events to the current file
+     */
+    private void flush() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            payloadSerializer.flushToOutputStream();
+            outputStream.flush();
+            reported += pendingEvents;
+            pendingEvents = 0;
+        } catch (IOException e) {
+            logger.error("Failed to write events to {}: {}", currentFile, e.getMessage());
+            logger.debug("File export failure", e);
+            discardFile();
+        }
+    }
+
+    /**
+     * Closes the current file and hands it over to the {@link #rotationExecutor}
+     */
+    private void rotate() {
+        flush();
+        final File file = currentFile;
+        if (!closeFile() || file == null) {
+            return;
+        }
+        try {
+            rotationExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compressAndDeleteOldestFiles(file);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("Too many rotated files are waiting to be compressed, keeping {} uncompressed", file);
+        }
+    }
+
+    /**
+     * Compresses the rotated file and deletes the oldest files if the total size limit is exceeded
+     */
+    private void compressAndDeleteOldestFiles(File file) {
+        if (reporterConfiguration.isFileExportCompress()) {
+            compress(file);
+        }
+        deleteOldestFiles();
+    }
+
+    /**
+     * Closes the current file, dropping all events which have not been written to it yet
+     */
+    private void discardFile() {
+        payloadSerializer.getJsonWriter().reset();
+        writeBuffer.clear();
+        dropped += pendingEvents;
+        pendingEvents = 0;
+        closeFile();
+    }
+
+    /**
+     * @return whether the file has been closed successfully
+     */
+    private boolean closeFile() {
+        final FileChannel channel = this.channel;
+        if (channel == null) {
+            return false;
+        }
+        this.channel = null;
+        this.currentFile = null;
+        cancelRotation();
+        try {
+            channel.close();
+            return true;
+        } catch (IOException e) {
+            logger.warn("Failed to close file export: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void compress(File file) {
+        final File compressed = new File(file.getPath() + COMPRESSED_SUFFIX);
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed), copyBuffer.length);
+                try {
+                    for (int n = in.read(copyBuffer); n >= 0; n = in.read(copyBuffer)) {
+                        out.write(copyBuffer, 0, n);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            if (!file.delete()) {
+                logger.warn("Could not delete {} after compressing it", file);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to compress {}, keeping it uncompressed: {}", file, e.getMessage());
+            if (!compressed.delete()) {
+                logger.debug("Could not delete {}", compressed);
+            }
+        }
+    }
+
+    private void deleteOldestFiles() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final File currentFile = this.currentFile;
+        final List<File> exported = new ArrayList<>();
+        long totalSize = 0;
+        for (File file : files) {
+            if (file.getName().startsWith(FILE_PREFIX) && !file.equals(currentFile)) {
+                exported.add(file);
+                totalSize += file.length();
+            }
+        }
+        Collections.sort(exported, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        final long maxTotalSize = reporterConfiguration.getFileExportMaxTotalSize();
+        for (int i = 0; i < exported.size() && totalSize > maxTotalSize; i++) {
+            final File file = exported.get(i);
+            final long length = file.length();
+            if (file.delete()) {
+                totalSize -= length;
+                logger.debug("Deleted {} as the file export exceeds {} bytes", file, maxTotalSize);
+            } else {
+                logger.warn("Could not delete {}", file);
+            }
+        }
+    }
+
+    @Override
+    public long getReported() {
+        return reported;
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public void close() {
+        logger.info("Exported events: {}", getReported());
+        logger.info("Dropped events: {}", getDropped());
+        // in case the reporter thread did not handle the shutdown event
+        closeFile();
+        rotationTimer.cancel();
+        // lets the compression of the last file finish
+        ExecutorUtils.shutdownAndWaitTermination(rotationExecutor);
+    }
+
+    /**
+     * Copies the serialized events into the {@link #writeBuffer}, which is written to the {@link #channel} when full or when flushed
+     */
+    private class ChannelOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!writeBuffer.hasRemaining()) {
+                flush();
+            }
+            writeBuffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!writeBuffer.hasRemaining()) {
+                    flush();
+                }
+                final int n = Math.min(len, writeBuffer.remaining());
+                writeBuffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (channel == null) {
+                throw new IOException("No file export in progress");
+            }
+            writeBuffer.flip();
+            try {
+                while (writeBuffer.hasRemaining()) {
+                    currentFileSize += channel.write(writeBuffer);
+                }
+            } finally {
+                writeBuffer.clear();
+            }
+        }
+    }
+}
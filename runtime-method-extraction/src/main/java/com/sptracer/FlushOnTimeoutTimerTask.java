@@ -0,0 +1,49 @@
+package com.sptracer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.TimerTask;
+import java.util.concurrent.Future;
+
+/**
+ * Publishes a flush event via {@link TracerServerReporter#flushOnTimeout()},
+ * so that time based work like ending a request or rotating a file happens on the reporter thread.
+ */
+class FlushOnTimeoutTimerTask extends TimerTask {
+    private static final Logger logger = LoggerFactory.getLogger(FlushOnTimeoutTimerTask.class);
+    private final TracerServerReporter reporter;
+    @Nullable
+    private volatile Future<Void> flush;
+
+    FlushOnTimeoutTimerTask(TracerServerReporter reporter) {
+        this.reporter = reporter;
+    }
+
+    @Override
+    public void run() {
+        logger.debug("Request flush because the timeout occurred");
+        try {
+            // If the ring buffer is full this throws an exception.
+            // In case it's full due to a traffic spike it means that it will eventually flush anyway because of
+            // the max request size, but we need to catch this Exception otherwise the Timer thread dies.
+            flush = reporter.flushOnTimeout();
+        } catch (Exception e) {
+            // This shouldn't reoccur when the queue is full due to lack of communication with the APM server
+            // as the TimerTask wouldn't be scheduled unless connection succeeds.
+            logger.info("Failed to register a Flush event to the disruptor: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean cancel() {
+        final boolean cancel = super.cancel();
+        final Future<Void> flush = this.flush;
+        if (flush != null) {
+            flush.cancel(false);
+        }
+        return cancel;
+    }
+}
+
@@ -1,21 +1,25 @@
 package com.sptracer;
 
 import com.dslplatform.json.JsonWriter;
+import com.sptracer.util.ByteUtils;
 import com.sptracer.util.HexUtils;
 
 import javax.annotation.Nullable;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * A 128 bit globally unique ID of the whole trace forest
+ * <p>
+ * The id is stored in one (64 bit ids) or two (128 bit ids) {@code long}s, in big-endian order.
+ * For 64 bit ids, only {@link #low} is used.
+ * </p>
  */
 public class Id implements Recyclable {
 
-    private final byte[] data;
-    private boolean empty = true;
+    private final int lengthBytes;
+    private long high;
+    private long low;
     @Nullable
     private String cachedStringRepresentation;
 
@@ -28,7 +32,7 @@ public class Id implements Recyclable {
     }
 
     private Id(int idLengthBytes) {
-        data = new byte[idLengthBytes];
+        lengthBytes = idLengthBytes;
     }
 
     public void setToRandomValue() {
@@ -36,63 +40,83 @@ public class Id implements Recyclable {
     }
 
     public void setToRandomValue(Random random) {
-        random.nextBytes(data);
-        onMutation(false);
+        // an id which only consists of zeros is invalid
+        do {
+            if (lengthBytes == 16) {
+                high = random.nextLong();
+            }
+            low = random.nextLong();
+        } while (isEmpty());
+        onMutation();
     }
 
-    public void fromHexString(String hexEncodedString, int offset) {
-        HexUtils.nextBytes(hexEncodedString, offset, data);
+    public void fromHexString(CharSequence hexEncodedString, int offset) {
+        int charsToRead = lengthBytes * 2;
+        if (hexEncodedString.length() < offset + charsToRead) {
+            throw new IllegalArgumentException(String.format("Can't read %d bytes from string %s with offset %d", lengthBytes, hexEncodedString, offset));
+        }
+        if (lengthBytes == 16) {
+            high = HexUtils.hexToLong(hexEncodedString, offset);
+            offset += 16;
+        }
+        low = HexUtils.hexToLong(hexEncodedString, offset);
         onMutation();
     }
 
     /**
      * Sets the id based on a byte array
      *
-     * @param bytes the byte array used to fill this id's {@link #data}
+     * @param bytes the byte array used to fill this id
      * @param offset the offset in the byte array
      * @return the number of read bytes which is equivalent to {@link #getLength()}
      */
     public int fromBytes(byte[] bytes, int offset) {
-        System.arraycopy(bytes, offset, data, 0, data.length);
+        if (lengthBytes == 16) {
+            high = ByteUtils.getLong(bytes, offset);
+            offset += 8;
+        }
+        low = ByteUtils.getLong(bytes, offset);
         onMutation();
-        return data.length;
+        return lengthBytes;
     }
 
     public int toBytes(byte[] bytes, int offset) {
-        System.arraycopy(data, 0, bytes, offset, data.length);
-        return offset + data.length;
+        if (lengthBytes == 16) {
+            ByteUtils.putLong(bytes, offset, high);
+            offset += 8;
+        }
+        ByteUtils.putLong(bytes, offset, low);
+        return offset + 8;
     }
 
     public void fromLongs(long... values) {
-        if (values.length * Long.BYTES != data.length) {
+        if (values.length * Long.BYTES != lengthBytes) {
             throw new IllegalArgumentException("Invalid number of long values");
         }
-        final ByteBuffer buffer = ByteBuffer.wrap(data);
-        for (long value : values) {
-            buffer.putLong(value);
+        if (lengthBytes == 16) {
+            high = values[0];
+            low = values[1];
+        } else {
+            low = values[0];
         }
         onMutation();
     }
 
     @Override
     public void resetState() {
-        Arrays.fill(data, (byte) 0);
-        onMutation(true);
+        high = 0;
+        low = 0;
+        onMutation();
     }
 
     public void copyFrom(Id other) {
-        System.arraycopy(other.data, 0, data, 0, data.length);
+        this.high = other.high;
+        this.low = other.low;
         this.cachedStringRepresentation = other.cachedStringRepresentation;
-        this.empty = other.empty;
     }
 
     private void onMutation() {
-        onMutation(isAllZeros(data));
-    }
-
-    private void onMutation(boolean empty) {
         cachedStringRepresentation = null;
-        this.empty = empty;
     }
 
     @Override
@@ -100,52 +124,63 @@ public class Id implements Recyclable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Id that = (Id) o;
-        return Arrays.equals(data, that.data);
+        return lengthBytes == that.lengthBytes && high == that.high && low == that.low;
     }
 
     public boolean dataEquals(byte[] data, int offset) {
-        byte[] thisData = this.data;
-        for (int i = 0; i < thisData.length; i++) {
-            if (thisData[i] != data[i + offset]) {
+        if (lengthBytes == 16) {
+            if (high != ByteUtils.getLong(data, offset)) {
                 return false;
             }
+            offset += 8;
         }
-        return true;
+        return low == ByteUtils.getLong(data, offset);
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(data);
+        return 31 * Long.hashCode(high) + Long.hashCode(low);
     }
 
     @Override
     public String toString() {
         String s = cachedStringRepresentation;
         if (s == null) {
-            s = cachedStringRepresentation = HexUtils.bytesToHex(data);
+            StringBuilder sb = new StringBuilder(lengthBytes * 2);
+            writeAsHex(sb);
+            s = cachedStringRepresentation = sb.toString();
         }
         return s;
     }
 
     public boolean isEmpty() {
-        return empty;
+        return high == 0 && low == 0;
     }
 
-    private static boolean isAllZeros(byte[] bytes) {
-        for (byte b : bytes) {
-            if (b != 0) {
-                return false;
-            }
+    public void writeAsHex(JsonWriter jw) {
+        if (lengthBytes == 16) {
+            HexUtils.writeAsHex(high, jw);
         }
-        return true;
+        HexUtils.writeAsHex(low, jw);
     }
 
-    public void writeAsHex(JsonWriter jw) {
-        HexUtils.writeBytesAsHex(data, jw);
+    public void writeAsHex(StringBuilder sb) {
+        if (lengthBytes == 16) {
+            HexUtils.writeAsHex(high, sb);
+        }
+        HexUtils.writeAsHex(low, sb);
     }
 
-    public void writeAsHex(StringBuilder sb) {
-        HexUtils.writeBytesAsHex(data, sb);
+    /**
+     * Writes the hex (ASCII) representation of this id into the provided buffer
+     *
+     * @return the offset after the last written byte
+     */
+    public int writeAsHex(byte[] buffer, int offset) {
+        if (lengthBytes == 16) {
+            offset = HexUtils.writeAsHex(high, buffer, offset);
+        }
+        return HexUtils.writeAsHex(low, buffer, offset);
     }
 
     /**
@@ -161,21 +196,24 @@ public class Id implements Recyclable {
      * @return the last 8 bytes of this id as a {@code long}
      */
     public long getLeastSignificantBits() {
-        return readLong(data.length - 8);
+        return low;
     }
 
     /**
      * Converts the next 8 bytes, starting from the offset, to a {@code long}
+     *
+     * @param offset either {@code 0} or, for 128 bit ids, {@code 8}
      */
     public long readLong(int offset) {
-        long lsb = 0;
-        for (int i = offset; i < offset + 8; i++) {
-            lsb = (lsb << 8) | (data[i] & 0xff);
+        if (lengthBytes == 16 && offset == 0) {
+            return high;
+        } else if (offset == lengthBytes - 8) {
+            return low;
         }
-        return lsb;
+        throw new IllegalArgumentException("Invalid offset " + offset + " for an id of " + lengthBytes + " bytes");
     }
 
     int getLength() {
-        return data.length;
+        return lengthBytes;
     }
 }
@@ -0,0 +1,17 @@
+package com.sptracer;
+
+/**
+ * Determines how the events are encoded in the requests to the intake API, see {@link ReporterConfiguration#getIntakeEncoding()}
+ */
+public enum IntakeEncoding {
+
+    /**
+     * ND-JSON, as understood by the APM server
+     */
+    JSON,
+    /**
+     * The compact binary encoding of the {@link BinaryPayloadSerializer},
+     * which requires an intake server that decodes it via the {@link BinaryPayloadDecoder}
+     */
+    BINARY
+}
@@ -1,14 +1,16 @@
 package com.sptracer;
 
+import com.dslplatform.json.JsonWriter;
 import com.sptracer.util.ThreadUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.Future;
 
 /**
  * This reporter supports the nd-json HTTP streaming based intake v2 protocol
@@ -16,23 +18,85 @@ import java.util.concurrent.Future;
 public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler implements ReportingEventHandler {
 
     public static final String INTAKE_V2_URL = "/intake/v2/events";
+    /**
+     * How often spooled events are replayed while no events are reported, matches the unit of {@link ReporterConfiguration#getSpoolReplayRate()}
+     */
+    private static final long REPLAY_INTERVAL_MILLIS = 1000;
     private final ProcessorEventHandler processorEventHandler;
     private final Timer timeoutTimer;
     @Nullable
     private TracerServerReporter reporter;
     @Nullable
     private TimerTask timeoutTask;
+    /**
+     * Triggers {@link #replayWhileIdle()} while no request is in progress
+     */
+    @Nullable
+    private TimerTask replayTask;
+    /**
+     * Buffers the events while the APM server can't be reached, see {@link ReporterConfiguration#getSpoolDir()}
+     */
+    @Nullable
+    private final DiskSpool spool;
+    private final DiskSpool.RecordHandler replayHandler = new DiskSpool.RecordHandler() {
+        @Override
+        public void onRecord(byte[] buffer, int length, int eventCount) throws IOException {
+            payloadSerializer.writeBytes(buffer, 0, length);
+            replayedInRequest += eventCount;
+            replayAllowance -= length;
+        }
+    };
+    /**
+     * The number of events serialized into the {@link #payloadSerializer}'s buffer which have not been written to the {@link #spool} yet
+     */
+    private int spoolPendingEvents;
+    /**
+     * The number of spooled events which have been written to the current request
+     */
+    private long replayedInRequest;
+    /**
+     * The number of spooled bytes which may currently be replayed
+     */
+    private long replayAllowance;
+    private long lastReplayAllowanceRefill;
+    /**
+     * When spooling, the reporter thread doesn't block when backing off but spools the events until this time
+     */
+    private long backoffUntil;
+    /**
+     * The metadata line of this run, which the spooled events are recorded with
+     */
+    @Nullable
+    private byte[] spoolMetadata;
+    /**
+     * If set, the metadata the request which is about to be started begins with, instead of the metadata of this run
+     */
+    @Nullable
+    private byte[] replayMetadata;
 
+    /**
+     * @param spool        buffers the events while the APM server can't be reached if set, see {@link ReporterConfiguration#getSpoolDir()}
+     * @param asyncSender  sends the requests on separate threads if set, see {@link ReporterConfiguration#isAsyncSending()}
+     * @param dependencies provides the compression and the metrics shared with the rest of the reporter
+     */
     public IntakeV2ReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
-                                         PayloadSerializer payloadSerializer, TracerServerClient tracerServerClient) {
-        super(reporterConfiguration, payloadSerializer, tracerServerClient);
+                                         PayloadSerializer payloadSerializer, TracerServerClient tracerServerClient,
+                                         @Nullable DiskSpool spool, @Nullable AsyncRequestSender asyncSender,
+                                         ReporterDependencies dependencies) {
+        super(reporterConfiguration, payloadSerializer, tracerServerClient, asyncSender, dependencies);
         this.processorEventHandler = processorEventHandler;
+        this.spool = spool;
         this.timeoutTimer = new Timer(ThreadUtils.addElasticApmThreadPrefix("request-timeout-timer"), true);
     }
 
     @Override
     public void init(TracerServerReporter reporter) {
         this.reporter = reporter;
+        if (asyncSender != null) {
+            asyncSender.start();
+        }
+        // replays the segments of a previous run
+        scheduleReplay();
     }
 
     @Override
@@ -54,37 +118,305 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         if (event.getType() == null) {
             return;
         } else if (event.getType() == ReportingEvent.ReportingEventType.FLUSH) {
-            endRequest();
+            flushSpoolBatch();
+            endRequest(event.isFlushOnTimeout() ? ReporterMetrics.FlushReason.TIME : ReporterMetrics.FlushReason.EXPLICIT);
+            replayWhileIdle();
             return;
         } else if (event.getType() == ReportingEvent.ReportingEventType.SHUTDOWN) {
             shutDown = true;
-            endRequest();
+            flushSpoolBatch();
+            endRequest(ReporterMetrics.FlushReason.EXPLICIT);
             return;
         }
         processorEventHandler.onEvent(event, sequence, endOfBatch);
+        // the number of events in the current request before this event, -1 if the event is not being written to the request
+        long transmittingBeforeEvent = -1;
         try {
-            if (connection == null) {
-                connection = startRequest(INTAKE_V2_URL);
+            if (!isRequestInProgress() && !isBackingOff()) {
+                // the buffer of the serializer is about to be attached to the request's output stream
+                flushSpoolBatch();
+                if (asyncSender != null) {
+                    startBufferedRequest(INTAKE_V2_URL);
+                } else {
+                    connection = startRequest(INTAKE_V2_URL);
+                }
             }
-            if (connection != null) {
+            if (isRequestInProgress()) {
+                payloadSerializer.mark();
+                transmittingBeforeEvent = currentlyTransmitting;
                 writeEvent(event);
+                transmittingBeforeEvent = -1;
+                replaySpooledEvents();
+            } else if (spool != null) {
+                spoolEvent(event, spool);
             } else {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Failed to get APM server connection, dropping event: {}", event);
                 }
-                dropped++;
+                dropped += getEventCount(event);
             }
         } catch (Exception e) {
             logger.error("Failed to handle event of type {} with this error: {}", event.getType(), e.getMessage());
             logger.debug("Event handling failure", e);
-            endRequest();
-            onConnectionError(null, currentlyTransmitting + 1, 0);
+            if (requestBuffer != null) {
+                // nothing has been sent yet, so there's no need to back off
+                dropped += getEventCount(event);
+                if (transmittingBeforeEvent >= 0) {
+                    currentlyTransmitting = transmittingBeforeEvent;
+                }
+                if (transmittingBeforeEvent < 0 || !payloadSerializer.resetToMark()) {
+                    // the request may contain a partially serialized event
+                    cancelTimeout();
+                    discardBufferedRequest();
+                }
+            } else {
+                endRequest();
+                onConnectionError(null, currentlyTransmitting + (trySpoolEvent(event) ? 0 : getEventCount(event)), 0);
+            }
         } finally {
             event.end();
         }
 
+        if (endOfBatch && !isRequestInProgress()) {
+            flushSpoolBatch();
+        }
         if (shouldEndRequest()) {
+            endRequest(ReporterMetrics.FlushReason.SIZE);
+        }
+    }
+
+    private static int getEventCount(ReportingEvent event) {
+        return event.getType() == ReportingEvent.ReportingEventType.SERIALIZED_EVENTS ? event.getSerializedEventCount() : 1;
+    }
+
+    private boolean isBackingOff() {
+        return spool != null && System.currentTimeMillis() < backoffUntil;
+    }
+
+    /**
+     * Serializes the event into the buffer of the {@link #payloadSerializer}, which is written to the spool in batches
+     */
+    private void spoolEvent(ReportingEvent event, DiskSpool spool) {
+        if (event.getSerializedEvents() != null) {
+            final byte[] metadata = getSpoolMetadata();
+            if (metadata == null || !spool.append(metadata, event.getSerializedEvents(), event.getSerializedOffset(),
+                event.getSerializedLength(), event.getSerializedEventCount())) {
+                dropped += event.getSerializedEventCount();
+            }
+            return;
+        }
+        if (event.getTransaction() != null) {
+            payloadSerializer.serializeTransactionNdJson(event.getTransaction());
+            spoolPendingEvents++;
+        } else if (event.getSpan() != null) {
+            payloadSerializer.serializeSpanNdJson(event.getSpan());
+            spoolPendingEvents++;
+        } else if (event.getError() != null) {
+            payloadSerializer.serializeErrorNdJson(event.getError());
+            spoolPendingEvents++;
+        } else if (event.getJsonWriter() != null) {
+            payloadSerializer.writeBytes(event.getJsonWriter().getByteBuffer(), event.getJsonWriter().size());
+        }
+        if (payloadSerializer.getBufferSize() >= DslJsonSerializer.BUFFER_SIZE) {
+            flushSpoolBatch();
+        }
+    }
+
+    /**
+     * Spools an event which could not be sent because the connection failed
+     *
+     * @return {@code true} if the event has been spooled
+     */
+    private boolean trySpoolEvent(ReportingEvent event) {
+        if (spool == null) {
+            return false;
+        }
+        try {
+            // the buffer may contain a partially serialized event or still be attached to the output stream of a failed request
+            payloadSerializer.getJsonWriter().reset();
+            dropped += spoolPendingEvents;
+            spoolPendingEvents = 0;
+            spoolEvent(event, spool);
+            return true;
+        } catch (Exception e) {
+            logger.debug("Failed to spool event", e);
+            return false;
+        }
+    }
+
+    private void flushSpoolBatch() {
+        if (spool == null || isRequestInProgress()) {
+            return;
+        }
+        JsonWriter jw = payloadSerializer.getJsonWriter();
+        if (jw.size() > 0) {
+            final byte[] metadata = getSpoolMetadata();
+            if (metadata == null || !spool.append(metadata, jw.getByteBuffer(), 0, jw.size(), spoolPendingEvents)) {
+                dropped += spoolPendingEvents;
+            }
+            scheduleReplay();
+        }
+        jw.reset();
+        spoolPendingEvents = 0;
+    }
+
+    /**
+     * @return the metadata line of this run, or {@code null} if it's not available yet
+     */
+    @Nullable
+    private byte[] getSpoolMetadata() {
+        if (spoolMetadata == null) {
+            try {
+                payloadSerializer.blockUntilReady();
+                spoolMetadata = payloadSerializer.getMetaDataNdJson();
+            } catch (Exception e) {
+                logger.debug("Metadata is not available, dropping events instead of spooling them", e);
+            }
+        }
+        return spoolMetadata;
+    }
+
+    /**
+     * Writes spooled events to the current request, limited to {@link ReporterConfiguration#getSpoolReplayRate()} bytes per second,
+     * so that the APM server is not overwhelmed after it has recovered.
+     * <p>
+     * Events which have been spooled by a previous run are sent in separate requests,
+     * which start with the metadata these events have been spooled with.
+     * </p>
+     */
+    private void replaySpooledEvents() throws IOException {
+        if (spool == null || !spool.hasUnreadRecords()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long rate = reporterConfiguration.getSpoolReplayRate();
+        replayAllowance = Math.min(rate, replayAllowance + (now - lastReplayAllowanceRefill) * rate / 1000);
+        lastReplayAllowanceRefill = now;
+        final byte[] metadata = getSpoolMetadata();
+        if (metadata == null) {
+            return;
+        }
+        if (isRequestInProgress()) {
+            replayRecords(spool, metadata);
+        }
+        byte[] previousRunMetadata;
+        while (replayAllowance > 0 && !isBackingOff()
+            && (previousRunMetadata = spool.getUnreadMetadata()) != null && !Arrays.equals(previousRunMetadata, metadata)) {
             endRequest();
+            replayMetadata = previousRunMetadata;
+            try {
+                connection = startRequest(INTAKE_V2_URL);
+                if (connection == null) {
+                    return;
+                }
+                replayRecords(spool, previousRunMetadata);
+            } catch (Exception e) {
+                logger.error("Failed to replay spooled events: {}", e.getMessage());
+                logger.debug("Spool replay failure", e);
+                if (isRequestInProgress()) {
+                    endRequest();
+                } else {
+                    onConnectionError(null, 0, 0);
+                }
+                return;
+            } finally {
+                replayMetadata = null;
+            }
+            endRequest();
+        }
+    }
+
+    /**
+     * Replays spooled events while no events are reported, so that the spool is drained even if the application is idle.
+     * Called for each {@link ReportingEvent.ReportingEventType#FLUSH} event, which includes the ones scheduled via {@link #scheduleReplay()}.
+     */
+    private void replayWhileIdle() {
+        cancelReplay();
+        if (spool == null || isRequestInProgress() || !spool.hasUnreadRecords()) {
+            return;
+        }
+        final byte[] metadata = getSpoolMetadata();
+        if (!isBackingOff() && metadata != null) {
+            try {
+                if (Arrays.equals(spool.getUnreadMetadata(), metadata)) {
+                    connection = startRequest(INTAKE_V2_URL);
+                }
+                replaySpooledEvents();
+                endRequest();
+            } catch (Exception e) {
+                logger.error("Failed to replay spooled events: {}", e.getMessage());
+                logger.debug("Spool replay failure", e);
+                if (isRequestInProgress()) {
+                    endRequest();
+                } else {
+                    onConnectionError(null, 0, 0);
+                }
+            }
+        }
+        scheduleReplay();
+    }
+
+    /**
+     * Schedules a flush which triggers {@link #replayWhileIdle()}, once the back-off is over
+     */
+    private void scheduleReplay() {
+        if (reporter != null && replayTask == null && spool != null && spool.hasUnreadRecords()) {
+            replayTask = new FlushOnTimeoutTimerTask(reporter);
+            timeoutTimer.schedule(replayTask, Math.max(REPLAY_INTERVAL_MILLIS, backoffUntil - System.currentTimeMillis()));
+        }
+    }
+
+    private void cancelReplay() {
+        if (replayTask != null) {
+            replayTask.cancel();
+            replayTask = null;
+        }
+    }
+
+    private void replayRecords(DiskSpool spool, byte[] metadata) throws IOException {
+        while (replayAllowance > 0 && !shouldEndRequest() && spool.readNext(metadata, replayHandler)) {
+            // the handler writes the records to the request
+        }
+    }
+
+    @Override
+    protected void appendMetaData() throws Exception {
+        final byte[] replayMetadata = this.replayMetadata;
+        if (replayMetadata != null) {
+            payloadSerializer.writeBytes(replayMetadata, replayMetadata.length);
+        } else {
+            super.appendMetaData();
+        }
+    }
+
+    @Override
+    protected void onRequestSuccess() {
+        super.onRequestSuccess();
+        if (spool != null && replayedInRequest > 0) {
+            reported += replayedInRequest;
+            replayedInRequest = 0;
+            spool.commit();
+        }
+    }
+
+    @Override
+    protected void onConnectionError(@Nullable Integer responseCode, long droppedEvents, long reportedEvents) {
+        if (spool != null && replayedInRequest > 0) {
+            // the replayed events are not lost, they are replayed again with the next request
+            replayedInRequest = 0;
+            spool.rewind();
+        }
+        super.onConnectionError(responseCode, droppedEvents, reportedEvents);
+    }
+
+    @Override
+    protected void backoff(long backoffTimeMillis) {
+        if (spool != null) {
+            backoffUntil = System.currentTimeMillis() + backoffTimeMillis;
+            reporterMetrics.onBackoff(backoffTimeMillis);
+            scheduleReplay();
+        } else {
+            super.backoff(backoffTimeMillis);
         }
     }
 
@@ -97,18 +429,25 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         return payloadSerializer.getBufferSize();
     }
 
-    private void writeEvent(ReportingEvent event) {
+    private void writeEvent(ReportingEvent event) throws IOException {
+        final long start = System.nanoTime();
         if (event.getTransaction() != null) {
             currentlyTransmitting++;
             payloadSerializer.serializeTransactionNdJson(event.getTransaction());
+            reporterMetrics.onEventSerialized(ReportingEvent.ReportingEventType.TRANSACTION, System.nanoTime() - start);
         } else if (event.getSpan() != null) {
             currentlyTransmitting++;
             payloadSerializer.serializeSpanNdJson(event.getSpan());
+            reporterMetrics.onEventSerialized(ReportingEvent.ReportingEventType.SPAN, System.nanoTime() - start);
         } else if (event.getError() != null) {
             currentlyTransmitting++;
             payloadSerializer.serializeErrorNdJson(event.getError());
+            reporterMetrics.onEventSerialized(ReportingEvent.ReportingEventType.ERROR, System.nanoTime() - start);
         } else if (event.getJsonWriter() != null) {
             payloadSerializer.writeBytes(event.getJsonWriter().getByteBuffer(), event.getJsonWriter().size());
+        } else if (event.getSerializedEvents() != null) {
+            currentlyTransmitting += event.getSerializedEventCount();
+            payloadSerializer.writeBytes(event.getSerializedEvents(), event.getSerializedOffset(), event.getSerializedLength());
         }
     }
 
@@ -124,64 +463,53 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     protected HttpURLConnection startRequest(String endpoint) throws Exception {
         HttpURLConnection connection = super.startRequest(endpoint);
         if (connection != null) {
-            if (reporter != null) {
-                timeoutTask = new FlushOnTimeoutTimerTask(reporter);
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Scheduling request timeout in {}", reporterConfiguration.getApiRequestTime());
-                }
-                timeoutTimer.schedule(timeoutTask, reporterConfiguration.getApiRequestTime().getMillis());
-            }
+            scheduleTimeout();
         }
         return connection;
     }
 
+    @Override
+    protected boolean startBufferedRequest(String endpoint) throws Exception {
+        boolean started = super.startBufferedRequest(endpoint);
+        if (started) {
+            scheduleTimeout();
+        }
+        return started;
+    }
+
+    private void scheduleTimeout() {
+        // while a request is in progress, spooled events are replayed along with the reported events
+        cancelReplay();
+        if (reporter != null) {
+            timeoutTask = new FlushOnTimeoutTimerTask(reporter);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Scheduling request timeout in {}", reporterConfiguration.getApiRequestTime());
+            }
+            timeoutTimer.schedule(timeoutTask, reporterConfiguration.getApiRequestTime().getMillis());
+        }
+    }
+
     @Override
     public void endRequest() {
         cancelTimeout();
         super.endRequest();
     }
 
+    private void endRequest(ReporterMetrics.FlushReason reason) {
+        if (isRequestInProgress()) {
+            reporterMetrics.onFlush(reason);
+        }
+        endRequest();
+    }
+
     @Override
     public void close() {
         super.close();
-        logger.info("Reported events: {}", reported);
-        logger.info("Dropped events: {}", dropped);
+        logger.info("Reported events: {}", getReported());
+        logger.info("Dropped events: {}", getDropped());
         timeoutTimer.cancel();
-    }
-
-    private static class FlushOnTimeoutTimerTask extends TimerTask {
-        private static final Logger logger = LoggerFactory.getLogger(FlushOnTimeoutTimerTask.class);
-        private final TracerServerReporter reporter;
-        @Nullable
-        private volatile Future<Void> flush;
-
-        private FlushOnTimeoutTimerTask(TracerServerReporter reporter) {
-            this.reporter = reporter;
-        }
-
-        @Override
-        public void run() {
-            logger.debug("Request flush because the request timeout occurred");
-            try {
-                // If the ring buffer is full this throws an exception.
-                // In case it's full due to a traffic spike it means that it will eventually flush anyway because of
-                // the max request size, but we need to catch this Exception otherwise the Timer thread dies.
-                flush = reporter.flush();
-            } catch (Exception e) {
-                // This shouldn't reoccur when the queue is full due to lack of communication with the APM server
-                // as the TimerTask wouldn't be scheduled unless connection succeeds.
-                logger.info("Failed to register a Flush event to the disruptor: {}", e.getMessage());
-            }
-        }
-
-        @Override
-        public boolean cancel() {
-            final boolean cancel = super.cancel();
-            final Future<Void> flush = this.flush;
-            if (flush != null) {
-                flush.cancel(false);
-            }
-            return cancel;
+        if (spool != null) {
+            spool.close();
         }
     }
 
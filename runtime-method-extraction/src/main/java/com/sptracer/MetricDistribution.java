@@ -0,0 +1,93 @@
+package com.sptracer;
+
+import com.sptracer.metrics.DoubleSupplier;
+import com.sptracer.metrics.Labels;
+import com.sptracer.metrics.MetricRegistry;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Records the distribution of a value, for example a duration or a size, and reports it as gauges of the median,
+ * the 99th percentile, the maximum and the count, which cover the values recorded since the previous metrics report.
+ * <p>
+ * The gauges are read one at a time, so the values are only swapped out when a gauge is read again,
+ * which means that a new report has started.
+ * This makes sure all gauges of a report are based on the same values, regardless of the metrics interval.
+ * </p>
+ * <p>
+ * Values can be recorded by multiple threads concurrently.
+ * </p>
+ */
+class MetricDistribution {
+
+    private static final int P50 = 0;
+    private static final int P99 = 1;
+    private static final int MAX = 2;
+    private static final int COUNT = 3;
+    private static final int ALL_GAUGES = (1 << P50) | (1 << P99) | (1 << MAX) | (1 << COUNT);
+
+    private final long highestTrackableValue;
+    private final Recorder recorder;
+    private Histogram snapshot;
+    /**
+     * A bit for each gauge which has read the current {@link #snapshot}.
+     * Initially all bits are set, so that the first read takes a snapshot.
+     */
+    private int readGauges = ALL_GAUGES;
+
+    /**
+     * @param highestTrackableValue higher values are recorded as this value
+     */
+    MetricDistribution(long highestTrackableValue) {
+        this.highestTrackableValue = highestTrackableValue;
+        this.recorder = new Recorder(highestTrackableValue, 2);
+        this.snapshot = recorder.getIntervalHistogram();
+    }
+
+    void record(long value) {
+        recorder.recordValue(Math.max(0, Math.min(value, highestTrackableValue)));
+    }
+
+    /**
+     * @param gauge the gauge which reads the snapshot
+     */
+    private synchronized Histogram getSnapshot(int gauge) {
+        final int bit = 1 << gauge;
+        if ((readGauges & bit) != 0) {
+            snapshot = recorder.getIntervalHistogram(snapshot);
+            readGauges = 0;
+        }
+        readGauges |= bit;
+        return snapshot;
+    }
+
+    /**
+     * Registers the gauges {@code <name>.p50}, {@code <name>.p99}, {@code <name>.max} and {@code <name>.count}
+     */
+    void registerMetrics(MetricRegistry metricRegistry, String name, Labels labels) {
+        metricRegistry.add(name + ".p50", labels, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getSnapshot(P50).getValueAtPercentile(50);
+            }
+        });
+        metricRegistry.add(name + ".p99", labels, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getSnapshot(P99).getValueAtPercentile(99);
+            }
+        });
+        metricRegistry.add(name + ".max", labels, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getSnapshot(MAX).getMaxValue();
+            }
+        });
+        metricRegistry.add(name + ".count", labels, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getSnapshot(COUNT).getTotalCount();
+            }
+        });
+    }
+}
@@ -0,0 +1,61 @@
+package com.sptracer;
+
+import com.dslplatform.json.JsonWriter;
+import com.sptracer.impl.SpTracerImpl;
+import com.sptracer.metrics.Labels;
+import com.sptracer.metrics.MetricRegistry;
+import com.sptracer.metrics.MetricSet;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically reports the metrics of the tracer's {@link MetricRegistry}, including the breakdown metrics,
+ * every {@link ReporterConfiguration#getMetricsIntervalMs()}.
+ */
+public class MetricRegistryReporter extends AbstractLifecycleListener implements MetricRegistry.MetricsReporter, Runnable {
+
+    private final Reporter reporter;
+    private final SpTracerImpl tracer;
+    private final MetricRegistry metricRegistry;
+    private final MetricRegistrySerializer serializer = new MetricRegistrySerializer();
+
+    public MetricRegistryReporter(SpTracerImpl tracer, Reporter reporter) {
+        this.tracer = tracer;
+        this.reporter = reporter;
+        this.metricRegistry = tracer.getMetricRegistry();
+    }
+
+    @Override
+    public void start(SpTracerImpl tracer) {
+        long intervalMs = tracer.getConfig(ReporterConfiguration.class).getMetricsIntervalMs();
+        if (intervalMs > 0) {
+            tracer.getSharedSingleThreadedPool().scheduleAtFixedRate(this, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void run() {
+        metricRegistry.flipPhaseAndReport(this);
+    }
+
+    @Override
+    public void report(Map<? extends Labels, MetricSet> metricSets) {
+        if (tracer.isRunning()) {
+            long timestamp = System.currentTimeMillis() * 1000;
+            for (MetricSet metricSet : metricSets.values()) {
+                JsonWriter jw = serializer.serialize(metricSet, timestamp);
+                if (jw != null) {
+                    reporter.report(jw);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        // flushing out metrics before shutting down
+        // this is especially important for counters as the counts that were accumulated between the last report and the shutdown would otherwise get lost
+        tracer.getSharedSingleThreadedPool().submit(this);
+    }
+}
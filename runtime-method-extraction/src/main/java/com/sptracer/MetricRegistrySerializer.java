@@ -0,0 +1,179 @@
+package com.sptracer;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonWriter;
+import com.dslplatform.json.NumberConverter;
+import com.sptracer.metrics.DoubleSupplier;
+import com.sptracer.metrics.Labels;
+import com.sptracer.metrics.MetricSet;
+import com.sptracer.metrics.Timer;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serializes a {@link MetricSet} into the {@code metricset} intake API event.
+ * <p>
+ * Not thread safe, a dedicated instance has to be used per reporting thread.
+ * </p>
+ */
+public class MetricRegistrySerializer {
+
+    private static final byte NEW_LINE = '\n';
+    private static final int BUFFER_SIZE_LIMIT = 2048;
+
+    private final DslJson<Object> dslJson = new DslJson<>(new DslJson.Settings<>());
+    private final StringBuilder replaceBuilder = new StringBuilder();
+    /**
+     * The size of the largest metric set serialized so far, used to size the buffer of the next {@link JsonWriter}
+     */
+    private int maxSerializedSize = 512;
+
+    /**
+     * @return a new {@link JsonWriter} holding the serialized metric set, or {@code null} if the metric set is empty
+     */
+    @Nullable
+    public JsonWriter serialize(MetricSet metricSet, long epochMicros) {
+        if (!metricSet.hasContent()) {
+            return null;
+        }
+        JsonWriter jw = dslJson.newWriter(maxSerializedSize);
+        serializeMetricSet(metricSet, epochMicros, replaceBuilder, jw);
+        jw.writeByte(NEW_LINE);
+        maxSerializedSize = Math.max(Math.min(jw.size(), BUFFER_SIZE_LIMIT), maxSerializedSize);
+        return jw;
+    }
+
+    static void serializeMetricSet(MetricSet metricSet, long epochMicros, StringBuilder replaceBuilder, JsonWriter jw) {
+        jw.writeByte(JsonWriter.OBJECT_START);
+        DslJsonSerializer.writeFieldName("metricset", jw);
+        jw.writeByte(JsonWriter.OBJECT_START);
+        DslJsonSerializer.writeFieldName("timestamp", jw);
+        NumberConverter.serialize(epochMicros, jw);
+        jw.writeByte(JsonWriter.COMMA);
+        serializeLabels(metricSet.getLabels(), replaceBuilder, jw);
+        DslJsonSerializer.writeFieldName("samples", jw);
+        jw.writeByte(JsonWriter.OBJECT_START);
+        boolean hasSamples = serializeGauges(metricSet.getGauges(), jw);
+        hasSamples |= serializeTimers(metricSet.getTimers(), hasSamples, jw);
+        serializeCounters(metricSet.getCounters(), hasSamples, jw);
+        jw.writeByte(JsonWriter.OBJECT_END);
+        jw.writeByte(JsonWriter.OBJECT_END);
+        jw.writeByte(JsonWriter.OBJECT_END);
+    }
+
+    private static void serializeLabels(Labels labels, StringBuilder replaceBuilder, JsonWriter jw) {
+        if (labels.getTransactionName() != null || labels.getTransactionType() != null) {
+            DslJsonSerializer.writeFieldName("transaction", jw);
+            jw.writeByte(JsonWriter.OBJECT_START);
+            if (labels.getTransactionName() != null) {
+                DslJsonSerializer.writeFieldName("name", jw);
+                DslJsonSerializer.writeStringValue(labels.getTransactionName(), replaceBuilder, jw);
+                if (labels.getTransactionType() != null) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+            }
+            if (labels.getTransactionType() != null) {
+                DslJsonSerializer.writeFieldName("type", jw);
+                DslJsonSerializer.writeStringValue(labels.getTransactionType(), replaceBuilder, jw);
+            }
+            jw.writeByte(JsonWriter.OBJECT_END);
+            jw.writeByte(JsonWriter.COMMA);
+        }
+        if (labels.getSpanType() != null) {
+            DslJsonSerializer.writeFieldName("span", jw);
+            jw.writeByte(JsonWriter.OBJECT_START);
+            DslJsonSerializer.writeFieldName("type", jw);
+            DslJsonSerializer.writeStringValue(labels.getSpanType(), replaceBuilder, jw);
+            if (labels.getSpanSubType() != null) {
+                jw.writeByte(JsonWriter.COMMA);
+                DslJsonSerializer.writeFieldName("subtype", jw);
+                DslJsonSerializer.writeStringValue(labels.getSpanSubType(), replaceBuilder, jw);
+            }
+            jw.writeByte(JsonWriter.OBJECT_END);
+            jw.writeByte(JsonWriter.COMMA);
+        }
+        if (!labels.isEmpty()) {
+            DslJsonSerializer.writeFieldName("tags", jw);
+            jw.writeByte(JsonWriter.OBJECT_START);
+            for (int i = 0; i < labels.size(); i++) {
+                if (i > 0) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                DslJsonSerializer.writeFieldName(labels.getKey(i), jw);
+                DslJsonSerializer.writeStringValue(labels.getValue(i), replaceBuilder, jw);
+            }
+            jw.writeByte(JsonWriter.OBJECT_END);
+            jw.writeByte(JsonWriter.COMMA);
+        }
+    }
+
+    private static boolean serializeGauges(Map<String, DoubleSupplier> gauges, JsonWriter jw) {
+        boolean hasSamples = false;
+        for (Map.Entry<String, DoubleSupplier> entry : gauges.entrySet()) {
+            double value = entry.getValue().get();
+            if (isValid(value)) {
+                if (hasSamples) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                serializeValue(entry.getKey(), value, jw);
+                hasSamples = true;
+            }
+        }
+        return hasSamples;
+    }
+
+    private static boolean serializeTimers(Map<String, Timer> timers, boolean hasSamples, JsonWriter jw) {
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            Timer timer = entry.getValue();
+            if (timer.hasContent()) {
+                if (hasSamples) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                serializeValue(entry.getKey(), ".sum.us", timer.getTotalTimeUs(), jw);
+                jw.writeByte(JsonWriter.COMMA);
+                serializeValue(entry.getKey(), ".count", timer.getCount(), jw);
+                hasSamples = true;
+            }
+        }
+        return hasSamples;
+    }
+
+    private static void serializeCounters(Map<String, AtomicLong> counters, boolean hasSamples, JsonWriter jw) {
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            long value = entry.getValue().get();
+            if (value > 0) {
+                if (hasSamples) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                serializeValue(entry.getKey(), "", value, jw);
+                hasSamples = true;
+            }
+        }
+    }
+
+    private static void serializeValue(String key, String suffix, long value, JsonWriter jw) {
+        jw.writeByte(JsonWriter.QUOTE);
+        jw.writeAscii(key);
+        jw.writeAscii(suffix);
+        jw.writeByte(JsonWriter.QUOTE);
+        jw.writeByte(JsonWriter.SEMI);
+        jw.writeByte(JsonWriter.OBJECT_START);
+        DslJsonSerializer.writeFieldName("value", jw);
+        NumberConverter.serialize(value, jw);
+        jw.writeByte(JsonWriter.OBJECT_END);
+    }
+
+    private static void serializeValue(String key, double value, JsonWriter jw) {
+        DslJsonSerializer.writeFieldName(key, jw);
+        jw.writeByte(JsonWriter.OBJECT_START);
+        DslJsonSerializer.writeFieldName("value", jw);
+        NumberConverter.serialize(value, jw);
+        jw.writeByte(JsonWriter.OBJECT_END);
+    }
+
+    private static boolean isValid(double value) {
+        return !Double.isInfinite(value) && !Double.isNaN(value);
+    }
+}
@@ -2,6 +2,7 @@ package com.sptracer;
 
 import com.sptracer.error.ErrorCapture;
 import com.sptracer.impl.SpTracerImpl;
+import com.sptracer.impl.TailSamplingBuffer;
 import com.sptracer.impl.Transaction;
 import org.jctools.queues.atomic.AtomicQueueFactory;
 
@@ -39,4 +40,22 @@ public class ObjectPoolFactory {
             }
         });
     }
+
+    public ObjectPool<SerializedEventChunk> createSerializedEventChunkPool(int maxCapacity, final EventPreSerializer owner) {
+        return createRecyclableObjectPool(maxCapacity, new Allocator<SerializedEventChunk>() {
+            @Override
+            public SerializedEventChunk createInstance() {
+                return new SerializedEventChunk(owner);
+            }
+        });
+    }
+
+    public ObjectPool<TailSamplingBuffer.SpanBuffer> createSpanBufferPool(int maxCapacity) {
+        return createRecyclableObjectPool(maxCapacity, new Allocator<TailSamplingBuffer.SpanBuffer>() {
+            @Override
+            public TailSamplingBuffer.SpanBuffer createInstance() {
+                return new TailSamplingBuffer.SpanBuffer();
+            }
+        });
+    }
 }
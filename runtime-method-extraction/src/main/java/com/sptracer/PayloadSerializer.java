@@ -47,6 +47,16 @@ public interface PayloadSerializer {
      */
     void appendMetadataToStream() throws UninitializedException;
 
+    /**
+     * Returns the ND-JSON metadata line which {@link #appendMetaDataNdJsonToStream()} appends.
+     * <p>
+     * NOTE: Must be called after {@link PayloadSerializer#blockUntilReady()} was called and returned.
+     * </p>
+     *
+     * @throws UninitializedException may be thrown if {@link PayloadSerializer#blockUntilReady()} was not invoked
+     */
+    byte[] getMetaDataNdJson() throws UninitializedException;
+
     void serializeTransactionNdJson(Transaction transaction);
 
     void serializeSpanNdJson(Span span);
@@ -73,12 +83,36 @@ public interface PayloadSerializer {
      */
     int getBufferSize();
 
+    /**
+     * Marks the end of the content which has been serialized so far, for example before serializing the next event
+     */
+    void mark();
+
+    /**
+     * Discards the content which has been serialized since the last {@link #mark()},
+     * for example because an event could only be partially serialized.
+     *
+     * @return {@code false} if some of that content has already been flushed to the {@link OutputStream}, so that it can't be discarded
+     */
+    boolean resetToMark();
+
     void serializeFileMetaData(File file);
 
+    /**
+     * @return the value of the {@code Content-Type} header of the requests containing the serialized events
+     */
+    String getContentType();
+
     JsonWriter getJsonWriter();
 
     void writeBytes(byte[] bytes, int len);
 
+    /**
+     * Writes already serialized content to the {@link OutputStream} which has been set via {@link #setOutputStream(OutputStream)},
+     * after flushing the content which has been serialized so far.
+     */
+    void writeBytes(byte[] bytes, int offset, int len) throws IOException;
+
     class UninitializedException extends Exception {
         public UninitializedException(String message) {
             super(message);
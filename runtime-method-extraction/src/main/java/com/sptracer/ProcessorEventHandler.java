@@ -2,6 +2,8 @@ package com.sptracer;
 
 import com.lmax.disruptor.EventHandler;
 import com.sptracer.configuration.ConfigurationRegistry;
+import com.sptracer.error.ErrorCapture;
+import com.sptracer.impl.Transaction;
 import com.sptracer.util.DependencyInjectingServiceLoader;
 
 import java.util.List;
@@ -21,13 +23,21 @@ public class ProcessorEventHandler implements EventHandler<ReportingEvent> {
     @Override
     public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
         if (event.getTransaction() != null) {
-            for (int i = 0; i < processors.size(); i++) {
-                processors.get(i).processBeforeReport(event.getTransaction());
-            }
+            processBeforeReport(event.getTransaction());
         } else if (event.getError() != null) {
-            for (int i = 0; i < processors.size(); i++) {
-                processors.get(i).processBeforeReport(event.getError());
-            }
+            processBeforeReport(event.getError());
+        }
+    }
+
+    public void processBeforeReport(Transaction transaction) {
+        for (int i = 0; i < processors.size(); i++) {
+            processors.get(i).processBeforeReport(transaction);
+        }
+    }
+
+    public void processBeforeReport(ErrorCapture error) {
+        for (int i = 0; i < processors.size(); i++) {
+            processors.get(i).processBeforeReport(error);
         }
     }
 }
@@ -21,6 +21,11 @@ public interface Reporter extends Closeable {
 
     long getDropped();
 
+    /**
+     * @return the number of events of the provided priority class which have been dropped because the queue was full
+     */
+    long getDropped(EventPriority priority);
+
     long getReported();
 
     Future<Void> flush();
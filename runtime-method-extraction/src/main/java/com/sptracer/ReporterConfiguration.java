@@ -12,6 +12,7 @@ import java.net.URL;
 import java.util.Collections;
 import java.util.List;
 
+import static com.sptracer.configuration.RangeValidator.isInRange;
 import static com.sptracer.configuration.RangeValidator.isNotInRange;
 
 public class ReporterConfiguration extends ConfigurationOptionProvider {
@@ -130,6 +131,278 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
             .dynamic(false)
             .buildWithDefault(512);
 
+    private final ConfigurationOption<Integer> reporterShards = ConfigurationOption.integerOption()
+            .key("reporter_shards")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("performance", "experimental")
+            .description("The number of queues events are buffered in before they are sent to the APM Server.\n" +
+                    "\n" +
+                    "With a single queue, all application threads compete for the same queue and a single thread serializes all events.\n" +
+                    "When setting this to a value greater than 1, application threads are distributed across multiple queues,\n" +
+                    "each of which is drained and serialized by a dedicated thread.\n" +
+                    "The serialized events of all queues are still sent within the same requests.\n" +
+                    "\n" +
+                    "The value is rounded up to the next power of 2 and the <<config-max-queue-size, `max_queue_size`>> is split evenly across the queues.")
+            .addValidator(isInRange(1, 64))
+            .dynamic(false)
+            .buildWithDefault(1);
+
+    private final ConfigurationOption<String> spoolDir = ConfigurationOption.stringOption()
+            .key("spool_dir")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("experimental")
+            .description("A directory in which events are buffered while the APM server can't be reached.\n" +
+                    "Once the APM server is reachable again, the buffered events are sent, oldest first.\n" +
+                    "\n" +
+                    "The events are written to memory-mapped files, so buffering them does not increase the heap usage.\n" +
+                    "If not set, events are dropped once the queue is full.")
+            .dynamic(false)
+            .build();
+
+    private final ConfigurationOption<ByteValue> spoolMaxSize = ByteValueConverter.byteOption()
+            .key("spool_max_size")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("experimental")
+            .description("The maximum size of the files in the <<config-spool-dir, `spool_dir`>>.\n" +
+                    "Once reached, new events are dropped.\n" +
+                    "The files have a fixed size of `4mb`, the minimum is `8mb`.\n" +
+                    "\n" +
+                    "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+            .dynamic(false)
+            .addValidator(new ConfigurationOption.Validator<ByteValue>() {
+                @Override
+                public void assertValid(ByteValue value) {
+                    if (value != null && value.getBytes() < 2L * DiskSpool.SEGMENT_SIZE) {
+                        throw new IllegalArgumentException(value + " must be at least 8mb, which are two spool files");
+                    }
+                }
+            })
+            .buildWithDefault(ByteValue.of("256mb"));
+
+    private final ConfigurationOption<ByteValue> spoolReplayRate = ByteValueConverter.byteOption()
+            .key("spool_replay_rate")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("experimental")
+            .description("The maximum number of buffered bytes from the <<config-spool-dir, `spool_dir`>> which are sent per second,\n" +
+                    "in addition to the regular events.\n" +
+                    "This avoids overwhelming the APM server when it has just recovered from an outage.\n" +
+                    "\n" +
+                    "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+            .dynamic(true)
+            .buildWithDefault(ByteValue.of("1mb"));
+
+    private final ConfigurationOption<String> fileExportDir = ConfigurationOption.stringOption()
+            .key("file_export_dir")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("experimental")
+            .description("A directory to which events are written instead of sending them to the APM server,\n" +
+                    "for environments which can't reach an intake server.\n" +
+                    "\n" +
+                    "The events are written as ND-JSON, in the same format as the body of an intake request.\n" +
+                    "Each file starts with the metadata, so that it can be replayed on its own.\n" +
+                    "\n" +
+                    "NOTE: When set, <<config-spool-dir, `spool_dir`>>, <<config-async-sending, `async_sending`>>\n" +
+                    "and <<config-intake-encoding, `intake_encoding`>> have no effect.")
+            .dynamic(false)
+            .build();
+
+    private final ConfigurationOption<ByteValue> fileExportMaxFileSize = ByteValueConverter.byteOption()
+            .key("file_export_max_file_size")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("experimental")
+            .description("The size after which the current file in the <<config-file-export-dir, `file_export_dir`>> is rotated.\n" +
+                    "\n" +
+                    "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+            .dynamic(true)
+            .buildWithDefault(ByteValue.of("16mb"));
+
+    private final ConfigurationOption<TimeDuration> fileExportRotationInterval = TimeDurationValueConverter.durationOption("m")
+            .key("file_export_rotation_interval")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("experimental")
+            .description("The time after which the current file in the <<config-file-export-dir, `file_export_dir`>> is rotated,\n" +
+                    "even if it has not reached <<config-file-export-max-file-size, `file_export_max_file_size`>>.\n" +
+                    "`0` disables time based rotation.")
+            .addValidator(isNotInRange(TimeDuration.of("1ms"), TimeDuration.of("999ms")))
+            .dynamic(true)
+            .buildWithDefault(TimeDuration.of("10m"));
+
+    private final ConfigurationOption<ByteValue> fileExportMaxTotalSize = ByteValueConverter.byteOption()
+            .key("file_export_max_total_size")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("experimental")
+            .description("The maximum size of all files in the <<config-file-export-dir, `file_export_dir`>>.\n" +
+                    "Once exceeded, the oldest rotated files are deleted.\n" +
+                    "\n" +
+                    "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+            .dynamic(true)
+            .buildWithDefault(ByteValue.of("1024mb"));
+
+    private final ConfigurationOption<Boolean> fileExportCompress = ConfigurationOption.booleanOption()
+            .key("file_export_compress")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("experimental")
+            .description("Whether rotated files in the <<config-file-export-dir, `file_export_dir`>> are compressed with gzip.")
+            .dynamic(true)
+            .buildWithDefault(true);
+
+    private final ConfigurationOption<ReporterWaitStrategy> reporterWaitStrategy = ConfigurationOption.enumOption(ReporterWaitStrategy.class)
+            .key("reporter_wait_strategy")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("performance", "experimental")
+            .description("How the reporter threads wait for new events.\n" +
+                    "\n" +
+                    "Available options:\n" +
+                    "\n" +
+                    " - SLEEPING - sleeps for an exponentially increasing time of up to 10ms. \n" +
+                    "   Adds no overhead to the application threads, but up to 10ms of latency after idle periods.\n" +
+                    " - BLOCKING - waits until being signalled by the application threads. \n" +
+                    "   Consumes no CPU while idle, which is beneficial in densely packed environments,\n" +
+                    "   at the cost of a lock acquisition on the application threads when the reporter thread is waiting.\n" +
+                    " - PHASED_BACKOFF - spins, then yields, for a short time, before blocking like BLOCKING. \n" +
+                    "   Lowest latency under constant load, at the expense of additional CPU usage.")
+            .dynamic(false)
+            .buildWithDefault(ReporterWaitStrategy.SLEEPING);
+
+    private final ConfigurationOption<Boolean> asyncSending = ConfigurationOption.booleanOption()
+            .key("async_sending")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("performance", "experimental")
+            .description("When enabled, the events are serialized and compressed into in-memory buffers,\n" +
+                    "which are sent to the APM Server by a separate thread.\n" +
+                    "\n" +
+                    "This decouples the serialization of the events from the latency of the APM Server,\n" +
+                    "so that a slow APM Server doesn't slow down draining the queue.\n" +
+                    "The number of buffers is configured via <<config-async-sending-buffers, `async_sending_buffers`>>.\n" +
+                    "\n" +
+                    "NOTE: This option has no effect if <<config-spool-dir, `spool_dir`>> is set.")
+            .dynamic(false)
+            .buildWithDefault(false);
+
+    private final ConfigurationOption<Integer> asyncSendingBuffers = ConfigurationOption.integerOption()
+            .key("async_sending_buffers")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("performance", "experimental")
+            .description("The number of in-memory request buffers when <<config-async-sending, `async_sending`>> is enabled.\n" +
+                    "\n" +
+                    "While one buffer is filled, the others can be sent to the APM Server.\n" +
+                    "Each buffer holds up to <<config-api-request-size, `api_request_size`>> of compressed events,\n" +
+                    "which bounds the memory of the requests in flight.\n" +
+                    "If all buffers are in flight, the events are held back in the queue.")
+            .addValidator(isInRange(2, 16))
+            .dynamic(false)
+            .buildWithDefault(2);
+
+    private final ConfigurationOption<Integer> asyncSendingThreads = ConfigurationOption.integerOption()
+            .key("async_sending_threads")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("performance", "experimental")
+            .description("The number of threads which send the buffered requests when <<config-async-sending, `async_sending`>> is enabled.\n" +
+                    "\n" +
+                    "With more than one thread, multiple requests can be in flight at the same time,\n" +
+                    "which are spread across the APM Servers according to\n" +
+                    "<<config-max-in-flight-requests-per-server, `max_in_flight_requests_per_server`>>.\n" +
+                    "Should be lower than <<config-async-sending-buffers, `async_sending_buffers`>>,\n" +
+                    "so that there's a buffer left to be filled while the others are in flight.")
+            .addValidator(isInRange(1, 4))
+            .dynamic(false)
+            .buildWithDefault(1);
+
+    private final ConfigurationOption<Integer> maxInFlightRequestsPerServer = ConfigurationOption.integerOption()
+            .key("max_in_flight_requests_per_server")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("performance", "experimental")
+            .description("The number of concurrent requests to an APM Server after which further requests are sent to the next healthy APM Server\n" +
+                    "configured in <<config-server-urls, `server_urls`>>.\n" +
+                    "If all APM Servers are busy, requests are sent to the current one regardless.\n" +
+                    "\n" +
+                    "The connections to each APM Server are kept alive and reused,\n" +
+                    "so spreading concurrent requests only pays the connection setup once per APM Server and connection.")
+            .addValidator(isInRange(1, 16))
+            .dynamic(true)
+            .buildWithDefault(1);
+
+    private final ConfigurationOption<Boolean> adaptiveCompression = ConfigurationOption.booleanOption()
+            .key("adaptive_compression")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("performance", "experimental")
+            .description("When enabled, the compression of the requests to the APM Server is adjusted after each request,\n" +
+                    "based on the time spent compressing and the achieved bandwidth.\n" +
+                    "\n" +
+                    "If compressing takes more than <<config-compression-cpu-budget, `compression_cpu_budget`>> of the request duration,\n" +
+                    "a faster compression level is chosen, down to no compression.\n" +
+                    "If the compressed requests exceed <<config-compression-bandwidth-target, `compression_bandwidth_target`>>,\n" +
+                    "a stronger compression level is chosen, as long as the CPU budget allows.\n" +
+                    "When disabled, requests are always compressed with the fastest deflate level.")
+            .dynamic(true)
+            .buildWithDefault(false);
+
+    private final ConfigurationOption<Integer> compressionCpuBudget = ConfigurationOption.integerOption()
+            .key("compression_cpu_budget")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("performance", "experimental")
+            .description("The maximum percentage of the duration of a request which the reporter thread should spend compressing,\n" +
+                    "when <<config-adaptive-compression, `adaptive_compression`>> is enabled.")
+            .addValidator(isInRange(1, 100))
+            .dynamic(true)
+            .buildWithDefault(10);
+
+    private final ConfigurationOption<ByteValue> compressionBandwidthTarget = ByteValueConverter.byteOption()
+            .key("compression_bandwidth_target")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("performance", "experimental")
+            .description("The number of compressed bytes per second which the requests to the APM Server should stay below,\n" +
+                    "when <<config-adaptive-compression, `adaptive_compression`>> is enabled.\n" +
+                    "Stronger compression levels are only chosen if this target is exceeded.\n" +
+                    "`0b` means there's no bandwidth target.\n" +
+                    "\n" +
+                    "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+            .dynamic(true)
+            .buildWithDefault(ByteValue.of("0b"));
+
+    private final ConfigurationOption<Boolean> lzCompression = ConfigurationOption.booleanOption()
+            .key("lz_compression")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("performance", "experimental")
+            .description("Allows <<config-adaptive-compression, `adaptive_compression`>> to fall back to a fast LZ codec\n" +
+                    "before disabling compression altogether, when deflate exceeds the CPU budget.\n" +
+                    "\n" +
+                    "NOTE: The APM Server does not understand the `x-lz-block` content encoding of such requests,\n" +
+                    "it requires an intake server which decompresses them.")
+            .dynamic(true)
+            .buildWithDefault(false);
+
+    private final ConfigurationOption<IntakeEncoding> intakeEncoding = ConfigurationOption.enumOption(IntakeEncoding.class)
+            .key("intake_encoding")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("performance", "experimental")
+            .description("How the events are encoded in the requests to the intake API.\n" +
+                    "\n" +
+                    "Available options:\n" +
+                    "\n" +
+                    " - JSON - ND-JSON, as understood by the APM Server.\n" +
+                    " - BINARY - a compact binary encoding with a per-request dictionary of recurring strings and varint numbers.\n" +
+                    "   The APM Server does not understand this encoding,\n" +
+                    "   it requires an intake server which converts the requests back to ND-JSON.\n" +
+                    "\n" +
+                    "NOTE: BINARY has no effect if <<config-spool-dir, `spool_dir`>> is set.\n" +
+                    "Events which have been serialized on other threads, for example when <<config-serialize-on-end, `serialize_on_end`>>\n" +
+                    "is enabled or <<config-reporter-shards, `reporter_shards`>> is greater than 1, are embedded as JSON.")
+            .dynamic(false)
+            .buildWithDefault(IntakeEncoding.JSON);
+
+    private final ConfigurationOption<Boolean> serializeOnEnd = ConfigurationOption.booleanOption()
+            .key("serialize_on_end")
+            .configurationCategory(REPORTER_CATEGORY)
+            .tags("performance", "experimental")
+            .description("When enabled, spans and transactions are serialized by the application thread which ends them,\n" +
+                    "instead of by the reporter thread.\n" +
+                    "\n" +
+                    "This allows to recycle them right away and distributes the serialization work across the application threads,\n" +
+                    "at the expense of a slightly higher latency when ending a span and a serialization buffer per application thread.")
+            .dynamic(false)
+            .buildWithDefault(false);
+
     private final ConfigurationOption<Boolean> reportSynchronously = ConfigurationOption.booleanOption()
             .key("report_sync")
             .tags("internal")
@@ -253,6 +526,88 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         return maxQueueSize.get();
     }
 
+    public int getReporterShards() {
+        return reporterShards.get();
+    }
+
+    @Nullable
+    public String getSpoolDir() {
+        return spoolDir.get();
+    }
+
+    public long getSpoolMaxSize() {
+        return spoolMaxSize.get().getBytes();
+    }
+
+    public long getSpoolReplayRate() {
+        return spoolReplayRate.get().getBytes();
+    }
+
+    @Nullable
+    public String getFileExportDir() {
+        return fileExportDir.get();
+    }
+
+    public long getFileExportMaxFileSize() {
+        return fileExportMaxFileSize.get().getBytes();
+    }
+
+    public TimeDuration getFileExportRotationInterval() {
+        return fileExportRotationInterval.get();
+    }
+
+    public long getFileExportMaxTotalSize() {
+        return fileExportMaxTotalSize.get().getBytes();
+    }
+
+    public boolean isFileExportCompress() {
+        return fileExportCompress.get();
+    }
+
+    public boolean isAsyncSending() {
+        return asyncSending.get();
+    }
+
+    public int getAsyncSendingBuffers() {
+        return asyncSendingBuffers.get();
+    }
+
+    public int getAsyncSendingThreads() {
+        return asyncSendingThreads.get();
+    }
+
+    public int getMaxInFlightRequestsPerServer() {
+        return maxInFlightRequestsPerServer.get();
+    }
+
+    public ReporterWaitStrategy getReporterWaitStrategy() {
+        return reporterWaitStrategy.get();
+    }
+
+    public boolean isAdaptiveCompression() {
+        return adaptiveCompression.get();
+    }
+
+    public int getCompressionCpuBudget() {
+        return compressionCpuBudget.get();
+    }
+
+    public long getCompressionBandwidthTarget() {
+        return compressionBandwidthTarget.get().getBytes();
+    }
+
+    public boolean isLzCompression() {
+        return lzCompression.get();
+    }
+
+    public IntakeEncoding getIntakeEncoding() {
+        return intakeEncoding.get();
+    }
+
+    public boolean isSerializeOnEnd() {
+        return serializeOnEnd.get();
+    }
+
     public boolean isReportSynchronously() {
         return reportSynchronously.get();
     }
@@ -0,0 +1,52 @@
+package com.sptracer;
+
+import com.sptracer.configuration.ConfigurationRegistry;
+import com.sptracer.impl.StacktraceConfiguration;
+import com.sptracer.metrics.MetricRegistry;
+
+/**
+ * The components which are shared by all parts of a reporter, like the serializers of all shards and the request handler.
+ * <p>
+ * They are created before the tracer, so that their metrics can be registered once the tracer's {@link MetricRegistry} exists.
+ * </p>
+ */
+public class ReporterDependencies {
+
+    private final StackFrameCache stackFrameCache;
+    private final AdaptiveCompression compression;
+    private final ReporterMetrics reporterMetrics;
+
+    public ReporterDependencies(ConfigurationRegistry configurationRegistry) {
+        ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
+        this.stackFrameCache = new StackFrameCache(configurationRegistry.getConfig(StacktraceConfiguration.class));
+        this.compression = new AdaptiveCompression(reporterConfiguration);
+        this.reporterMetrics = new ReporterMetrics();
+    }
+
+    /**
+     * @return the cache of serialized stack frames, shared by all serializers of the reporter
+     */
+    public StackFrameCache getStackFrameCache() {
+        return stackFrameCache;
+    }
+
+    /**
+     * @return compresses the requests to the APM server
+     */
+    public AdaptiveCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return collects the self-instrumentation metrics of the reporter
+     */
+    public ReporterMetrics getReporterMetrics() {
+        return reporterMetrics;
+    }
+
+    public void registerMetrics(MetricRegistry metricRegistry) {
+        stackFrameCache.registerMetrics(metricRegistry);
+        compression.registerMetrics(metricRegistry);
+        reporterMetrics.registerMetrics(metricRegistry);
+    }
+}
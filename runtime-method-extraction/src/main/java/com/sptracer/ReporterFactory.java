@@ -4,30 +4,130 @@ package com.sptracer;
 import com.sptracer.configuration.ConfigurationRegistry;
 import com.sptracer.impl.MetaData;
 import com.sptracer.impl.StacktraceConfiguration;
+import com.sptracer.util.MathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.Future;
 
 public class ReporterFactory {
 
+    private static final Logger logger = LoggerFactory.getLogger(ReporterFactory.class);
+    private static final int MIN_SHARD_QUEUE_SIZE = 64;
+
+    /**
+     * @param dependencies the components shared by all parts of the reporter
+     */
     public Reporter createReporter(ConfigurationRegistry configurationRegistry,
                                    TracerServerClient apmServerClient,
-                                   Future<MetaData> metaData) {
+                                   Future<MetaData> metaData,
+                                   ReporterDependencies dependencies) {
 
+        StackFrameCache stackFrameCache = dependencies.getStackFrameCache();
+        ReporterMetrics reporterMetrics = dependencies.getReporterMetrics();
         ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
-        ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, metaData, apmServerClient);
-        return new TracerServerReporter(true, reporterConfiguration, reportingEventHandler);
+        ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, metaData, apmServerClient,
+            dependencies);
+        EventPreSerializer preSerializer = null;
+        if (reporterConfiguration.isSerializeOnEnd()) {
+            preSerializer = new EventPreSerializer(configurationRegistry, stackFrameCache, apmServerClient, metaData, new ObjectPoolFactory());
+        }
+        if (reporterConfiguration.getReporterShards() > 1) {
+            TracerServerReporter sender = new TracerServerReporter(true, reporterConfiguration, reportingEventHandler);
+            reporterMetrics.addQueue(sender);
+            return createShardedReporter(configurationRegistry, reporterConfiguration, apmServerClient, metaData, sender, preSerializer, stackFrameCache,
+                reporterMetrics);
+        }
+        TracerServerReporter reporter = new TracerServerReporter(true, reporterConfiguration.isReportSynchronously(), reporterConfiguration.getMaxQueueSize(),
+            "server-reporter", reporterConfiguration.getReporterWaitStrategy().createWaitStrategy(), reportingEventHandler, preSerializer);
+        reporterMetrics.addQueue(reporter);
+        return reporter;
+    }
+
+    private ShardedReporter createShardedReporter(ConfigurationRegistry configurationRegistry,
+                                                  ReporterConfiguration reporterConfiguration,
+                                                  TracerServerClient apmServerClient,
+                                                  Future<MetaData> metaData,
+                                                  TracerServerReporter sender,
+                                                  @Nullable EventPreSerializer preSerializer,
+                                                  StackFrameCache stackFrameCache,
+                                                  ReporterMetrics reporterMetrics) {
+        int shardCount = MathUtils.getNextPowerOf2(reporterConfiguration.getReporterShards());
+        int shardQueueSize = Math.max(reporterConfiguration.getMaxQueueSize() / shardCount, MIN_SHARD_QUEUE_SIZE);
+        TracerServerReporter[] shards = new TracerServerReporter[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            // each shard serializes and processes the events on its own thread, so it needs a dedicated serializer and processors
+            ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(configurationRegistry);
+            DslJsonSerializer shardSerializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class), stackFrameCache, apmServerClient, metaData);
+            // the sender takes care of synchronous reporting, after the events have been handed over to it
+            shards[i] = new TracerServerReporter(true, false, shardQueueSize, "server-reporter-shard-" + i,
+                reporterConfiguration.getReporterWaitStrategy().createWaitStrategy(),
+                new SerializingReportingEventHandler(shardSerializer, processorEventHandler, sender, reporterMetrics), preSerializer);
+            reporterMetrics.addQueue(shards[i]);
+        }
+        return new ShardedReporter(shards, sender, reporterConfiguration.isReportSynchronously());
     }
 
     @Nonnull
     private ReportingEventHandler getReportingEventHandler(ConfigurationRegistry configurationRegistry,
                                                            ReporterConfiguration reporterConfiguration,
                                                            Future<MetaData> metaData,
-                                                           TracerServerClient apmServerClient) {
+                                                           TracerServerClient apmServerClient,
+                                                           ReporterDependencies dependencies) {
 
-        DslJsonSerializer payloadSerializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class), apmServerClient, metaData);
+        StackFrameCache stackFrameCache = dependencies.getStackFrameCache();
+        ReporterMetrics reporterMetrics = dependencies.getReporterMetrics();
         ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(configurationRegistry);
-        return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient);
+        StacktraceConfiguration stacktraceConfiguration = configurationRegistry.getConfig(StacktraceConfiguration.class);
+        String fileExportDir = reporterConfiguration.getFileExportDir();
+        if (fileExportDir != null && !fileExportDir.isEmpty()) {
+            try {
+                return new FileReportingEventHandler(reporterConfiguration, processorEventHandler,
+                    new DslJsonSerializer(stacktraceConfiguration, stackFrameCache, apmServerClient, metaData), reporterMetrics, new File(fileExportDir));
+            } catch (IOException e) {
+                logger.warn("Failed to initialize the file export in {}, sending events to the APM server instead: {}", fileExportDir, e.getMessage());
+            }
+        }
+        DiskSpool spool = createSpool(reporterConfiguration);
+        PayloadSerializer payloadSerializer;
+        if (reporterConfiguration.getIntakeEncoding() == IntakeEncoding.BINARY && spool == null) {
+            payloadSerializer = new BinaryPayloadSerializer(stacktraceConfiguration, stackFrameCache, apmServerClient, metaData);
+        } else {
+            if (reporterConfiguration.getIntakeEncoding() == IntakeEncoding.BINARY) {
+                // spooled batches are replayed into later requests, which have their own dictionary
+                logger.warn("intake_encoding BINARY is not supported in combination with spool_dir, events are encoded as JSON");
+            }
+            payloadSerializer = new DslJsonSerializer(stacktraceConfiguration, stackFrameCache, apmServerClient, metaData);
+        }
+        AsyncRequestSender asyncSender = null;
+        if (reporterConfiguration.isAsyncSending()) {
+            if (spool != null) {
+                // failed requests are replayed from the spool by the reporter thread, which doesn't know about the buffered requests
+                logger.warn("async_sending is not supported in combination with spool_dir, requests are sent synchronously");
+            } else {
+                asyncSender = new AsyncRequestSender(reporterConfiguration, apmServerClient, reporterMetrics);
+            }
+        }
+        return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient,
+            spool, asyncSender, dependencies);
+    }
+
+    @Nullable
+    private DiskSpool createSpool(ReporterConfiguration reporterConfiguration) {
+        String spoolDir = reporterConfiguration.getSpoolDir();
+        if (spoolDir == null || spoolDir.isEmpty()) {
+            return null;
+        }
+        try {
+            return new DiskSpool(new File(spoolDir), reporterConfiguration.getSpoolMaxSize(), DiskSpool.SEGMENT_SIZE);
+        } catch (IOException e) {
+            logger.warn("Failed to initialize the spool in {}, events are dropped while the APM server can't be reached: {}", spoolDir, e.getMessage());
+            return null;
+        }
     }
 
 }
\ No newline at end of file
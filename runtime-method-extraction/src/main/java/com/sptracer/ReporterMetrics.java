@@ -0,0 +1,153 @@
+package com.sptracer;
+
+import com.sptracer.metrics.DoubleSupplier;
+import com.sptracer.metrics.Labels;
+import com.sptracer.metrics.MetricRegistry;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects metrics about the reporter itself, which help to tune {@link ReporterConfiguration#getMaxQueueSize()},
+ * {@link ReporterConfiguration#getApiRequestSize()} and {@link ReporterConfiguration#getApiRequestTime()}:
+ * <ul>
+ *     <li>{@code agent.reporter.queue.size} and {@code agent.reporter.queue.capacity}: the occupancy of the ring buffers</li>
+ *     <li>{@code agent.reporter.serialization.time_us.*}: the time it takes to serialize an event, per {@code event_type}</li>
+ *     <li>{@code agent.reporter.request.duration_ms.*} and {@code agent.reporter.request.size_bytes.*}:
+ *     the duration and the compressed size of the requests to the APM server</li>
+ *     <li>{@code agent.reporter.flush}: the number of requests which have been ended, per {@link FlushReason reason}</li>
+ *     <li>{@code agent.reporter.backoff.time_ms}: the total time the reporter has backed off because of errors</li>
+ * </ul>
+ * <p>
+ * The number of uncompressed and compressed bytes are reported by the {@link AdaptiveCompression}.
+ * </p>
+ * <p>
+ * Distributions are reported as gauges, see {@link MetricDistribution}.
+ * </p>
+ */
+public class ReporterMetrics {
+
+    private final List<TracerServerReporter> queues = new CopyOnWriteArrayList<>();
+    private final MetricDistribution[] serializationTime = new MetricDistribution[ReportingEvent.ReportingEventType.values().length];
+    private final MetricDistribution requestDuration;
+    private final MetricDistribution requestSize;
+    private final AtomicLongArray flushes = new AtomicLongArray(FlushReason.values().length);
+    private final AtomicLong backoffMillis = new AtomicLong();
+
+    public ReporterMetrics() {
+        for (int i = 0; i < serializationTime.length; i++) {
+            serializationTime[i] = new MetricDistribution(TimeUnit.SECONDS.toMicros(10));
+        }
+        requestDuration = new MetricDistribution(TimeUnit.HOURS.toMillis(1));
+        requestSize = new MetricDistribution(1024L * 1024 * 1024);
+    }
+
+    /**
+     * Adds the ring buffer of the provided reporter to the {@code agent.reporter.queue.*} gauges
+     */
+    void addQueue(TracerServerReporter reporter) {
+        queues.add(reporter);
+    }
+
+    void onEventSerialized(ReportingEvent.ReportingEventType type, long durationNanos) {
+        serializationTime[type.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+    }
+
+    /**
+     * @param durationNanos the time from starting the request until the response has been received
+     * @param size          the number of compressed bytes which have been sent
+     */
+    void onRequestEnd(long durationNanos, long size) {
+        requestDuration.record(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+        requestSize.record(size);
+    }
+
+    void onFlush(FlushReason reason) {
+        flushes.incrementAndGet(reason.ordinal());
+    }
+
+    void onBackoff(long backoffTimeMillis) {
+        backoffMillis.addAndGet(backoffTimeMillis);
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (TracerServerReporter queue : queues) {
+            size += queue.getQueueSize();
+        }
+        return size;
+    }
+
+    public int getQueueCapacity() {
+        int capacity = 0;
+        for (TracerServerReporter queue : queues) {
+            capacity += queue.getQueueCapacity();
+        }
+        return capacity;
+    }
+
+    public long getFlushCount(FlushReason reason) {
+        return flushes.get(reason.ordinal());
+    }
+
+    public long getBackoffTimeMillis() {
+        return backoffMillis.get();
+    }
+
+    public void registerMetrics(MetricRegistry metricRegistry) {
+        metricRegistry.add("agent.reporter.queue.size", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getQueueSize();
+            }
+        });
+        metricRegistry.add("agent.reporter.queue.capacity", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getQueueCapacity();
+            }
+        });
+        for (ReportingEvent.ReportingEventType type : new ReportingEvent.ReportingEventType[]{
+            ReportingEvent.ReportingEventType.TRANSACTION, ReportingEvent.ReportingEventType.SPAN, ReportingEvent.ReportingEventType.ERROR}) {
+            serializationTime[type.ordinal()].registerMetrics(metricRegistry, "agent.reporter.serialization.time_us",
+                Labels.Mutable.of("event_type", type.name().toLowerCase()));
+        }
+        requestDuration.registerMetrics(metricRegistry, "agent.reporter.request.duration_ms", Labels.EMPTY);
+        requestSize.registerMetrics(metricRegistry, "agent.reporter.request.size_bytes", Labels.EMPTY);
+        for (final FlushReason reason : FlushReason.values()) {
+            metricRegistry.add("agent.reporter.flush", Labels.Mutable.of("reason", reason.name().toLowerCase()), new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return getFlushCount(reason);
+                }
+            });
+        }
+        metricRegistry.add("agent.reporter.backoff.time_ms", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getBackoffTimeMillis();
+            }
+        });
+    }
+
+    /**
+     * Why a request to the APM server has been ended
+     */
+    public enum FlushReason {
+        /**
+         * {@link ReporterConfiguration#getApiRequestSize()} has been reached
+         */
+        SIZE,
+        /**
+         * {@link ReporterConfiguration#getApiRequestTime()} has elapsed
+         */
+        TIME,
+        /**
+         * {@link Reporter#flush()} has been called or the reporter has been shut down
+         */
+        EXPLICIT
+    }
+}
@@ -0,0 +1,50 @@
+package com.sptracer;
+
+import com.lmax.disruptor.LiteBlockingWaitStrategy;
+import com.lmax.disruptor.PhasedBackoffWaitStrategy;
+import com.lmax.disruptor.WaitStrategy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines how the reporter threads wait for new events, see {@link ReporterConfiguration#getReporterWaitStrategy()}
+ */
+public enum ReporterWaitStrategy {
+
+    /**
+     * Parks the reporter thread for an exponentially increasing amount of time, starting at 0.1ms and up to 10ms.
+     * Doesn't add overhead to the application threads but delays waking up after idle periods by up to 10ms.
+     */
+    SLEEPING {
+        @Override
+        public WaitStrategy createWaitStrategy() {
+            return new ExponentiallyIncreasingSleepingWaitStrategy(100_000, 10_000_000);
+        }
+    },
+    /**
+     * Blocks the reporter thread until it is signalled by an application thread reporting an event.
+     * Doesn't consume any CPU while idle and wakes up immediately,
+     * at the cost of acquiring a lock on the application thread when the reporter thread is waiting.
+     */
+    BLOCKING {
+        @Override
+        public WaitStrategy createWaitStrategy() {
+            return new LiteBlockingWaitStrategy();
+        }
+    },
+    /**
+     * Spins for up to 10µs, then yields for up to 100µs before falling back to {@link #BLOCKING}.
+     * Lowest latency under constant load, but spends some CPU each time the reporter thread runs out of events.
+     */
+    PHASED_BACKOFF {
+        @Override
+        public WaitStrategy createWaitStrategy() {
+            return PhasedBackoffWaitStrategy.withLiteLock(10, 100, TimeUnit.MICROSECONDS);
+        }
+    };
+
+    /**
+     * @return a new instance, as wait strategies must not be shared between ring buffers
+     */
+    public abstract WaitStrategy createWaitStrategy();
+}
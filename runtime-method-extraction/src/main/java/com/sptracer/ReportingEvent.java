@@ -20,6 +20,16 @@ public class ReportingEvent {
     private com.sptracer.impl.Span span;
     @Nullable
     private JsonWriter jsonWriter;
+    @Nullable
+    private byte[] serializedEvents;
+    private int serializedOffset;
+    private int serializedLength;
+    @Nullable
+    private SerializedEventChunk chunk;
+    private int serializedEventCount;
+    @Nullable
+    private EventPriority serializedPriority;
+    private boolean flushOnTimeout;
 
     public void resetState() {
         this.transaction = null;
@@ -27,6 +37,13 @@ public class ReportingEvent {
         this.error = null;
         this.span = null;
         this.jsonWriter = null;
+        this.serializedEvents = null;
+        this.serializedOffset = 0;
+        this.serializedLength = 0;
+        this.serializedEventCount = 0;
+        this.serializedPriority = null;
+        this.chunk = null;
+        this.flushOnTimeout = false;
     }
 
     @Nullable
@@ -43,6 +60,18 @@ public class ReportingEvent {
         this.type = FLUSH;
     }
 
+    /**
+     * A {@link ReportingEventType#FLUSH} event which is triggered because {@link ReporterConfiguration#getApiRequestTime()} has elapsed
+     */
+    public void setFlushOnTimeoutEvent() {
+        this.type = FLUSH;
+        this.flushOnTimeout = true;
+    }
+
+    public boolean isFlushOnTimeout() {
+        return flushOnTimeout;
+    }
+
     @Nullable
     public ReportingEventType getType() {
         return type;
@@ -94,6 +123,56 @@ public class ReportingEvent {
         this.type = JSON_WRITER;
     }
 
+    @Nullable
+    public byte[] getSerializedEvents() {
+        return serializedEvents;
+    }
+
+    public int getSerializedOffset() {
+        return serializedOffset;
+    }
+
+    public int getSerializedLength() {
+        return serializedLength;
+    }
+
+    /**
+     * @return the number of events contained in {@link #getSerializedEvents()}
+     */
+    public int getSerializedEventCount() {
+        return serializedEventCount;
+    }
+
+    /**
+     * @return the priority class the events contained in {@link #getSerializedEvents()} have been added with
+     */
+    @Nullable
+    public EventPriority getSerializedPriority() {
+        return serializedPriority;
+    }
+
+    /**
+     * @return the chunk {@link #getSerializedEvents()} is a slice of, if any
+     */
+    @Nullable
+    public SerializedEventChunk getChunk() {
+        return chunk;
+    }
+
+    /**
+     * @param chunk the chunk the serialized events are a slice of, this event takes over a reference to it
+     */
+    public void setSerializedEvents(byte[] serializedEvents, int offset, int length, int eventCount, @Nullable SerializedEventChunk chunk,
+                                    EventPriority priority) {
+        this.serializedEvents = serializedEvents;
+        this.serializedOffset = offset;
+        this.serializedLength = length;
+        this.serializedEventCount = eventCount;
+        this.serializedPriority = priority;
+        this.chunk = chunk;
+        this.type = SERIALIZED_EVENTS;
+    }
+
     public void end() {
         if (transaction != null) {
             transaction.decrementReferences();
@@ -101,10 +180,12 @@ public class ReportingEvent {
             span.decrementReferences();
         } else if (error != null) {
             error.recycle();
+        } else if (chunk != null) {
+            chunk.decrementReferences();
         }
     }
 
     enum ReportingEventType {
-        FLUSH, TRANSACTION, SPAN, ERROR, SHUTDOWN, JSON_WRITER
+        FLUSH, TRANSACTION, SPAN, ERROR, SHUTDOWN, JSON_WRITER, SERIALIZED_EVENTS
     }
 }
@@ -0,0 +1,61 @@
+package com.sptracer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pooled buffer which an application thread serializes its events into, one after another.
+ * <p>
+ * Each event is published to the reporter's ring buffer as a slice of this chunk and holds a reference to it,
+ * as does the application thread as long as it appends to the chunk.
+ * Once all references have been released, the chunk is returned to the pool.
+ * </p>
+ */
+public class SerializedEventChunk implements Recyclable {
+
+    static final int CAPACITY = 8192;
+
+    private final byte[] buffer = new byte[CAPACITY];
+    private final AtomicInteger references = new AtomicInteger();
+    private final EventPreSerializer owner;
+    private int position;
+
+    SerializedEventChunk(EventPreSerializer owner) {
+        this.owner = owner;
+    }
+
+    int remaining() {
+        return CAPACITY - position;
+    }
+
+    /**
+     * Only to be called by the thread owning this chunk
+     *
+     * @return the offset the bytes have been written to
+     */
+    int append(byte[] bytes, int length) {
+        int offset = position;
+        System.arraycopy(bytes, 0, buffer, offset, length);
+        position += length;
+        return offset;
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    public void incrementReferences() {
+        references.incrementAndGet();
+    }
+
+    public void decrementReferences() {
+        if (references.decrementAndGet() == 0) {
+            owner.recycle(this);
+        }
+    }
+
+    @Override
+    public void resetState() {
+        position = 0;
+        references.set(0);
+    }
+}
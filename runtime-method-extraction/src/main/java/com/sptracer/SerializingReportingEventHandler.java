@@ -0,0 +1,167 @@
+package com.sptracer;
+
+import com.dslplatform.json.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+/**
+ * Drains the ring buffer of a single {@link ShardedReporter} shard.
+ * <p>
+ * Events are serialized into an in-memory buffer which is handed over to the {@link TracerServerReporter} that sends
+ * the requests to the APM server at the end of each batch, or when the buffer exceeds {@link #CHUNK_SIZE}.
+ * That way, the serialization work is distributed across the shards,
+ * while the events of all shards are still sent within the same requests.
+ * </p>
+ * <p>
+ * A chunk is handed over with the lowest {@link EventPriority} of the events it contains,
+ * so that the sender sheds it like it would shed these events.
+ * Errors are handed over in chunks of their own, so that they are not shed along with spans.
+ * </p>
+ */
+class SerializingReportingEventHandler implements ReportingEventHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(SerializingReportingEventHandler.class);
+    static final int CHUNK_SIZE = DslJsonSerializer.BUFFER_SIZE;
+
+    private final PayloadSerializer payloadSerializer;
+    private final ProcessorEventHandler processorEventHandler;
+    private final TracerServerReporter sender;
+    private final ReporterMetrics reporterMetrics;
+    private int pendingEvents;
+    /**
+     * The lowest priority of the {@link #pendingEvents}
+     */
+    @Nullable
+    private EventPriority pendingPriority;
+    private long forwarded;
+    private long dropped;
+
+    SerializingReportingEventHandler(PayloadSerializer payloadSerializer, ProcessorEventHandler processorEventHandler, TracerServerReporter sender,
+                                     ReporterMetrics reporterMetrics) {
+        this.payloadSerializer = payloadSerializer;
+        this.processorEventHandler = processorEventHandler;
+        this.sender = sender;
+        this.reporterMetrics = reporterMetrics;
+    }
+
+    @Override
+    public void init(TracerServerReporter reporter) {
+    }
+
+    @Override
+    public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+        try {
+            if (event.getType() == ReportingEvent.ReportingEventType.FLUSH || event.getType() == ReportingEvent.ReportingEventType.SHUTDOWN) {
+                forwardPendingEvents();
+                return;
+            }
+            if (event.getType() == ReportingEvent.ReportingEventType.SERIALIZED_EVENTS) {
+                forwardSerializedEvents(event);
+            } else {
+                serialize(event, sequence, endOfBatch);
+            }
+            if (endOfBatch || payloadSerializer.getBufferSize() >= CHUNK_SIZE) {
+                forwardPendingEvents();
+            }
+        } finally {
+            event.resetState();
+        }
+    }
+
+    private void serialize(ReportingEvent event, long sequence, boolean endOfBatch) {
+        try {
+            processorEventHandler.onEvent(event, sequence, endOfBatch);
+            final EventPriority priority;
+            if (event.getTransaction() != null) {
+                priority = EventPriority.TRANSACTION;
+            } else if (event.getSpan() != null) {
+                priority = EventPriority.SPAN;
+            } else if (event.getError() != null) {
+                priority = EventPriority.ERROR;
+            } else {
+                return;
+            }
+            if (pendingPriority != null && pendingPriority != priority && (pendingPriority == EventPriority.ERROR || priority == EventPriority.ERROR)) {
+                forwardPendingEvents();
+            }
+            payloadSerializer.mark();
+            final long start = System.nanoTime();
+            try {
+                if (event.getTransaction() != null) {
+                    payloadSerializer.serializeTransactionNdJson(event.getTransaction());
+                } else if (event.getSpan() != null) {
+                    payloadSerializer.serializeSpanNdJson(event.getSpan());
+                } else {
+                    payloadSerializer.serializeErrorNdJson(event.getError());
+                }
+            } catch (Exception e) {
+                logger.error("Failed to serialize event of type {} with this error: {}", event.getType(), e.getMessage());
+                logger.debug("Event serialization failure", e);
+                dropped++;
+                // the buffer may end with a partially serialized event which would make the whole request invalid
+                if (!payloadSerializer.resetToMark()) {
+                    payloadSerializer.getJsonWriter().reset();
+                    dropped += pendingEvents;
+                    pendingEvents = 0;
+                    pendingPriority = null;
+                }
+                return;
+            }
+            pendingEvents++;
+            if (pendingPriority == null || priority.ordinal() > pendingPriority.ordinal()) {
+                pendingPriority = priority;
+            }
+            reporterMetrics.onEventSerialized(event.getType(), System.nanoTime() - start);
+        } finally {
+            event.end();
+        }
+    }
+
+    /**
+     * Events which have already been serialized by the application thread are handed over as-is,
+     * along with the reference to their chunk
+     */
+    private void forwardSerializedEvents(ReportingEvent event) {
+        // the events have already passed the back-pressure of the shard, so they are only shed by the sender according to their priority
+        byte[] serializedEvents = event.getSerializedEvents();
+        EventPriority priority = event.getSerializedPriority();
+        if (serializedEvents != null && priority != null
+            && sender.reportSerializedEvents(serializedEvents, event.getSerializedOffset(), event.getSerializedLength(), event.getSerializedEventCount(), event.getChunk(), priority)) {
+            forwarded += event.getSerializedEventCount();
+        }
+    }
+
+    private void forwardPendingEvents() {
+        if (pendingEvents == 0 || pendingPriority == null) {
+            return;
+        }
+        JsonWriter jw = payloadSerializer.getJsonWriter();
+        // the buffer is handed over to another thread, so it can't be the one which is reused by the serializer
+        byte[] serializedEvents = jw.toByteArray();
+        if (sender.reportSerializedEvents(serializedEvents, 0, serializedEvents.length, pendingEvents, null, pendingPriority)) {
+            forwarded += pendingEvents;
+        }
+        jw.reset();
+        pendingEvents = 0;
+        pendingPriority = null;
+    }
+
+    /**
+     * @return the number of events which have been handed over to the {@link TracerServerReporter} sending the events
+     */
+    @Override
+    public long getReported() {
+        return forwarded;
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public void close() {
+    }
+}
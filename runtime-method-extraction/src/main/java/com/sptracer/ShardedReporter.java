@@ -0,0 +1,222 @@
+package com.sptracer;
+
+import com.dslplatform.json.JsonWriter;
+import com.sptracer.error.ErrorCapture;
+import com.sptracer.impl.Span;
+import com.sptracer.impl.Transaction;
+import com.sptracer.util.MathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link Reporter} which distributes events across multiple ring buffers, based on the reporting thread.
+ * <p>
+ * With a single {@link TracerServerReporter}, all application threads contend on claiming slots in the same ring buffer
+ * and a single thread has to serialize all events.
+ * Each shard of this reporter is drained by its own {@link SerializingReportingEventHandler},
+ * which serializes the events and hands them over in chunks to a shared {@link TracerServerReporter}.
+ * The latter merges the chunks of all shards into the requests to the APM server.
+ * </p>
+ */
+public class ShardedReporter implements Reporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedReporter.class);
+
+    private final TracerServerReporter[] shards;
+    private final int shardMask;
+    private final TracerServerReporter sender;
+    private final boolean syncReport;
+
+    /**
+     * @param shards the shard reporters, the length has to be a power of 2
+     * @param sender the reporter the shards hand over their serialized events to
+     */
+    ShardedReporter(TracerServerReporter[] shards, TracerServerReporter sender, boolean syncReport) {
+        if (shards.length != MathUtils.getNextPowerOf2(shards.length)) {
+            throw new IllegalArgumentException("The number of shards has to be a power of 2 but was " + shards.length);
+        }
+        this.shards = shards;
+        this.shardMask = shards.length - 1;
+        this.sender = sender;
+        this.syncReport = syncReport;
+    }
+
+    private TracerServerReporter getShard() {
+        // thread ids are sequential, which distributes the threads evenly across the shards
+        return shards[(int) Thread.currentThread().getId() & shardMask];
+    }
+
+    @Override
+    public void start() {
+        sender.start();
+        for (TracerServerReporter shard : shards) {
+            shard.start();
+        }
+    }
+
+    @Override
+    public void report(Transaction transaction) {
+        getShard().report(transaction);
+        if (syncReport) {
+            waitForFlush();
+        }
+    }
+
+    @Override
+    public void report(Span span) {
+        getShard().report(span);
+        if (syncReport) {
+            waitForFlush();
+        }
+    }
+
+    @Override
+    public void report(ErrorCapture error) {
+        getShard().report(error);
+        if (syncReport) {
+            waitForFlush();
+        }
+    }
+
+    /**
+     * Already serialized content, like metric sets, does not need to go through a shard
+     */
+    @Override
+    public void report(JsonWriter jsonWriter) {
+        sender.report(jsonWriter);
+        if (syncReport) {
+            waitForFlush();
+        }
+    }
+
+    private void waitForFlush() {
+        try {
+            flush().get();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Events which could not be added to a shard are counted by the shard,
+     * while events which could not be handed over from a shard are counted by the {@link #sender}.
+     */
+    @Override
+    public long getDropped() {
+        long dropped = sender.getDropped();
+        for (TracerServerReporter shard : shards) {
+            dropped += shard.getDropped();
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getDropped(EventPriority priority) {
+        long dropped = sender.getDropped(priority);
+        for (TracerServerReporter shard : shards) {
+            dropped += shard.getDropped(priority);
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getReported() {
+        return sender.getReported();
+    }
+
+    /**
+     * Flushes all shards, so that their pending events are handed over to the {@link #sender}, and flushes the sender after that.
+     * <p>
+     * This method may block for a while until a slot in the ring buffers becomes available.
+     * </p>
+     *
+     * @return A {@link Future} which resolves when all shards and the sender have been flushed.
+     */
+    @Override
+    public Future<Void> flush() {
+        final Future<?>[] shardFlushes = new Future<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            shardFlushes[i] = shards[i].flush();
+        }
+        return new Future<Void>() {
+            private volatile boolean cancelled = false;
+            private final AtomicReference<Future<Void>> senderFlush = new AtomicReference<>();
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                if (isDone()) {
+                    return false;
+                }
+                for (Future<?> shardFlush : shardFlushes) {
+                    shardFlush.cancel(mayInterruptIfRunning);
+                }
+                cancelled = true;
+                return true;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return cancelled;
+            }
+
+            @Override
+            public boolean isDone() {
+                for (Future<?> shardFlush : shardFlushes) {
+                    if (!shardFlush.isDone()) {
+                        return false;
+                    }
+                }
+                return getSenderFlush().isDone();
+            }
+
+            @Override
+            public Void get() throws InterruptedException, ExecutionException {
+                for (Future<?> shardFlush : shardFlushes) {
+                    shardFlush.get();
+                }
+                return getSenderFlush().get();
+            }
+
+            @Override
+            public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+                long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+                for (Future<?> shardFlush : shardFlushes) {
+                    shardFlush.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                }
+                return getSenderFlush().get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            }
+
+            /**
+             * Must only be called after all shards have been flushed,
+             * as only then all of their events are guaranteed to be in the sender's ring buffer.
+             */
+            private Future<Void> getSenderFlush() {
+                Future<Void> flush = senderFlush.get();
+                if (flush == null) {
+                    flush = sender.flush();
+                    if (!senderFlush.compareAndSet(null, flush)) {
+                        // another thread has flushed the sender concurrently
+                        flush = senderFlush.get();
+                    }
+                }
+                return flush;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        // closing the shards first hands over their pending events to the sender
+        for (TracerServerReporter shard : shards) {
+            shard.close();
+        }
+        logger.info("dropped events because of full shard queues: {}", getDropped() - sender.getDropped());
+        sender.close();
+    }
+}
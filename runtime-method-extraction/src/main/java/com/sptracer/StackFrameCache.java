@@ -0,0 +1,255 @@
+package com.sptracer;
+
+import com.sptracer.impl.StackFrame;
+import com.sptracer.impl.StacktraceConfiguration;
+import com.sptracer.metrics.DoubleSupplier;
+import com.sptracer.metrics.Labels;
+import com.sptracer.metrics.MetricRegistry;
+import com.sptracer.util.PrefixTrie;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded cache from stack frames ({@link StackTraceElement}s and {@link StackFrame}s) to their serialized JSON representation.
+ * <p>
+ * The same frames occur in stack traces over and over again.
+ * Serializing a frame involves escaping several strings, computing the module and determining whether it's a library frame,
+ * whereas writing a cached frame is a single copy of a byte array.
+ * </p>
+ * <p>
+ * The cache is shared by all {@link DslJsonSerializer}s and is split into segments to reduce contention.
+ * Each segment evicts its least recently used frames once it is full.
+ * As whether a frame is a library frame depends on the {@link StacktraceConfiguration#getApplicationPackages()},
+ * the cache is cleared when they change.
+ * For the same reason, the cache also determines whether a frame is a library frame, see {@link #isLibraryFrame(String)},
+ * so that all serializers share one {@link PrefixTrie} of the application packages.
+ * Each change of the application packages starts a new generation.
+ * A frame is only stored if it has been serialized within the current generation,
+ * so that a frame serialized with the old application packages can't be stored after the cache has been cleared.
+ * </p>
+ */
+public class StackFrameCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final StacktraceConfiguration stacktraceConfiguration;
+    private final Segment[] segments;
+    private final boolean enabled;
+    private volatile ApplicationPackages applicationPackages;
+
+    public StackFrameCache(StacktraceConfiguration stacktraceConfiguration) {
+        this.stacktraceConfiguration = stacktraceConfiguration;
+        this.applicationPackages = new ApplicationPackages(stacktraceConfiguration.getApplicationPackages(), 0);
+        int maxSize = stacktraceConfiguration.getStackFrameCacheSize();
+        this.enabled = maxSize > 0;
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment((maxSize + SEGMENTS - 1) / SEGMENTS);
+        }
+    }
+
+    /**
+     * @param frame a {@link StackTraceElement} or a {@link StackFrame}
+     * @return the serialized frame, or {@code null} if the frame is not cached
+     */
+    @Nullable
+    byte[] get(Object frame) {
+        if (!enabled) {
+            return null;
+        }
+        if (updateApplicationPackages() != null) {
+            return null;
+        }
+        return getSegment(frame).lookup(frame);
+    }
+
+    /**
+     * @param className the class name of a frame, {@code null} if unknown
+     * @return whether the class does not belong to the {@link StacktraceConfiguration#getApplicationPackages()}
+     */
+    public boolean isLibraryFrame(@Nullable String className) {
+        if (className == null) {
+            return true;
+        }
+        ApplicationPackages applicationPackages = updateApplicationPackages();
+        if (applicationPackages == null) {
+            applicationPackages = this.applicationPackages;
+        }
+        return !applicationPackages.trie.matches(className);
+    }
+
+    /**
+     * Rebuilds the trie and clears the cache if the application packages have changed
+     *
+     * @return the new application packages, or {@code null} if they have not changed
+     */
+    @Nullable
+    private ApplicationPackages updateApplicationPackages() {
+        final Collection<String> currentApplicationPackages = stacktraceConfiguration.getApplicationPackages();
+        if (currentApplicationPackages == applicationPackages.packages) {
+            return null;
+        }
+        final ApplicationPackages updated = new ApplicationPackages(currentApplicationPackages, applicationPackages.generation + 1);
+        // publishing the new generation before clearing makes sure that frames of the old one are either rejected or cleared
+        applicationPackages = updated;
+        clear();
+        return updated;
+    }
+
+    /**
+     * To be called before serializing a frame which is not cached
+     *
+     * @return the generation to pass to {@link #put(Object, byte[], long)}
+     */
+    long getGeneration() {
+        final ApplicationPackages updated = updateApplicationPackages();
+        return updated != null ? updated.generation : applicationPackages.generation;
+    }
+
+    /**
+     * @param frame      a {@link StackTraceElement} or a {@link StackFrame}
+     * @param serialized the serialized frame, must not be modified afterwards
+     * @param generation the {@link #getGeneration()} from before the frame has been serialized
+     */
+    void put(Object frame, byte[] serialized, long generation) {
+        if (enabled) {
+            getSegment(frame).store(frame, serialized, generation);
+        }
+    }
+
+    private Segment getSegment(Object frame) {
+        int hash = frame.hashCode();
+        // spreads the higher bits, as the hash codes of similar frames often only differ in those
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            segment.evictAll();
+        }
+    }
+
+    public long getHits() {
+        long hits = 0;
+        for (Segment segment : segments) {
+            hits += segment.getHits();
+        }
+        return hits;
+    }
+
+    public long getMisses() {
+        long misses = 0;
+        for (Segment segment : segments) {
+            misses += segment.getMisses();
+        }
+        return misses;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * Registers gauges for the total number of cache hits and misses and the current number of cached frames
+     */
+    public void registerMetrics(MetricRegistry metricRegistry) {
+        metricRegistry.add("agent.stacktrace.frame_cache", Labels.Mutable.of("result", "hit"), new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getHits();
+            }
+        });
+        metricRegistry.add("agent.stacktrace.frame_cache", Labels.Mutable.of("result", "miss"), new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getMisses();
+            }
+        });
+        metricRegistry.add("agent.stacktrace.frame_cache.size", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getSize();
+            }
+        });
+    }
+
+    /**
+     * The trie is built from the configured collection, which is kept to detect changes of the configuration
+     */
+    private static class ApplicationPackages {
+        private final Collection<String> packages;
+        private final PrefixTrie trie;
+        private final long generation;
+
+        private ApplicationPackages(Collection<String> packages, long generation) {
+            this.packages = packages;
+            this.trie = new PrefixTrie(packages);
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Wraps an access-ordered map, and evicts its least recently used entry once it exceeds the maximum size.
+     * The hit and miss counters are only updated while holding the lock of the segment, so they don't need to be atomic.
+     */
+    private class Segment {
+        private final LinkedHashMap<Object, byte[]> frames = new LinkedHashMap<>(16, 0.75f, true);
+        private final int maxSize;
+        private long hits;
+        private long misses;
+
+        private Segment(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Nullable
+        synchronized byte[] lookup(Object frame) {
+            byte[] serialized = frames.get(frame);
+            if (serialized != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+            return serialized;
+        }
+
+        /**
+         * The generation is checked while holding the lock, as {@link #evictAll()} would otherwise not see a frame
+         * which is stored concurrently to a change of the application packages
+         */
+        synchronized void store(Object frame, byte[] serialized, long generation) {
+            if (generation != applicationPackages.generation) {
+                return;
+            }
+            frames.put(frame, serialized);
+            if (frames.size() > maxSize) {
+                final Iterator<Object> eldest = frames.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+
+        synchronized void evictAll() {
+            frames.clear();
+        }
+
+        synchronized long getHits() {
+            return hits;
+        }
+
+        synchronized long getMisses() {
+            return misses;
+        }
+
+        synchronized int getSize() {
+            return frames.size();
+        }
+    }
+}
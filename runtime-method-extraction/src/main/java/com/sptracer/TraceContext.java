@@ -166,6 +166,12 @@ public class TraceContext implements Recyclable {
     private final Id parentId = Id.new64BitId();
     private final Id transactionId = Id.new64BitId();
     private final StringBuilder outgoingTextHeader = new StringBuilder(TEXT_HEADER_EXPECTED_LENGTH);
+    /**
+     * Caches the String value of {@link #outgoingTextHeader} so that propagating the context to multiple downstream calls
+     * only allocates it once
+     */
+    @Nullable
+    private String outgoingTextHeaderString;
     private byte flags;
     private boolean discardable = true;
     // weakly referencing to avoid CL leaks in case of leaked spans
@@ -191,6 +197,7 @@ public class TraceContext implements Recyclable {
         traceState.setSizeLimit(coreConfiguration.getTracestateSizeLimit());
         this.tracer = tracer;
         this.id = id;
+        clock.setCoarseClock(tracer.getCoarseClock());
     }
 
     /**
@@ -247,38 +254,47 @@ public class TraceContext implements Recyclable {
      * @param traceParentHeader traceparent text header value
      * @return {@literal true} if header value is valid, {@literal false} otherwise
      */
-    boolean asChildOf(String traceParentHeader) {
-        traceParentHeader = traceParentHeader.trim();
+    boolean asChildOf(CharSequence traceParentHeader) {
+        // instead of trimming the header, which would create a new String, the surrounding whitespace is skipped
+        int start = 0;
+        int end = traceParentHeader.length();
+        while (start < end && traceParentHeader.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && traceParentHeader.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int length = end - start;
         try {
-            if (traceParentHeader.length() < TEXT_HEADER_EXPECTED_LENGTH) {
+            if (length < TEXT_HEADER_EXPECTED_LENGTH) {
                 logger.warn("The traceparent header has to be at least 55 chars long, but was '{}'", traceParentHeader);
                 return false;
             }
-            if (noDashAtPosition(traceParentHeader, TEXT_HEADER_TRACE_ID_OFFSET - 1)
-                    || noDashAtPosition(traceParentHeader, TEXT_HEADER_PARENT_ID_OFFSET - 1)
-                    || noDashAtPosition(traceParentHeader, TEXT_HEADER_FLAGS_OFFSET - 1)) {
+            if (noDashAtPosition(traceParentHeader, start + TEXT_HEADER_TRACE_ID_OFFSET - 1)
+                    || noDashAtPosition(traceParentHeader, start + TEXT_HEADER_PARENT_ID_OFFSET - 1)
+                    || noDashAtPosition(traceParentHeader, start + TEXT_HEADER_FLAGS_OFFSET - 1)) {
                 logger.warn("The traceparent header has an invalid format: '{}'", traceParentHeader);
                 return false;
             }
-            if (traceParentHeader.length() > TEXT_HEADER_EXPECTED_LENGTH
-                    && noDashAtPosition(traceParentHeader, TEXT_HEADER_EXPECTED_LENGTH)) {
+            if (length > TEXT_HEADER_EXPECTED_LENGTH
+                    && noDashAtPosition(traceParentHeader, start + TEXT_HEADER_EXPECTED_LENGTH)) {
                 logger.warn("The traceparent header has an invalid format: '{}'", traceParentHeader);
                 return false;
             }
-            if (traceParentHeader.startsWith("ff")) {
+            if (traceParentHeader.charAt(start) == 'f' && traceParentHeader.charAt(start + 1) == 'f') {
                 logger.warn("Version ff is not supported");
                 return false;
             }
-            byte version = HexUtils.getNextByte(traceParentHeader, 0);
-            if (version == 0 && traceParentHeader.length() > TEXT_HEADER_EXPECTED_LENGTH) {
+            byte version = HexUtils.getNextByte(traceParentHeader, start);
+            if (version == 0 && length > TEXT_HEADER_EXPECTED_LENGTH) {
                 logger.warn("The traceparent header has to be exactly 55 chars long for version 00, but was '{}'", traceParentHeader);
                 return false;
             }
-            traceId.fromHexString(traceParentHeader, TEXT_HEADER_TRACE_ID_OFFSET);
+            traceId.fromHexString(traceParentHeader, start + TEXT_HEADER_TRACE_ID_OFFSET);
             if (traceId.isEmpty()) {
                 return false;
             }
-            parentId.fromHexString(traceParentHeader, TEXT_HEADER_PARENT_ID_OFFSET);
+            parentId.fromHexString(traceParentHeader, start + TEXT_HEADER_PARENT_ID_OFFSET);
             if (parentId.isEmpty()) {
                 return false;
             }
@@ -287,7 +303,7 @@ public class TraceContext implements Recyclable {
             // TODO don't blindly trust the flags from the caller
             // consider implement rate limiting and/or having a list of trusted sources
             // trace the request if it's either requested or if the parent has recorded it
-            flags = HexUtils.getNextByte(traceParentHeader, TEXT_HEADER_FLAGS_OFFSET);
+            flags = HexUtils.getNextByte(traceParentHeader, start + TEXT_HEADER_FLAGS_OFFSET);
             clock.init();
             return true;
         } catch (IllegalArgumentException e) {
@@ -356,7 +372,7 @@ public class TraceContext implements Recyclable {
         }
     }
 
-    private boolean noDashAtPosition(String traceParentHeader, int index) {
+    private boolean noDashAtPosition(CharSequence traceParentHeader, int index) {
         return traceParentHeader.charAt(index) != '-';
     }
 
@@ -392,6 +408,7 @@ public class TraceContext implements Recyclable {
         parentId.resetState();
         transactionId.resetState();
         outgoingTextHeader.setLength(0);
+        outgoingTextHeaderString = null;
         flags = 0;
         discardable = true;
         clock.resetState();
@@ -468,6 +485,7 @@ public class TraceContext implements Recyclable {
         } else {
             flags &= ~FLAG_RECORDED;
         }
+        onMutation();
     }
 
     public void setNonDiscardable() {
@@ -496,7 +514,7 @@ public class TraceContext implements Recyclable {
      * @param <C>          the header carrier type, for example - an HTTP request
      */
     <C> void propagateTraceContext(C carrier, TextHeaderSetter<C> headerSetter) {
-        String outgoingTraceParent = getOutgoingTraceParentTextHeader().toString();
+        String outgoingTraceParent = getOutgoingTraceParentTextHeaderString();
 
         headerSetter.setHeader(W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, outgoingTraceParent, carrier);
         if (coreConfiguration.isElasticTraceparentHeaderEnabled()) {
@@ -545,6 +563,14 @@ public class TraceContext implements Recyclable {
         return outgoingTextHeader;
     }
 
+    private String getOutgoingTraceParentTextHeaderString() {
+        String header = outgoingTextHeaderString;
+        if (header == null) {
+            header = outgoingTextHeaderString = getOutgoingTraceParentTextHeader().toString();
+        }
+        return header;
+    }
+
     private void fillTraceParentHeader(StringBuilder sb, Id spanId) {
         sb.append("00-");
         traceId.writeAsHex(sb);
@@ -603,11 +629,12 @@ public class TraceContext implements Recyclable {
 
     @Override
     public String toString() {
-        return getOutgoingTraceParentTextHeader().toString();
+        return getOutgoingTraceParentTextHeaderString();
     }
 
     private void onMutation() {
         outgoingTextHeader.setLength(0);
+        outgoingTextHeaderString = null;
     }
 
     public boolean isRoot() {
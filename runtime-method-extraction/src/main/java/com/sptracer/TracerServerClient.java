@@ -55,10 +55,12 @@ public class TracerServerClient {
     private volatile Future<Version> apmServerVersion;
     private final AtomicInteger errorCount = new AtomicInteger();
     private final TracerServerHealthChecker healthChecker;
+    private final TracerServerConnectionManager connectionManager;
 
     public TracerServerClient(ReporterConfiguration reporterConfiguration) {
         this.reporterConfiguration = reporterConfiguration;
         this.healthChecker = new TracerServerHealthChecker(this);
+        this.connectionManager = new TracerServerConnectionManager(reporterConfiguration);
     }
 
     public void start() {
@@ -97,13 +99,40 @@ public class TracerServerClient {
         return copy;
     }
 
+    /**
+     * Opens a connection to the APM server selected by the {@link TracerServerConnectionManager}.
+     * The connection has to be established via {@link #connect(HttpURLConnection)} and ended via {@link #endRequest(HttpURLConnection, Integer)}.
+     */
     @Nullable
     HttpURLConnection startRequest(String relativePath) throws IOException {
-        URL url = appendPathToCurrentUrl(relativePath);
-        if (url == null) {
+        URL serverUrl = connectionManager.selectServerUrl(getPrioritizedUrlList());
+        if (serverUrl == null) {
             return null;
         }
-        return startRequestToUrl(url);
+        return startRequestToUrl(appendPath(serverUrl, relativePath));
+    }
+
+    /**
+     * Connects to the APM server, measuring the connection setup time
+     *
+     * @param connection a connection returned by {@link #startRequest(String)}
+     */
+    void connect(HttpURLConnection connection) throws IOException {
+        connectionManager.connect(connection);
+    }
+
+    /**
+     * Must be called after the response of a {@link #connect(HttpURLConnection) connected} request has been consumed
+     *
+     * @param connection   the connection of the request
+     * @param responseCode the response code, {@code null} if the APM server did not send a response
+     */
+    void endRequest(HttpURLConnection connection, @Nullable Integer responseCode) {
+        connectionManager.onRequestEnd(connection, responseCode);
+    }
+
+    public TracerServerConnectionManager getConnectionManager() {
+        return connectionManager;
     }
 
     @Nonnull
@@ -144,15 +173,6 @@ public class TracerServerClient {
         return (HttpURLConnection) connection;
     }
 
-    @Nullable
-    URL appendPathToCurrentUrl(String apmServerPath) throws MalformedURLException {
-        URL currentUrl = getCurrentUrl();
-        if (currentUrl == null) {
-            return null;
-        }
-        return appendPath(currentUrl, apmServerPath);
-    }
-
     @Nonnull
     private URL appendPath(URL serverUrl, String apmServerPath) throws MalformedURLException {
         String path = serverUrl.getPath();
@@ -0,0 +1,188 @@
+package com.sptracer;
+
+import com.sptracer.metrics.DoubleSupplier;
+import com.sptracer.metrics.Labels;
+import com.sptracer.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the connections of the {@link TracerServerClient} per APM server, so that connections can be reused
+ * and concurrent requests are spread across the APM servers.
+ * <p>
+ * The TCP connections themselves are pooled by the keep-alive cache of {@link HttpURLConnection}, per protocol, host and port.
+ * A connection is only returned to the pool if the response has been fully consumed and the stream has been closed,
+ * see {@link com.sptracer.util.HttpUtils#consumeAndClose(HttpURLConnection)}.
+ * TLS sessions are cached by the shared {@link javax.net.ssl.SSLContext} of {@link com.sptracer.util.SslUtils},
+ * so that new connections to the same APM server can resume the session instead of doing a full handshake.
+ * </p>
+ * <p>
+ * Per APM server, this tracks:
+ * </p>
+ * <ul>
+ *     <li>The number of requests in flight, which is limited by {@link ReporterConfiguration#getMaxInFlightRequestsPerServer()}</li>
+ *     <li>
+ *         The health, an APM server is considered unhealthy after it could not be reached or responded with a server error,
+ *         for the same time the reporter backs off, see {@link AbstractIntakeApiHandler#getBackoffTimeSeconds(long)}
+ *     </li>
+ * </ul>
+ * <p>
+ * The time it takes to establish a connection is reported as the {@code agent.reporter.connection.setup_time_us.*} metrics.
+ * It's close to zero for connections which have been reused from the keep-alive cache.
+ * </p>
+ */
+public class TracerServerConnectionManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(TracerServerConnectionManager.class);
+
+    private final ReporterConfiguration reporterConfiguration;
+    private final ConcurrentMap<String, ServerState> servers = new ConcurrentHashMap<>();
+    private final MetricDistribution setupTime;
+
+    public TracerServerConnectionManager(ReporterConfiguration reporterConfiguration) {
+        this.reporterConfiguration = reporterConfiguration;
+        this.setupTime = new MetricDistribution(TimeUnit.MINUTES.toMicros(1));
+    }
+
+    /**
+     * Selects the APM server for the next request.
+     * <p>
+     * That's the first healthy APM server which has less than {@link ReporterConfiguration#getMaxInFlightRequestsPerServer()} requests in flight.
+     * If all are busy, it's the first healthy one, and if none is healthy, it's the first one.
+     * </p>
+     *
+     * @param prioritizedUrls the APM server URLs, starting with the current one
+     * @return the selected URL, or {@code null} if there are no URLs
+     */
+    @Nullable
+    URL selectServerUrl(List<URL> prioritizedUrls) {
+        if (prioritizedUrls.isEmpty()) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        final int maxInFlight = reporterConfiguration.getMaxInFlightRequestsPerServer();
+        URL firstHealthy = null;
+        for (URL url : prioritizedUrls) {
+            final ServerState server = servers.get(getKey(url));
+            if (server == null) {
+                return url;
+            }
+            if (server.isHealthy(now)) {
+                if (server.inFlight.get() < maxInFlight) {
+                    return url;
+                }
+                if (firstHealthy == null) {
+                    firstHealthy = url;
+                }
+            }
+        }
+        return firstHealthy != null ? firstHealthy : prioritizedUrls.get(0);
+    }
+
+    /**
+     * Connects to the APM server and counts the request as being in flight until {@link #onRequestEnd} is called
+     */
+    void connect(HttpURLConnection connection) throws IOException {
+        final ServerState server = getServerState(connection.getURL());
+        server.inFlight.incrementAndGet();
+        final long start = System.nanoTime();
+        try {
+            connection.connect();
+        } catch (IOException e) {
+            onRequestEnd(connection, null);
+            throw e;
+        }
+        setupTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    /**
+     * @param connection   a connection which has been {@link #connect(HttpURLConnection) connected}
+     * @param responseCode the response code, {@code null} if the APM server did not send a response
+     */
+    void onRequestEnd(HttpURLConnection connection, @Nullable Integer responseCode) {
+        final ServerState server = getServerState(connection.getURL());
+        server.inFlight.decrementAndGet();
+        // like in AbstractIntakeApiHandler#onConnectionError, only these indicate connection or capacity issues of the APM server
+        if (responseCode != null && responseCode <= 429) {
+            server.consecutiveErrors.set(0);
+        } else {
+            final long backoffMillis = TimeUnit.SECONDS.toMillis(AbstractIntakeApiHandler.getBackoffTimeSeconds(server.consecutiveErrors.incrementAndGet()));
+            server.unhealthyUntil = System.currentTimeMillis() + backoffMillis;
+            if (logger.isDebugEnabled()) {
+                logger.debug("Considering {} unhealthy for {} ms", getKey(connection.getURL()), backoffMillis);
+            }
+        }
+    }
+
+    private ServerState getServerState(URL url) {
+        final String key = getKey(url);
+        ServerState server = servers.get(key);
+        if (server == null) {
+            servers.putIfAbsent(key, new ServerState());
+            server = servers.get(key);
+        }
+        return server;
+    }
+
+    /**
+     * Connections are pooled per protocol, host and port, regardless of the path
+     */
+    private static String getKey(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+
+    public int getInFlightRequests() {
+        int inFlight = 0;
+        for (ServerState server : servers.values()) {
+            inFlight += server.inFlight.get();
+        }
+        return inFlight;
+    }
+
+    public int getUnhealthyServers() {
+        final long now = System.currentTimeMillis();
+        int unhealthy = 0;
+        for (ServerState server : servers.values()) {
+            if (!server.isHealthy(now)) {
+                unhealthy++;
+            }
+        }
+        return unhealthy;
+    }
+
+    public void registerMetrics(MetricRegistry metricRegistry) {
+        setupTime.registerMetrics(metricRegistry, "agent.reporter.connection.setup_time_us", Labels.EMPTY);
+        metricRegistry.add("agent.reporter.connection.in_flight", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getInFlightRequests();
+            }
+        });
+        metricRegistry.add("agent.reporter.connection.unhealthy_servers", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getUnhealthyServers();
+            }
+        });
+    }
+
+    private static class ServerState {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger consecutiveErrors = new AtomicInteger();
+        private volatile long unhealthyUntil;
+
+        private boolean isHealthy(long now) {
+            return now >= unhealthyUntil;
+        }
+    }
+}
@@ -9,14 +9,19 @@ import org.slf4j.LoggerFactory;
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventTranslator;
 import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.WaitStrategy;
 import com.lmax.disruptor.IgnoreExceptionHandler;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.lmax.disruptor.dsl.ProducerType;
+import javax.annotation.Nullable;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import com.sptracer.impl.Span;
 
 public class TracerServerReporter implements Reporter {
@@ -41,6 +46,12 @@ public class TracerServerReporter implements Reporter {
             event.setFlushEvent();
         }
     };
+    private static final EventTranslator<ReportingEvent> FLUSH_ON_TIMEOUT_EVENT_TRANSLATOR = new EventTranslator<ReportingEvent>() {
+        @Override
+        public void translateTo(ReportingEvent event, long sequence) {
+            event.setFlushOnTimeoutEvent();
+        }
+    };
     private static final EventTranslatorOneArg<ReportingEvent, ErrorCapture> ERROR_EVENT_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, ErrorCapture>() {
         @Override
         public void translateTo(ReportingEvent event, long sequence, ErrorCapture error) {
@@ -62,23 +73,37 @@ public class TracerServerReporter implements Reporter {
 
     private final Disruptor<ReportingEvent> disruptor;
     private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLongArray droppedPerPriority = new AtomicLongArray(EventPriority.values().length);
     private final boolean dropTransactionIfQueueFull;
     private final ReportingEventHandler reportingEventHandler;
     private final boolean syncReport;
+    @Nullable
+    private final EventPreSerializer preSerializer;
 
     public TracerServerReporter(boolean dropTransactionIfQueueFull, ReporterConfiguration reporterConfiguration,
                              ReportingEventHandler reportingEventHandler) {
+        this(dropTransactionIfQueueFull, reporterConfiguration.isReportSynchronously(), reporterConfiguration.getMaxQueueSize(),
+            "server-reporter", reporterConfiguration.getReporterWaitStrategy().createWaitStrategy(), reportingEventHandler, null);
+    }
+
+    /**
+     * @param preSerializer when set, spans and transactions are serialized by the reporting thread,
+     *                      see {@link ReporterConfiguration#isSerializeOnEnd()}
+     */
+    TracerServerReporter(boolean dropTransactionIfQueueFull, boolean syncReport, int queueSize, final String threadName, WaitStrategy waitStrategy,
+                         ReportingEventHandler reportingEventHandler, @Nullable EventPreSerializer preSerializer) {
         this.dropTransactionIfQueueFull = dropTransactionIfQueueFull;
-        this.syncReport = reporterConfiguration.isReportSynchronously();
-        disruptor = new Disruptor<>(new TransactionEventFactory(), MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize()), new ThreadFactory() {
+        this.syncReport = syncReport;
+        this.preSerializer = preSerializer;
+        disruptor = new Disruptor<>(new TransactionEventFactory(), MathUtils.getNextPowerOf2(queueSize), new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
                 Thread thread = new Thread(r);
                 thread.setDaemon(true);
-                thread.setName(ThreadUtils.addElasticApmThreadPrefix("server-reporter"));
+                thread.setName(ThreadUtils.addElasticApmThreadPrefix(threadName));
                 return thread;
             }
-        }, ProducerType.MULTI, new ExponentiallyIncreasingSleepingWaitStrategy(100_000, 10_000_000));
+        }, ProducerType.MULTI, waitStrategy);
         this.reportingEventHandler = reportingEventHandler;
         disruptor.setDefaultExceptionHandler(new IgnoreExceptionHandler());
         disruptor.handleEventsWith(this.reportingEventHandler);
@@ -91,8 +116,10 @@ public class TracerServerReporter implements Reporter {
     }
 
     @Override
-    public void report() {
-        if (!tryAddEventToRingBuffer(transaction, TRANSACTION_EVENT_TRANSLATOR)) {
+    public void report(com.sptracer.impl.Transaction transaction) {
+        if (preSerializer != null) {
+            preSerializer.report(transaction, this);
+        } else if (!tryAddEventToRingBuffer(transaction, TRANSACTION_EVENT_TRANSLATOR, EventPriority.TRANSACTION)) {
             transaction.decrementReferences();
         }
         if (syncReport) {
@@ -102,7 +129,9 @@ public class TracerServerReporter implements Reporter {
 
     @Override
     public void report(Span span) {
-        if (!tryAddEventToRingBuffer(span, SPAN_EVENT_TRANSLATOR)) {
+        if (preSerializer != null) {
+            preSerializer.report(span, this);
+        } else if (!tryAddEventToRingBuffer(span, SPAN_EVENT_TRANSLATOR, EventPriority.SPAN)) {
             span.decrementReferences();
         }
         if (syncReport) {
@@ -123,6 +152,15 @@ public class TracerServerReporter implements Reporter {
         return dropped.get() + reportingEventHandler.getDropped();
     }
 
+    /**
+     * Only includes the events which have been rejected because of back-pressure,
+     * not the ones which could not be sent by the {@link ReportingEventHandler}.
+     */
+    @Override
+    public long getDropped(EventPriority priority) {
+        return droppedPerPriority.get(priority.ordinal());
+    }
+
     @Override
     public long getReported() {
         return reportingEventHandler.getReported();
@@ -138,7 +176,18 @@ public class TracerServerReporter implements Reporter {
      */
     @Override
     public Future<Void> flush() {
-        final boolean success = disruptor.getRingBuffer().tryPublishEvent(FLUSH_EVENT_TRANSLATOR);
+        return flush(FLUSH_EVENT_TRANSLATOR);
+    }
+
+    /**
+     * Like {@link #flush()}, but marks the flush as being caused by {@link ReporterConfiguration#getApiRequestTime()}
+     */
+    Future<Void> flushOnTimeout() {
+        return flush(FLUSH_ON_TIMEOUT_EVENT_TRANSLATOR);
+    }
+
+    private Future<Void> flush(EventTranslator<ReportingEvent> flushEventTranslator) {
+        final boolean success = disruptor.getRingBuffer().tryPublishEvent(flushEventTranslator);
         if (!success) {
             throw new IllegalStateException("Ring buffer has no available slots");
         }
@@ -191,6 +240,18 @@ public class TracerServerReporter implements Reporter {
         };
     }
 
+    /**
+     * @return the number of events in the ring buffer which have not been handled yet
+     */
+    int getQueueSize() {
+        final RingBuffer<ReportingEvent> ringBuffer = disruptor.getRingBuffer();
+        return (int) (ringBuffer.getBufferSize() - ringBuffer.remainingCapacity());
+    }
+
+    int getQueueCapacity() {
+        return disruptor.getRingBuffer().getBufferSize();
+    }
+
     private boolean isEventProcessed(long sequence) {
         return disruptor.getSequenceValueFor(reportingEventHandler) >= sequence;
     }
@@ -209,7 +270,7 @@ public class TracerServerReporter implements Reporter {
 
     @Override
     public void report(ErrorCapture error) {
-        if (!tryAddEventToRingBuffer(error, ERROR_EVENT_TRANSLATOR)) {
+        if (!tryAddEventToRingBuffer(error, ERROR_EVENT_TRANSLATOR, EventPriority.ERROR)) {
             error.recycle();
         }
         if (syncReport) {
@@ -222,20 +283,69 @@ public class TracerServerReporter implements Reporter {
         if (jsonWriter.size() == 0) {
             return;
         }
-        tryAddEventToRingBuffer(jsonWriter, JSON_WRITER_EVENT_TRANSLATOR);
+        tryAddEventToRingBuffer(jsonWriter, JSON_WRITER_EVENT_TRANSLATOR, EventPriority.METRICS);
         if (syncReport) {
             waitForFlush();
         }
     }
 
-    private <E> boolean tryAddEventToRingBuffer(E event, EventTranslatorOneArg<ReportingEvent, E> eventTranslator) {
+    /**
+     * Adds a chunk of already serialized ND-JSON events, which are written to the current request as-is.
+     * <p>
+     * In contrast to {@link #report(JsonWriter)}, the events contained in the chunk are accounted for
+     * in {@link #getReported()} and {@link #getDropped()}.
+     * </p>
+     *
+     * @param buffer     the serialized events, must not be modified after calling this method
+     * @param offset     the offset of the first byte to write from the buffer
+     * @param length     the number of bytes to write from the buffer
+     * @param eventCount the number of events contained in the buffer
+     * @param chunk      the chunk the buffer belongs to, the caller's reference is taken over and released once the events have been written
+     * @param priority   the priority class of the events
+     * @return {@code false} if the events have been dropped because the queue is full
+     */
+    boolean reportSerializedEvents(byte[] buffer, int offset, int length, int eventCount, @Nullable SerializedEventChunk chunk, EventPriority priority) {
+        // claiming the slot manually avoids boxing the arguments of an event translator
+        RingBuffer<ReportingEvent> ringBuffer = disruptor.getRingBuffer();
+        long sequence = -1;
         if (dropTransactionIfQueueFull) {
-            boolean queueFull = !disruptor.getRingBuffer().tryPublishEvent(eventTranslator, event);
-            if (queueFull) {
+            if (isAccepted(ringBuffer, priority)) {
+                try {
+                    sequence = ringBuffer.tryNext();
+                } catch (InsufficientCapacityException ignore) {
+                    // dropped below
+                }
+            }
+            if (sequence < 0) {
                 if (logger.isDebugEnabled()) {
-                    logger.debug("Could not add {} {} to ring buffer as no slots are available", event.getClass().getSimpleName(), event);
+                    logger.debug("Could not add {} serialized events to ring buffer as no slots are available for priority {}", eventCount, priority);
+                }
+                onDropped(priority, eventCount);
+                if (chunk != null) {
+                    chunk.decrementReferences();
                 }
-                dropped.incrementAndGet();
+                return false;
+            }
+        } else {
+            sequence = ringBuffer.next();
+        }
+        try {
+            ringBuffer.get(sequence).setSerializedEvents(buffer, offset, length, eventCount, chunk, priority);
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+        return true;
+    }
+
+    private <E> boolean tryAddEventToRingBuffer(E event, EventTranslatorOneArg<ReportingEvent, E> eventTranslator, EventPriority priority) {
+        if (dropTransactionIfQueueFull) {
+            RingBuffer<ReportingEvent> ringBuffer = disruptor.getRingBuffer();
+            boolean rejected = !isAccepted(ringBuffer, priority) || !ringBuffer.tryPublishEvent(eventTranslator, event);
+            if (rejected) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Could not add {} {} to ring buffer as no slots are available for priority {}", event.getClass().getSimpleName(), event, priority);
+                }
+                onDropped(priority, 1);
                 return false;
             }
         } else {
@@ -244,6 +354,19 @@ public class TracerServerReporter implements Reporter {
         return true;
     }
 
+    /**
+     * Sheds lower priority events as the ring buffer fills up, so that there's capacity left for higher priority events
+     */
+    private static boolean isAccepted(RingBuffer<ReportingEvent> ringBuffer, EventPriority priority) {
+        int bufferSize = ringBuffer.getBufferSize();
+        return priority.isAccepted(bufferSize - ringBuffer.remainingCapacity(), bufferSize);
+    }
+
+    private void onDropped(EventPriority priority, int eventCount) {
+        dropped.addAndGet(eventCount);
+        droppedPerPriority.addAndGet(priority.ordinal(), eventCount);
+    }
+
     static class TransactionEventFactory implements EventFactory<ReportingEvent> {
         @Override
         public ReportingEvent newInstance() {
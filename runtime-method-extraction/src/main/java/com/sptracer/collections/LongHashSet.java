@@ -0,0 +1,258 @@
+package com.sptracer.collections;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive {@code long}s, based on open addressing with linear probing.
+ * <p>
+ * As opposed to {@link LongList#contains(long)}, lookups take constant time, regardless of the number of elements.
+ * {@code 0} is used to mark free slots, which is why it is tracked separately.
+ * </p>
+ * <p>
+ * Elements can be iterated without allocating an iterator:
+ * </p>
+ * <pre>
+ * for (int i = set.nextIndex(-1); i &gt;= 0; i = set.nextIndex(i)) {
+ *     long value = set.valueAt(i);
+ * }
+ * </pre>
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+public class LongHashSet {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    /**
+     * When clearing a set which has grown larger than this, the slots are re-allocated with the default capacity
+     * in order to not retain large arrays in pooled objects
+     */
+    private static final int MAX_RETAINED_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private long[] slots;
+    private int mask;
+    private int resizeThreshold;
+    private boolean containsZero;
+    private int size;
+
+    public LongHashSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize the number of elements which can be added without resizing the set
+     */
+    public LongHashSet(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    public static LongHashSet of(long... values) {
+        LongHashSet set = new LongHashSet(values.length);
+        for (long value : values) {
+            set.add(value);
+        }
+        return set;
+    }
+
+    /**
+     * @return {@code true} if the value has been added, {@code false} if it was already contained
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int index = hash(value);
+        long current;
+        while ((current = slots[index]) != 0) {
+            if (current == value) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        slots[index] = value;
+        if (++size > resizeThreshold) {
+            rehash(slots.length << 1);
+        }
+        return true;
+    }
+
+    public void addAll(LongList values) {
+        for (int i = 0; i < values.getSize(); i++) {
+            add(values.get(i));
+        }
+    }
+
+    public boolean contains(long value) {
+        if (value == 0) {
+            return containsZero;
+        }
+        int index = hash(value);
+        long current;
+        while ((current = slots[index]) != 0) {
+            if (current == value) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the value has been removed, {@code false} if it was not contained
+     */
+    public boolean remove(long value) {
+        if (value == 0) {
+            if (!containsZero) {
+                return false;
+            }
+            containsZero = false;
+            size--;
+            return true;
+        }
+        int index = hash(value);
+        long current;
+        while ((current = slots[index]) != value) {
+            if (current == 0) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        slots[index] = 0;
+        size--;
+        compactChain(index);
+        return true;
+    }
+
+    /**
+     * Shifts back the elements following a removed slot, so that no element becomes unreachable from its home slot
+     */
+    private void compactChain(int freeIndex) {
+        int index = freeIndex;
+        long current;
+        while ((current = slots[index = (index + 1) & mask]) != 0) {
+            int home = hash(current);
+            // move the element if its home slot is not cyclically between the free slot and its current slot
+            if ((index > freeIndex && (home <= freeIndex || home > index))
+                || (index < freeIndex && (home <= freeIndex && home > index))) {
+                slots[freeIndex] = current;
+                slots[index] = 0;
+                freeIndex = index;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all elements while keeping the allocated slots, unless the set has grown unusually large
+     */
+    public void clear() {
+        if (slots.length > MAX_RETAINED_CAPACITY) {
+            allocate(DEFAULT_CAPACITY);
+        } else if (size > 0) {
+            Arrays.fill(slots, 0);
+        }
+        containsZero = false;
+        size = 0;
+    }
+
+    /**
+     * Returns the index of the next element, to be used with {@link #valueAt(int)}.
+     *
+     * @param index the index of the previous element or {@code -1} to get the first one
+     * @return the index of the next element or {@code -1} if there are no more elements
+     */
+    public int nextIndex(int index) {
+        for (int i = index + 1; i < slots.length; i++) {
+            if (slots[i] != 0) {
+                return i;
+            }
+        }
+        if (containsZero && index < slots.length) {
+            return slots.length;
+        }
+        return -1;
+    }
+
+    public long valueAt(int index) {
+        return index == slots.length ? 0 : slots[index];
+    }
+
+    public long[] toArray() {
+        long[] result = new long[size];
+        int i = 0;
+        for (int index = nextIndex(-1); index >= 0; index = nextIndex(index)) {
+            result[i++] = valueAt(index);
+        }
+        return result;
+    }
+
+    private void rehash(int newCapacity) {
+        if (newCapacity > MAX_CAPACITY) {
+            throw new OutOfMemoryError();
+        }
+        long[] oldSlots = slots;
+        allocate(newCapacity);
+        for (long value : oldSlots) {
+            if (value != 0) {
+                int index = hash(value);
+                while (slots[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                slots[index] = value;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        slots = new long[capacity];
+        mask = capacity - 1;
+        // load factor of 0.5
+        resizeThreshold = capacity >> 1;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity >> 1 < expectedSize) {
+            capacity <<= 1;
+            if (capacity > MAX_CAPACITY) {
+                throw new IllegalArgumentException("Expected size too large: " + expectedSize);
+            }
+        }
+        return capacity;
+    }
+
+    private int hash(long value) {
+        // murmur3 finalizer, spreads sequential values over the table
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return (int) value & mask;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        for (int i = nextIndex(-1); i >= 0; i = nextIndex(i)) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(valueAt(i));
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+}
@@ -564,6 +564,127 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             .dynamic(true)
             .buildWithDefault(TimeDuration.of("0ms"));
 
+    private final ConfigurationOption<Long> coarseClockResolution = ConfigurationOption.longOption()
+            .key("coarse_clock_resolution_us")
+            .configurationCategory(CORE_CATEGORY)
+            .tags("performance", "experimental")
+            .description("When set to a value greater than 0, timestamps are read from a clock which is advanced\n" +
+                    "by a background thread at this resolution, in microseconds, instead of calling `System.nanoTime()`.\n" +
+                    "This makes taking timestamps cheaper, which helps when tracing very fine-grained methods,\n" +
+                    "at the expense of precision.\n" +
+                    "Spans and transactions which are shorter than the resolution are flagged as such.\n" +
+                    "\n" +
+                    "A value of `1000` corresponds to a millisecond resolution.")
+            .addValidator(isInRange(0L, 1_000_000L))
+            .dynamic(false)
+            .buildWithDefault(0L);
+
+    private final ConfigurationOption<Boolean> spanCompressionEnabled = ConfigurationOption.booleanOption()
+            .key("span_compression_enabled")
+            .configurationCategory(CORE_CATEGORY)
+            .tags("performance")
+            .description("Setting this option to true will enable span compression.\n" +
+                    "Consecutive sibling exit spans with the same name, type and destination\n" +
+                    "which are all faster than <<config-span-compression-exact-match-max-duration>>\n" +
+                    "are merged into a single composite span.\n" +
+                    "The composite span keeps the number of compressed spans and the sum of their durations.")
+            .dynamic(true)
+            .buildWithDefault(false);
+
+    private final ConfigurationOption<TimeDuration> spanCompressionExactMatchMaxDuration = TimeDurationValueConverter.durationOption("ms")
+            .key("span_compression_exact_match_max_duration")
+            .configurationCategory(CORE_CATEGORY)
+            .tags("performance")
+            .description("Consecutive spans that are exact match and that are under this threshold will be compressed into a single composite span.\n" +
+                    "This option does not apply to composite spans.\n" +
+                    "This reduces the collection, processing, and storage overhead, and removes clutter from the UI.\n" +
+                    "The tradeoff is that the DB statements of all the compressed spans will not be collected.")
+            .dynamic(true)
+            .buildWithDefault(TimeDuration.of("50ms"));
+
+    private final ConfigurationOption<Boolean> tailSampling = ConfigurationOption.booleanOption()
+            .key("tail_sampling")
+            .configurationCategory(CORE_CATEGORY)
+            .tags("performance", "experimental")
+            .description("When enabled, the spans of sampled transactions are buffered until the transaction ends.\n" +
+                    "The trace is only reported if the transaction is slower than <<config-tail-sampling-latency-threshold>>,\n" +
+                    "if it failed or if its name matches <<config-tail-sampling-keep-transactions>>.\n" +
+                    "Otherwise, the transaction and all of its spans are discarded.\n" +
+                    "\n" +
+                    "Tail sampling is applied on top of <<config-transaction-sample-rate>>.\n" +
+                    "Breakdown and transaction duration metrics are still collected for discarded traces.")
+            .dynamic(false)
+            .buildWithDefault(false);
+
+    private final ConfigurationOption<TimeDuration> tailSamplingLatencyThreshold = TimeDurationValueConverter.durationOption("ms")
+            .key("tail_sampling_latency_threshold")
+            .configurationCategory(CORE_CATEGORY)
+            .tags("performance", "experimental")
+            .description("Transactions which take at least this long are always kept when <<config-tail-sampling>> is enabled.")
+            .dynamic(true)
+            .buildWithDefault(TimeDuration.of("500ms"));
+
+    private final ConfigurationOption<List<WildcardMatcher>> tailSamplingKeepTransactions = ConfigurationOption
+            .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+            .key("tail_sampling_keep_transactions")
+            .configurationCategory(CORE_CATEGORY)
+            .tags("performance", "experimental")
+            .description("Transactions whose name matches any of these expressions are always kept when <<config-tail-sampling>> is enabled.\n" +
+                    "\n" +
+                    WildcardMatcher.DOCUMENTATION)
+            .dynamic(true)
+            .buildWithDefault(Collections.<WildcardMatcher>emptyList());
+
+    private final ConfigurationOption<ByteValue> tailSamplingMaxBufferSize = ByteValueConverter.byteOption()
+            .key("tail_sampling_max_buffer_size")
+            .configurationCategory(CORE_CATEGORY)
+            .tags("performance", "experimental")
+            .description("The estimated amount of memory all buffered spans may occupy while waiting for the tail sampling decision.\n" +
+                    "When the limit is reached, the buffers of the oldest traces are evicted first:\n" +
+                    "traces which are already slower than <<config-tail-sampling-latency-threshold>> are reported right away,\n" +
+                    "the spans of all other traces are dropped.\n" +
+                    "Regardless of the limit, the buffers of traces which are running longer than the threshold are flushed periodically.\n" +
+                    "\n" +
+                    "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+            .dynamic(false)
+            .buildWithDefault(ByteValue.of("16mb"));
+
+    private final ConfigurationOption<TimeDuration> errorDedupWindow = TimeDurationValueConverter.durationOption("ms")
+            .key("error_dedup_window")
+            .configurationCategory(CORE_CATEGORY)
+            .tags("performance", "experimental")
+            .description("When set to a value greater than 0ms, errors with the same fingerprint are only captured\n" +
+                    "<<config-error-dedup-max-per-window, `error_dedup_max_per_window`>> times within this window.\n" +
+                    "The fingerprint consists of the exception class, the top <<config-error-dedup-stack-frames, `error_dedup_stack_frames`>>\n" +
+                    "stack frames and the first stack frame within the <<config-application-packages, `application_packages`>>.\n" +
+                    "\n" +
+                    "The number of errors which have been suppressed is added as the `suppressed_duplicates` label\n" +
+                    "to the next captured error with the same fingerprint.\n" +
+                    "If the fingerprint is evicted before that, the number is logged and counted in the `agent.errors.suppressed_unreported` metric.\n" +
+                    "This protects the agent from being overwhelmed by storms of identical errors, for example caused by retries.")
+            .dynamic(true)
+            .buildWithDefault(TimeDuration.of("0ms"));
+
+    private final ConfigurationOption<Integer> errorDedupMaxPerWindow = ConfigurationOption.integerOption()
+            .key("error_dedup_max_per_window")
+            .configurationCategory(CORE_CATEGORY)
+            .tags("performance", "experimental")
+            .description("The number of errors with the same fingerprint which are captured within each\n" +
+                    "<<config-error-dedup-window, `error_dedup_window`>>.")
+            .addValidator(isInRange(1, 1000))
+            .dynamic(true)
+            .buildWithDefault(1);
+
+    private final ConfigurationOption<Integer> errorDedupStackFrames = ConfigurationOption.integerOption()
+            .key("error_dedup_stack_frames")
+            .configurationCategory(CORE_CATEGORY)
+            .tags("performance", "experimental")
+            .description("The number of top-most stack frames which are part of the fingerprint used by\n" +
+                    "<<config-error-dedup-window, `error_dedup_window`>>.")
+            .addValidator(isInRange(0, 100))
+            .dynamic(true)
+            .buildWithDefault(5);
+
     private final ConfigurationOption<CloudProvider> cloudProvider = ConfigurationOption.enumOption(CloudProvider.class)
             .key("cloud_provider")
             .tags("added[1.21.0]")
@@ -738,6 +859,46 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return spanMinDuration.get();
     }
 
+    public long getCoarseClockResolutionMicros() {
+        return coarseClockResolution.get();
+    }
+
+    public boolean isSpanCompressionEnabled() {
+        return spanCompressionEnabled.get();
+    }
+
+    public TimeDuration getSpanCompressionExactMatchMaxDuration() {
+        return spanCompressionExactMatchMaxDuration.get();
+    }
+
+    public long getErrorDedupWindowMs() {
+        return errorDedupWindow.get().getMillis();
+    }
+
+    public int getErrorDedupMaxPerWindow() {
+        return errorDedupMaxPerWindow.get();
+    }
+
+    public int getErrorDedupStackFrames() {
+        return errorDedupStackFrames.get();
+    }
+
+    public boolean isTailSamplingEnabled() {
+        return tailSampling.get();
+    }
+
+    public TimeDuration getTailSamplingLatencyThreshold() {
+        return tailSamplingLatencyThreshold.get();
+    }
+
+    public List<WildcardMatcher> getTailSamplingKeepTransactions() {
+        return tailSamplingKeepTransactions.get();
+    }
+
+    public long getTailSamplingMaxBufferSize() {
+        return tailSamplingMaxBufferSize.get().getBytes();
+    }
+
     public long geCloudMetadataDiscoveryTimeoutMs() {
         return cloudMetadataTimeoutMs.get().getMillis();
     }
@@ -0,0 +1,219 @@
+package com.sptracer.error;
+
+import com.sptracer.impl.StacktraceConfiguration;
+import com.sptracer.util.PrefixTrie;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Determines the culprit of an exception, which is the first frame within the {@link StacktraceConfiguration#getApplicationPackages()}
+ * of the innermost cause which has such a frame.
+ * <p>
+ * Errors thrown from the same site have the same culprit, so the culprits are cached by the exception classes of the cause chain
+ * and the top-most {@link #KEY_FRAMES} frames of each exception, which are compared on a hit.
+ * The stack traces are obtained via {@link ErrorCapture#getStackTrace(Throwable)},
+ * so that they are only copied once for both resolving the culprit and serializing the error.
+ * A culprit is only cached if it does not depend on any frame beyond these,
+ * otherwise errors thrown by the same library method but called from different places in the application would share a culprit.
+ * Whether a frame belongs to the application is determined via a {@link PrefixTrie} of the application packages,
+ * which is rebuilt when they change.
+ * </p>
+ * <p>
+ * The cache is shared by all errors and is cleared when it exceeds {@link #MAX_CACHED_CULPRITS}.
+ * </p>
+ */
+public class CulpritResolver {
+
+    static final int KEY_FRAMES = 8;
+    private static final int MAX_CACHED_CULPRITS = 1024;
+    private static final int MAX_CAUSES = 16;
+
+    private final StacktraceConfiguration stacktraceConfiguration;
+    private final ConcurrentMap<CulpritKey, String> culpritCache = new ConcurrentHashMap<>();
+    private volatile ApplicationPackages applicationPackages;
+
+    public CulpritResolver(StacktraceConfiguration stacktraceConfiguration) {
+        this.stacktraceConfiguration = stacktraceConfiguration;
+        this.applicationPackages = new ApplicationPackages(stacktraceConfiguration.getApplicationPackages());
+    }
+
+    /**
+     * @return the culprit of the exception of the error, or an empty string if there's no frame within the application packages
+     */
+    public String resolve(ErrorCapture error) {
+        final Throwable exception = error.getException();
+        final ApplicationPackages applicationPackages = getApplicationPackages();
+        if (exception == null || applicationPackages.trie.isEmpty()) {
+            return "";
+        }
+        int causeCount = 0;
+        for (Throwable cause = exception; cause != null && causeCount < MAX_CAUSES; cause = cause.getCause()) {
+            causeCount++;
+        }
+        final String[] exceptionTypes = new String[causeCount];
+        final StackTraceElement[][] stackTraces = new StackTraceElement[causeCount][];
+        Throwable cause = exception;
+        for (int i = 0; i < causeCount; i++, cause = cause.getCause()) {
+            exceptionTypes[i] = cause.getClass().getName();
+            stackTraces[i] = error.getStackTrace(cause);
+        }
+        final CulpritKey key = new CulpritKey(exceptionTypes, stackTraces);
+
+        String culprit = culpritCache.get(key);
+        if (culprit != null) {
+            return culprit;
+        }
+        boolean cacheable = true;
+        culprit = "";
+        // the innermost cause takes precedence
+        for (int i = causeCount - 1; i >= 0; i--) {
+            final StackTraceElement[] stackTrace = stackTraces[i];
+            int culpritIndex = findApplicationFrame(stackTrace, applicationPackages.trie);
+            if (culpritIndex >= 0) {
+                culprit = toCulprit(stackTrace[culpritIndex]);
+                cacheable &= culpritIndex < KEY_FRAMES;
+                break;
+            }
+            // the absence of an application frame depends on all frames
+            cacheable &= stackTrace.length <= KEY_FRAMES;
+        }
+        if (cacheable) {
+            if (culpritCache.size() >= MAX_CACHED_CULPRITS) {
+                culpritCache.clear();
+            }
+            culpritCache.put(key.withKeyFramesOnly(), culprit);
+        }
+        return culprit;
+    }
+
+    private ApplicationPackages getApplicationPackages() {
+        ApplicationPackages applicationPackages = this.applicationPackages;
+        final Collection<String> currentPackages = stacktraceConfiguration.getApplicationPackages();
+        if (applicationPackages.packages != currentPackages) {
+            applicationPackages = new ApplicationPackages(currentPackages);
+            this.applicationPackages = applicationPackages;
+            culpritCache.clear();
+        }
+        return applicationPackages;
+    }
+
+    private static int findApplicationFrame(StackTraceElement[] stackTrace, PrefixTrie applicationPackages) {
+        for (int i = 0; i < stackTrace.length; i++) {
+            if (applicationPackages.matches(stackTrace[i].getClassName())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String toCulprit(StackTraceElement stackTraceElement) {
+        final StringBuilder culprit = new StringBuilder();
+        final int lineNumber = stackTraceElement.getLineNumber();
+        final String fileName = stackTraceElement.getFileName();
+        culprit.append(stackTraceElement.getClassName())
+                .append('.')
+                .append(stackTraceElement.getMethodName())
+                .append('(');
+        if (stackTraceElement.isNativeMethod()) {
+            culprit.append("Native Method");
+        } else {
+            culprit.append(fileName != null ? fileName : "Unknown Source");
+            if (lineNumber > 0) {
+                culprit.append(':').append(lineNumber);
+            }
+        }
+        culprit.append(')');
+        return culprit.toString();
+    }
+
+    /**
+     * Identifies the throw site by the exception types of the cause chain and the top-most {@link #KEY_FRAMES} frames of each exception.
+     * The stack traces of a key which is only used for a lookup are not copied,
+     * frames beyond the key frames are ignored by {@link #equals(Object)}.
+     */
+    private static class CulpritKey {
+        private final String[] exceptionTypes;
+        private final StackTraceElement[][] stackTraces;
+        private final int hash;
+
+        private CulpritKey(String[] exceptionTypes, StackTraceElement[][] stackTraces) {
+            this.exceptionTypes = exceptionTypes;
+            this.stackTraces = stackTraces;
+            int hash = 0;
+            for (int i = 0; i < exceptionTypes.length; i++) {
+                hash = 31 * hash + exceptionTypes[i].hashCode();
+                final int keyFrames = getKeyFrames(stackTraces[i]);
+                for (int j = 0; j < keyFrames; j++) {
+                    hash = 31 * hash + stackTraces[i][j].hashCode();
+                }
+                hash = 31 * hash + keyFrames;
+            }
+            this.hash = hash;
+        }
+
+        /**
+         * @return a copy of this key which does not retain the frames beyond the key frames
+         */
+        private CulpritKey withKeyFramesOnly() {
+            final StackTraceElement[][] keyFrames = new StackTraceElement[stackTraces.length][];
+            for (int i = 0; i < stackTraces.length; i++) {
+                // retains one more frame, so that stack traces which end within the key frames are still distinguished from longer ones
+                keyFrames[i] = Arrays.copyOf(stackTraces[i], Math.min(stackTraces[i].length, KEY_FRAMES + 1));
+            }
+            return new CulpritKey(exceptionTypes, keyFrames);
+        }
+
+        private static int getKeyFrames(StackTraceElement[] stackTrace) {
+            return Math.min(stackTrace.length, KEY_FRAMES);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CulpritKey)) {
+                return false;
+            }
+            final CulpritKey that = (CulpritKey) o;
+            if (hash != that.hash || !Arrays.equals(exceptionTypes, that.exceptionTypes)) {
+                return false;
+            }
+            for (int i = 0; i < stackTraces.length; i++) {
+                final StackTraceElement[] stackTrace = stackTraces[i];
+                final StackTraceElement[] otherStackTrace = that.stackTraces[i];
+                if ((stackTrace.length > KEY_FRAMES) != (otherStackTrace.length > KEY_FRAMES)) {
+                    return false;
+                }
+                final int keyFrames = getKeyFrames(stackTrace);
+                for (int j = 0; j < keyFrames; j++) {
+                    if (!stackTrace[j].equals(otherStackTrace[j])) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The trie is built from the configured collection, which is kept to detect changes of the configuration
+     */
+    private static class ApplicationPackages {
+        private final Collection<String> packages;
+        private final PrefixTrie trie;
+
+        private ApplicationPackages(Collection<String> packages) {
+            this.packages = packages;
+            this.trie = new PrefixTrie(packages);
+        }
+    }
+}
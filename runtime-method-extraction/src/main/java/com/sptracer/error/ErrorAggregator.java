@@ -0,0 +1,237 @@
+package com.sptracer.error;
+
+import com.sptracer.StackFrameCache;
+import com.sptracer.configuration.CoreConfiguration;
+import com.sptracer.impl.StacktraceConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often errors with the same fingerprint are reported, so that retry storms don't overflow the error pool and the reporter.
+ * <p>
+ * The fingerprint of an error consists of the exception class, the top {@link CoreConfiguration#getErrorDedupStackFrames()} frames
+ * and the first frame within the {@link StacktraceConfiguration#getApplicationPackages()}, which usually is the culprit.
+ * Whether a frame belongs to the application is determined by {@link StackFrameCache#isLibraryFrame(String)},
+ * so that the fingerprint agrees with the {@code library_frame} flag of the serialized frames.
+ * Within each {@link CoreConfiguration#getErrorDedupWindowMs()}, only the first
+ * {@link CoreConfiguration#getErrorDedupMaxPerWindow()} errors of a fingerprint are captured.
+ * The number of suppressed errors is attached to the next captured error with the same fingerprint.
+ * If a fingerprint is evicted before that happens, its suppressed errors are logged and counted in {@link #getSuppressedUnreported()}.
+ * </p>
+ * <p>
+ * Fingerprints are computed on the application thread, before an {@link ErrorCapture} is taken from the pool.
+ * </p>
+ */
+public class ErrorAggregator {
+
+    private static final Logger logger = LoggerFactory.getLogger(ErrorAggregator.class);
+
+    /**
+     * Returned by {@link #onError(Throwable, long)} if the error should not be captured
+     */
+    public static final long SUPPRESSED = -1;
+    /**
+     * Once this many fingerprints are tracked, expired ones are evicted.
+     * If all of them are still active, errors with new fingerprints are captured without being tracked.
+     */
+    private static final int MAX_FINGERPRINTS = 1024;
+
+    private final CoreConfiguration coreConfiguration;
+    private final StackFrameCache stackFrameCache;
+    private final ConcurrentMap<Fingerprint, Occurrences> occurrencesByFingerprint = new ConcurrentHashMap<>();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong suppressedUnreported = new AtomicLong();
+
+    public ErrorAggregator(CoreConfiguration coreConfiguration, StackFrameCache stackFrameCache) {
+        this.coreConfiguration = coreConfiguration;
+        this.stackFrameCache = stackFrameCache;
+    }
+
+    /**
+     * @param e           the exception which is about to be captured
+     * @param nowMillis   the current time
+     * @return {@link #SUPPRESSED} if the error should not be captured,
+     * otherwise the number of errors with the same fingerprint which have been suppressed since the last captured one
+     */
+    public long onError(Throwable e, long nowMillis) {
+        final long windowMs = coreConfiguration.getErrorDedupWindowMs();
+        if (windowMs <= 0) {
+            return 0;
+        }
+        final Fingerprint fingerprint = computeFingerprint(e);
+        Occurrences occurrences = occurrencesByFingerprint.get(fingerprint);
+        if (occurrences == null) {
+            if (occurrencesByFingerprint.size() >= MAX_FINGERPRINTS && !evictExpired(nowMillis, windowMs)) {
+                return 0;
+            }
+            Occurrences newOccurrences = new Occurrences(nowMillis);
+            occurrences = occurrencesByFingerprint.putIfAbsent(fingerprint, newOccurrences);
+            if (occurrences == null) {
+                occurrences = newOccurrences;
+            }
+        }
+        long result = occurrences.onOccurrence(nowMillis, windowMs, coreConfiguration.getErrorDedupMaxPerWindow());
+        if (result == SUPPRESSED) {
+            suppressed.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * @return whether there's space for new fingerprints
+     */
+    private boolean evictExpired(long nowMillis, long windowMs) {
+        for (Iterator<Map.Entry<Fingerprint, Occurrences>> iterator = occurrencesByFingerprint.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry<Fingerprint, Occurrences> entry = iterator.next();
+            if (entry.getValue().isExpired(nowMillis, windowMs)) {
+                iterator.remove();
+                onEvicted(entry.getKey(), entry.getValue());
+            }
+        }
+        return occurrencesByFingerprint.size() < MAX_FINGERPRINTS;
+    }
+
+    /**
+     * The suppressed errors of an evicted fingerprint can't be attached to a later error anymore
+     */
+    private void onEvicted(Fingerprint fingerprint, Occurrences occurrences) {
+        final long suppressedSinceLastCapture = occurrences.evict();
+        if (suppressedSinceLastCapture > 0) {
+            suppressedUnreported.addAndGet(suppressedSinceLastCapture);
+            logger.info("Suppressed {} duplicates of {} which have not been reported", suppressedSinceLastCapture, fingerprint);
+        }
+    }
+
+    Fingerprint computeFingerprint(Throwable e) {
+        final StackTraceElement[] stackTrace = e.getStackTrace();
+        final int topFrames = Math.min(coreConfiguration.getErrorDedupStackFrames(), stackTrace.length);
+        int applicationFrame = -1;
+        for (int i = topFrames; i < stackTrace.length; i++) {
+            if (!stackFrameCache.isLibraryFrame(stackTrace[i].getClassName())) {
+                applicationFrame = i;
+                break;
+            }
+        }
+        final StackTraceElement[] frames = new StackTraceElement[applicationFrame >= 0 ? topFrames + 1 : topFrames];
+        System.arraycopy(stackTrace, 0, frames, 0, topFrames);
+        if (applicationFrame >= 0) {
+            frames[topFrames] = stackTrace[applicationFrame];
+        }
+        return new Fingerprint(e.getClass().getName(), frames);
+    }
+
+    /**
+     * @return the total number of errors which have not been captured because of deduplication
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    /**
+     * @return the number of suppressed errors which have not been attached to a captured error, as their fingerprint has been evicted
+     */
+    public long getSuppressedUnreported() {
+        return suppressedUnreported.get();
+    }
+
+    /**
+     * The exception type, the top frames and the first application frame beyond them.
+     * Frames are compared by their class, method and line number, as the file name and class loader don't identify a different site.
+     */
+    static class Fingerprint {
+        private final String exceptionType;
+        private final StackTraceElement[] frames;
+        private final int hash;
+
+        private Fingerprint(String exceptionType, StackTraceElement[] frames) {
+            this.exceptionType = exceptionType;
+            this.frames = frames;
+            int hash = exceptionType.hashCode();
+            for (StackTraceElement frame : frames) {
+                hash = 31 * hash + frame.getClassName().hashCode();
+                hash = 31 * hash + frame.getMethodName().hashCode();
+                hash = 31 * hash + frame.getLineNumber();
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Fingerprint)) {
+                return false;
+            }
+            final Fingerprint that = (Fingerprint) o;
+            if (hash != that.hash || frames.length != that.frames.length || !exceptionType.equals(that.exceptionType)) {
+                return false;
+            }
+            for (int i = 0; i < frames.length; i++) {
+                final StackTraceElement frame = frames[i];
+                final StackTraceElement otherFrame = that.frames[i];
+                if (frame.getLineNumber() != otherFrame.getLineNumber()
+                    || !frame.getMethodName().equals(otherFrame.getMethodName())
+                    || !frame.getClassName().equals(otherFrame.getClassName())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return frames.length > 0 ? exceptionType + " at " + frames[0] : exceptionType;
+        }
+    }
+
+    private static class Occurrences {
+        private long windowStart;
+        private int capturedInWindow;
+        private long suppressedSinceLastCapture;
+
+        private Occurrences(long windowStart) {
+            this.windowStart = windowStart;
+        }
+
+        synchronized long onOccurrence(long nowMillis, long windowMs, int maxPerWindow) {
+            if (nowMillis - windowStart >= windowMs) {
+                windowStart = nowMillis;
+                capturedInWindow = 0;
+            }
+            if (capturedInWindow < maxPerWindow) {
+                capturedInWindow++;
+                long suppressed = suppressedSinceLastCapture;
+                suppressedSinceLastCapture = 0;
+                return suppressed;
+            }
+            suppressedSinceLastCapture++;
+            return SUPPRESSED;
+        }
+
+        synchronized boolean isExpired(long nowMillis, long windowMs) {
+            return nowMillis - windowStart >= windowMs;
+        }
+
+        /**
+         * @return the number of errors which have been suppressed since the last captured one
+         */
+        synchronized long evict() {
+            long suppressed = suppressedSinceLastCapture;
+            suppressedSinceLastCapture = 0;
+            return suppressed;
+        }
+    }
+}
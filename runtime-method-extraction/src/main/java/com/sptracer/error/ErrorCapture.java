@@ -10,7 +10,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -48,6 +48,12 @@ public class ErrorCapture implements Recyclable {
 
     private final StringBuilder culprit = new StringBuilder();
 
+    /**
+     * The stack traces of the {@link #exception} and its causes, see {@link #getStackTrace(Throwable)}
+     */
+    private final List<Throwable> stackTraceOwners = new ArrayList<>();
+    private final List<StackTraceElement[]> stackTraces = new ArrayList<>();
+
     public ErrorCapture(SpTracerImpl tracer) {
         this.tracer = tracer;
         traceContext = TraceContext.with128BitId(this.tracer);
@@ -91,6 +97,8 @@ public class ErrorCapture implements Recyclable {
         transactionInfo.resetState();
         traceContext.resetState();
         culprit.setLength(0);
+        stackTraceOwners.clear();
+        stackTraces.clear();
     }
 
     public void recycle() {
@@ -139,46 +147,33 @@ public class ErrorCapture implements Recyclable {
 
     public StringBuilder getCulprit() {
         // lazily resolve culprit so that java.lang.Throwable.getStackTrace is called outside the application thread
-        final Collection<String> applicationPackages = tracer.getConfig(StacktraceConfiguration.class).getApplicationPackages();
-        if (exception != null && culprit.length() == 0 && !applicationPackages.isEmpty()) {
-            computeCulprit(exception, applicationPackages);
+        if (exception != null && culprit.length() == 0) {
+            culprit.append(tracer.getCulpritResolver().resolve(this));
         }
         return culprit;
     }
 
-    private void computeCulprit(Throwable exception, Collection<String> applicationPackages) {
-        if (exception.getCause() != null) {
-            computeCulprit(exception.getCause(), applicationPackages);
-        }
-        if (culprit.length() > 0) {
-            return;
-        }
-        for (StackTraceElement stackTraceElement : exception.getStackTrace()) {
-            for (String applicationPackage : applicationPackages) {
-                if (stackTraceElement.getClassName().startsWith(applicationPackage)) {
-                    setCulprit(stackTraceElement);
-                    return;
-                }
-            }
-        }
-    }
-
-    private void setCulprit(StackTraceElement stackTraceElement) {
-        final int lineNumber = stackTraceElement.getLineNumber();
-        final String fileName = stackTraceElement.getFileName();
-        culprit.append(stackTraceElement.getClassName())
-                .append('.')
-                .append(stackTraceElement.getMethodName())
-                .append('(');
-        if (stackTraceElement.isNativeMethod()) {
-            culprit.append("Native Method");
-        } else {
-            culprit.append(fileName != null ? fileName : "Unknown Source");
-            if (lineNumber > 0) {
-                culprit.append(':').append(lineNumber);
+    /**
+     * {@link Throwable#getStackTrace()} copies the whole stack trace on each invocation,
+     * so the stack traces of the exception and its causes are only copied once,
+     * for both resolving the culprit and serializing the error.
+     * <p>
+     * Not thread safe, only to be used by the thread which serializes the error.
+     * </p>
+     *
+     * @param throwable the {@link #getException() exception} or one of its causes
+     * @return the stack trace of the provided throwable
+     */
+    public StackTraceElement[] getStackTrace(Throwable throwable) {
+        for (int i = 0; i < stackTraceOwners.size(); i++) {
+            if (stackTraceOwners.get(i) == throwable) {
+                return stackTraces.get(i);
             }
         }
-        culprit.append(')');
+        final StackTraceElement[] stackTrace = throwable.getStackTrace();
+        stackTraceOwners.add(throwable);
+        stackTraces.add(stackTrace);
+        return stackTrace;
     }
 
     public ErrorCapture activate() {
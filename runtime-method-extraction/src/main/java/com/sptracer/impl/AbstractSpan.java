@@ -1,6 +1,7 @@
 package com.sptracer.impl;
 
 import com.sptracer.*;
+import com.sptracer.collections.LongHashSet;
 import com.sptracer.collections.LongList;
 import com.sptracer.configuration.CoreConfiguration;
 import com.sptracer.matcher.WildcardMatcher;
@@ -10,6 +11,7 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recyclable {
@@ -32,7 +34,7 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
 
     // in microseconds
     protected long duration;
-    private ChildDurationTimer childDurations = new ChildDurationTimer();
+    private final ChildDurationTimer childDurations = new ChildDurationTimer();
     protected AtomicInteger references = new AtomicInteger();
     protected volatile boolean finished = true;
     private int namePriority = PRIO_DEFAULT;
@@ -64,10 +66,13 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
      *  parent_id
      *  (removed via transitive reduction)
      * </pre>
+     * <p>
+     * Lazily created and kept when this span is recycled, as spans with child ids tend to have many of them.
+     * </p>
      */
     @Nullable
     @SuppressWarnings("JavadocReference") // for link to TraceContext#parentId
-    private LongList childIds;
+    private LongHashSet childIds;
 
     /**
      * outcome set by span/transaction instrumentation
@@ -83,6 +88,21 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
 
     private boolean hasCapturedExceptions;
 
+    /**
+     * Set when the duration could not be measured accurately as it is shorter than the resolution of the coarse clock
+     */
+    private boolean durationBelowClockResolution;
+
+    /**
+     * The last ended child span which is eligible for compression but has not been handed over to the tracer yet.
+     * Consecutive sibling spans are compressed into it, see {@link Span#tryToCompress(Span)}.
+     * Guarded by {@link #bufferedSpanLock}.
+     */
+    @Nullable
+    private Span bufferedSpan;
+    private boolean bufferedSpanClosed;
+    private final Object bufferedSpanLock = new Object();
+
     public int getReferenceCount() {
         return references.get();
     }
@@ -114,11 +134,39 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
     @Nullable
     public abstract Transaction getTransaction();
 
+    /**
+     * Tracks the time during which at least one direct child span is active.
+     * <p>
+     * Usually, all children are started and ended on the thread which has started this span.
+     * As long as that's the case, the timer is updated via plain field accesses
+     * which are only guarded by a handshake with {@link #inflate()}.
+     * The first time a child starts or ends on another thread, the state is migrated into an {@link AtomicState}
+     * which is used for all subsequent updates.
+     * </p>
+     */
     private static class ChildDurationTimer implements Recyclable {
 
-        private AtomicInteger activeChildren = new AtomicInteger();
-        private AtomicLong start = new AtomicLong();
-        private AtomicLong duration = new AtomicLong();
+        private static final AtomicIntegerFieldUpdater<ChildDurationTimer> OWNER_BUSY =
+            AtomicIntegerFieldUpdater.newUpdater(ChildDurationTimer.class, "ownerBusy");
+
+        @Nullable
+        private volatile Thread owner;
+        /**
+         * Set to 1 by the owner thread while it accesses the plain fields
+         */
+        private volatile int ownerBusy;
+        private volatile boolean ownerRevoked;
+        @Nullable
+        private volatile AtomicState atomicState;
+
+        // only accessed by the owner thread until the timer is inflated
+        private int activeChildren;
+        private long start;
+        private long duration;
+
+        void setOwner(Thread owner) {
+            this.owner = owner;
+        }
 
         /**
          * Starts the timer if it has not been started already.
@@ -126,8 +174,16 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
          * @param startTimestamp
          */
         void onChildStart(long startTimestamp) {
-            if (activeChildren.incrementAndGet() == 1) {
-                start.set(startTimestamp);
+            if (enterOwner()) {
+                try {
+                    if (++activeChildren == 1) {
+                        start = startTimestamp;
+                    }
+                } finally {
+                    exitOwner();
+                }
+            } else {
+                inflate().onChildStart(startTimestamp);
             }
         }
 
@@ -137,8 +193,16 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
          * @param endTimestamp
          */
         void onChildEnd(long endTimestamp) {
-            if (activeChildren.decrementAndGet() == 0) {
-                incrementDuration(endTimestamp);
+            if (enterOwner()) {
+                try {
+                    if (--activeChildren == 0) {
+                        duration += endTimestamp - start;
+                    }
+                } finally {
+                    exitOwner();
+                }
+            } else {
+                inflate().onChildEnd(endTimestamp);
             }
         }
 
@@ -148,24 +212,121 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
          * @param endTimestamp
          */
         void onSpanEnd(long endTimestamp) {
-            if (activeChildren.getAndSet(0) != 0) {
-                incrementDuration(endTimestamp);
+            if (enterOwner()) {
+                try {
+                    if (activeChildren != 0) {
+                        activeChildren = 0;
+                        duration += endTimestamp - start;
+                    }
+                } finally {
+                    exitOwner();
+                }
+            } else {
+                inflate().onSpanEnd(endTimestamp);
             }
         }
 
-        private void incrementDuration(long epochMicros) {
-            duration.addAndGet(epochMicros - start.get());
+        public long getDuration() {
+            if (enterOwner()) {
+                try {
+                    return duration;
+                } finally {
+                    exitOwner();
+                }
+            }
+            return inflate().duration.get();
+        }
+
+        /**
+         * Tries to enter the fast path which is only available to the owner thread until the timer is inflated.
+         * <p>
+         * The volatile write to {@link #ownerBusy}, followed by the volatile read of {@link #ownerRevoked},
+         * pairs with the inverse sequence in {@link #inflate()},
+         * so that either the owner sees the revocation or the inflating thread waits for the owner to leave.
+         * </p>
+         */
+        private boolean enterOwner() {
+            if (Thread.currentThread() != owner) {
+                return false;
+            }
+            ownerBusy = 1;
+            if (!ownerRevoked) {
+                return true;
+            }
+            exitOwner();
+            return false;
+        }
+
+        private void exitOwner() {
+            OWNER_BUSY.lazySet(this, 0);
+        }
+
+        private AtomicState inflate() {
+            AtomicState state = atomicState;
+            if (state != null) {
+                return state;
+            }
+            synchronized (this) {
+                state = atomicState;
+                if (state == null) {
+                    ownerRevoked = true;
+                    while (ownerBusy != 0) {
+                        Thread.onSpinWait();
+                    }
+                    state = new AtomicState(activeChildren, start, duration);
+                    atomicState = state;
+                }
+                return state;
+            }
         }
 
         @Override
         public void resetState() {
-            activeChildren.set(0);
-            start.set(0);
-            duration.set(0);
+            owner = null;
+            ownerBusy = 0;
+            ownerRevoked = false;
+            atomicState = null;
+            activeChildren = 0;
+            start = 0;
+            duration = 0;
         }
+    }
 
-        public long getDuration() {
-            return duration.get();
+    /**
+     * The state of an inflated {@link ChildDurationTimer}, safe to be updated from multiple threads
+     */
+    private static class AtomicState {
+
+        private final AtomicInteger activeChildren;
+        private final AtomicLong start;
+        private final AtomicLong duration;
+
+        private AtomicState(int activeChildren, long start, long duration) {
+            this.activeChildren = new AtomicInteger(activeChildren);
+            this.start = new AtomicLong(start);
+            this.duration = new AtomicLong(duration);
+        }
+
+        void onChildStart(long startTimestamp) {
+            if (activeChildren.incrementAndGet() == 1) {
+                start.set(startTimestamp);
+            }
+        }
+
+        void onChildEnd(long endTimestamp) {
+            if (activeChildren.decrementAndGet() == 0) {
+                incrementDuration(endTimestamp);
+            }
+        }
+
+        void onSpanEnd(long endTimestamp) {
+            if (activeChildren.getAndSet(0) != 0) {
+                incrementDuration(endTimestamp);
+            }
+        }
+
+        private void incrementDuration(long epochMicros) {
+            duration.addAndGet(epochMicros - start.get());
         }
     }
 
@@ -196,6 +357,10 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         return duration - childDurations.getDuration();
     }
 
+    public boolean isDurationBelowClockResolution() {
+        return durationBelowClockResolution;
+    }
+
     public double getDurationMs() {
         return duration / AbstractSpan.MS_IN_MICROS;
     }
@@ -327,10 +492,15 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         namePriority = PRIO_DEFAULT;
         discardRequested = false;
         isExit = false;
-        childIds = null;
+        if (childIds != null) {
+            childIds.clear();
+        }
         outcome = null;
         userOutcome = null;
         hasCapturedExceptions = false;
+        durationBelowClockResolution = false;
+        bufferedSpan = null;
+        bufferedSpanClosed = false;
     }
 
     public com.sptracer.impl.Span createSpan() {
@@ -412,6 +582,7 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
      */
     protected void onAfterStart() {
         this.finished = false;
+        childDurations.setOwner(Thread.currentThread());
         // this final reference is decremented when the span is reported
         // or even after its reported and the last child span is ended
         incrementReferences();
@@ -424,10 +595,12 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
     public final void end(long epochMicros) {
         if (!finished) {
             this.duration = (epochMicros - timestamp);
+            this.durationBelowClockResolution = traceContext.getClock().isBelowResolution(duration);
             if (name.length() == 0) {
                 name.append("unnamed");
             }
             childDurations.onSpanEnd(epochMicros);
+            endBufferedSpan();
             beforeEnd(epochMicros);
             this.finished = true;
             afterEnd();
@@ -455,6 +628,64 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
 
     protected abstract void afterEnd();
 
+    /**
+     * Called when a direct child span has ended.
+     * <p>
+     * A child which is eligible for compression is either compressed into the currently buffered sibling or replaces it,
+     * in which case the previously buffered sibling is handed over to the tracer.
+     * Any other child flushes the buffered sibling, as only consecutive siblings are compressed.
+     * </p>
+     *
+     * @param child                 the ended child span
+     * @param compressionEligible   whether the child may be buffered or compressed
+     */
+    void onChildSpanEnded(Span child, boolean compressionEligible) {
+        Span toEnd = null;
+        boolean endChild = true;
+        boolean compressed = false;
+        synchronized (bufferedSpanLock) {
+            if (!bufferedSpanClosed) {
+                if (compressionEligible) {
+                    endChild = false;
+                    if (bufferedSpan != null && bufferedSpan.tryToCompress(child)) {
+                        compressed = true;
+                    } else {
+                        toEnd = bufferedSpan;
+                        bufferedSpan = child;
+                    }
+                } else {
+                    toEnd = bufferedSpan;
+                    bufferedSpan = null;
+                }
+            }
+        }
+        if (toEnd != null) {
+            tracer.endSpan(toEnd);
+        }
+        if (compressed) {
+            // the data of the child lives on in the composite span
+            child.decrementReferences();
+        }
+        if (endChild) {
+            tracer.endSpan(child);
+        }
+    }
+
+    /**
+     * Hands over the buffered child span to the tracer and stops buffering child spans, as this span is ending
+     */
+    private void endBufferedSpan() {
+        Span toEnd;
+        synchronized (bufferedSpanLock) {
+            toEnd = bufferedSpan;
+            bufferedSpan = null;
+            bufferedSpanClosed = true;
+        }
+        if (toEnd != null) {
+            tracer.endSpan(toEnd);
+        }
+    }
+
     public boolean isChildOf(AbstractSpan<?> parent) {
         return traceContext.isChildOf(parent.traceContext) || parent.hasChildId(traceContext.getId());
     }
@@ -595,12 +826,28 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
     }
 
     public T withChildIds(@Nullable LongList childIds) {
-        this.childIds = childIds;
+        if (this.childIds != null) {
+            this.childIds.clear();
+        }
+        if (childIds != null && !childIds.isEmpty()) {
+            if (this.childIds == null) {
+                this.childIds = new LongHashSet(childIds.getSize());
+            }
+            this.childIds.addAll(childIds);
+        }
+        return thiz();
+    }
+
+    public T addChildId(long childId) {
+        if (childIds == null) {
+            childIds = new LongHashSet();
+        }
+        childIds.add(childId);
         return thiz();
     }
 
     @Nullable
-    public LongList getChildIds() {
+    public LongHashSet getChildIds() {
         return childIds;
     }
 
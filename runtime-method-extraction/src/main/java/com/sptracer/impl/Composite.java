@@ -0,0 +1,62 @@
+package com.sptracer.impl;
+
+import com.sptracer.Recyclable;
+
+/**
+ * Holds the aggregated data of the sibling spans which have been compressed into a single composite {@link Span}.
+ * <p>
+ * The timestamp of the composite span is the one of the first compressed span,
+ * its duration extends to the end of the last compressed span.
+ * </p>
+ */
+public class Composite implements Recyclable {
+
+    public static final String EXACT_MATCH = "exact_match";
+
+    private int count;
+
+    // in microseconds
+    private long sum;
+
+    void init(long duration) {
+        count = 1;
+        sum = duration;
+    }
+
+    void increment(long duration) {
+        count++;
+        sum += duration;
+    }
+
+    public boolean isCompressed() {
+        return count > 1;
+    }
+
+    /**
+     * @return the number of compressed spans, including the first one
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the sum of the durations of all compressed spans, in µs
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    public double getSumMs() {
+        return sum / AbstractSpan.MS_IN_MICROS;
+    }
+
+    public String getCompressionStrategy() {
+        return EXACT_MATCH;
+    }
+
+    @Override
+    public void resetState() {
+        count = 0;
+        sum = 0;
+    }
+}
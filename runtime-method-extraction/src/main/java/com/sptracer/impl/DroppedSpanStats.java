@@ -0,0 +1,144 @@
+package com.sptracer.impl;
+
+import com.sptracer.Recyclable;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates the spans of a transaction which are not reported,
+ * for example because {@link com.sptracer.configuration.CoreConfiguration#getTransactionMaxSpans()} has been exceeded.
+ * <p>
+ * The stats are keyed by the destination service resource and the outcome of the dropped exit spans
+ * and hold the number of dropped spans as well as the sum of their durations.
+ * In order to limit the size of the transaction, at most {@link #MAX_ENTRIES} distinct keys are tracked.
+ * </p>
+ */
+public class DroppedSpanStats implements Iterable<Map.Entry<DroppedSpanStats.StatsKey, DroppedSpanStats.Stats>>, Recyclable {
+
+    static final int MAX_ENTRIES = 128;
+
+    /**
+     * Used to look up existing stats without allocating a new key
+     */
+    private static final ThreadLocal<StatsKey> lookupKey = new ThreadLocal<StatsKey>() {
+        @Override
+        protected StatsKey initialValue() {
+            return new StatsKey();
+        }
+    };
+
+    private final ConcurrentHashMap<StatsKey, Stats> statsMap = new ConcurrentHashMap<>();
+
+    void captureDroppedSpan(Span span) {
+        if (!span.isExit()) {
+            return;
+        }
+        StringBuilder resource = span.getContext().getDestination().getService().getResource();
+        if (resource.length() == 0) {
+            return;
+        }
+        Stats stats = getOrCreateStats(resource, span.getOutcome());
+        if (stats != null) {
+            stats.count.incrementAndGet();
+            stats.sum.addAndGet(span.getDuration());
+        }
+    }
+
+    @Nullable
+    private Stats getOrCreateStats(StringBuilder resource, Outcome outcome) {
+        StatsKey key = lookupKey.get().set(resource, outcome);
+        Stats stats = statsMap.get(key);
+        // don't retain the pooled span's StringBuilder
+        key.set("", Outcome.UNKNOWN);
+        if (stats != null || statsMap.size() >= MAX_ENTRIES) {
+            return stats;
+        }
+        Stats newStats = new Stats();
+        stats = statsMap.putIfAbsent(new StatsKey().set(resource.toString(), outcome), newStats);
+        return stats != null ? stats : newStats;
+    }
+
+    public boolean isEmpty() {
+        return statsMap.isEmpty();
+    }
+
+    @Override
+    public Iterator<Map.Entry<StatsKey, Stats>> iterator() {
+        return statsMap.entrySet().iterator();
+    }
+
+    @Override
+    public void resetState() {
+        statsMap.clear();
+    }
+
+    public static class StatsKey {
+
+        private CharSequence destinationServiceResource = "";
+        private Outcome outcome = Outcome.UNKNOWN;
+
+        private StatsKey set(CharSequence destinationServiceResource, Outcome outcome) {
+            this.destinationServiceResource = destinationServiceResource;
+            this.outcome = outcome;
+            return this;
+        }
+
+        public CharSequence getDestinationServiceResource() {
+            return destinationServiceResource;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            StatsKey that = (StatsKey) o;
+            if (outcome != that.outcome || destinationServiceResource.length() != that.destinationServiceResource.length()) {
+                return false;
+            }
+            for (int i = 0; i < destinationServiceResource.length(); i++) {
+                if (destinationServiceResource.charAt(i) != that.destinationServiceResource.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            // same as String#hashCode so that StringBuilder and String based keys are interchangeable
+            int h = 0;
+            for (int i = 0; i < destinationServiceResource.length(); i++) {
+                h = 31 * h + destinationServiceResource.charAt(i);
+            }
+            return 31 * h + outcome.ordinal();
+        }
+    }
+
+    public static class Stats {
+
+        private final AtomicInteger count = new AtomicInteger();
+        // in microseconds
+        private final AtomicLong sum = new AtomicLong();
+
+        public int getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+    }
+}
@@ -127,11 +127,20 @@ public class SpTracerBuilder {
             lifecycleListeners.add(configurationSource);
         }
 
-        if (reporter == null) {
-            reporter = new ReporterFactory().createReporter(configurationRegistry, apmServerClient, metaData);
+        // the stack frame cache is also used by the tracer to group errors, even if the reporter has been provided
+        ReporterDependencies reporterDependencies = new ReporterDependencies(configurationRegistry);
+        boolean createReporter = reporter == null;
+        if (createReporter) {
+            reporter = new ReporterFactory().createReporter(configurationRegistry, apmServerClient, metaData, reporterDependencies);
         }
 
-        SpTracerImpl tracer = new SpTracerImpl(configurationRegistry, reporter, objectPoolFactory, apmServerClient, ephemeralId, metaData);
+        SpTracerImpl tracer = new SpTracerImpl(configurationRegistry, reporter, objectPoolFactory, apmServerClient, ephemeralId, metaData,
+            reporterDependencies.getStackFrameCache());
+        if (createReporter) {
+            reporterDependencies.registerMetrics(tracer.getMetricRegistry());
+        }
+        apmServerClient.getConnectionManager().registerMetrics(tracer.getMetricRegistry());
+        lifecycleListeners.add(new MetricRegistryReporter(tracer, reporter));
         lifecycleListeners.addAll(DependencyInjectingServiceLoader.load(LifecycleListener.class, tracer));
         lifecycleListeners.addAll(extraLifecycleListeners);
         tracer.init(lifecycleListeners);
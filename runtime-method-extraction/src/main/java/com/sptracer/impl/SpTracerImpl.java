@@ -2,8 +2,12 @@ package com.sptracer.impl;
 
 import com.sptracer.*;
 import com.sptracer.configuration.*;
+import com.sptracer.error.CulpritResolver;
+import com.sptracer.error.ErrorAggregator;
 import com.sptracer.error.ErrorCapture;
 import com.sptracer.matcher.WildcardMatcher;
+import com.sptracer.metrics.DoubleSupplier;
+import com.sptracer.metrics.Labels;
 import com.sptracer.metrics.MetricRegistry;
 import com.sptracer.util.DependencyInjectingServiceLoader;
 import com.sptracer.util.ExecutorUtils;
@@ -50,6 +54,12 @@ public class SpTracerImpl implements Tracer {
     private final List<ActivationListener> activationListeners;
     private final MetricRegistry metricRegistry;
     private final ScheduledThreadPoolExecutor sharedPool;
+    @Nullable
+    private final TailSamplingBuffer tailSamplingBuffer;
+    @Nullable
+    private final CoarseClock coarseClock;
+    private final ErrorAggregator errorAggregator;
+    private final CulpritResolver culpritResolver;
     private Sampler sampler;
     boolean assertionsEnabled = false;
 
@@ -66,7 +76,7 @@ public class SpTracerImpl implements Tracer {
     private final Future<MetaData> metaData;
 
     SpTracerImpl(ConfigurationRegistry configurationRegistry, Reporter reporter, ObjectPoolFactory poolFactory,
-                     TracerServerClient apmServerClient, final String ephemeralId, Future<MetaData> metaData) {
+                     TracerServerClient apmServerClient, final String ephemeralId, Future<MetaData> metaData, StackFrameCache stackFrameCache) {
         this.metricRegistry = new MetricRegistry(configurationRegistry.getConfig(ReporterConfiguration.class));
         this.configurationRegistry = configurationRegistry;
         this.reporter = reporter;
@@ -76,6 +86,14 @@ public class SpTracerImpl implements Tracer {
         this.metaData = metaData;
         int maxPooledElements = configurationRegistry.getConfig(ReporterConfiguration.class).getMaxQueueSize() * 2;
         coreConfiguration = configurationRegistry.getConfig(CoreConfiguration.class);
+        // has to be created before the pools as each pooled span reads it when constructing its trace context
+        long coarseClockResolution = coreConfiguration.getCoarseClockResolutionMicros();
+        if (coarseClockResolution > 0) {
+            coarseClock = new CoarseClock(coarseClockResolution);
+            coarseClock.start();
+        } else {
+            coarseClock = null;
+        }
 
         TracerConfiguration tracerConfiguration = configurationRegistry.getConfig(TracerConfiguration.class);
         recordingConfigOptionSet = tracerConfiguration.getRecordingConfig().get();
@@ -93,6 +111,15 @@ public class SpTracerImpl implements Tracer {
         // we are assuming that we don't need as many errors as spans or transactions
         errorPool = poolFactory.createErrorPool(maxPooledElements / 2, this);
 
+        if (coreConfiguration.isTailSamplingEnabled()) {
+            tailSamplingBuffer = new TailSamplingBuffer(coreConfiguration, reporter, poolFactory, maxPooledElements);
+        } else {
+            tailSamplingBuffer = null;
+        }
+
+        errorAggregator = new ErrorAggregator(coreConfiguration, stackFrameCache);
+        culpritResolver = new CulpritResolver(stacktraceConfiguration);
+
         sampler = ProbabilitySampler.of(coreConfiguration.getSampleRate().get());
         coreConfiguration.getSampleRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
             @Override
@@ -102,12 +129,39 @@ public class SpTracerImpl implements Tracer {
         });
         this.activationListeners = DependencyInjectingServiceLoader.load(ActivationListener.class, this);
         sharedPool = ExecutorUtils.createSingleThreadSchedulingDaemonPool("shared");
+        registerDroppedEventsMetrics();
+        metricRegistry.add("agent.errors.suppressed", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return errorAggregator.getSuppressed();
+            }
+        });
+        metricRegistry.add("agent.errors.suppressed_unreported", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return errorAggregator.getSuppressedUnreported();
+            }
+        });
 
         // sets the assertionsEnabled flag to true if indeed enabled
         //noinspection AssertWithSideEffects
         assert assertionsEnabled = true;
     }
 
+    /**
+     * Registers a gauge per {@link EventPriority} with the total number of events the reporter dropped because of back-pressure
+     */
+    private void registerDroppedEventsMetrics() {
+        for (final EventPriority priority : EventPriority.values()) {
+            metricRegistry.add("agent.events.dropped", Labels.Mutable.of("priority", priority.getLabel()), new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return reporter.getDropped(priority);
+                }
+            });
+        }
+    }
+
     @Override
     @Nullable
     public Transaction startRootTransaction(@Nullable ClassLoader initiatingClassLoader) {
@@ -278,9 +332,17 @@ public class SpTracerImpl implements Tracer {
         }
         // note: if we add inheritance support for exception filtering, caching would be required for performance
         if (e != null && !WildcardMatcher.isAnyMatch(coreConfiguration.getIgnoreExceptions(), e.getClass().getName())) {
+            // deduplicating before taking an error from the pool keeps error storms from exhausting the pool and the reporter
+            final long suppressedDuplicates = errorAggregator.onError(e, System.currentTimeMillis());
+            if (suppressedDuplicates == ErrorAggregator.SUPPRESSED) {
+                return null;
+            }
             ErrorCapture error = errorPool.createInstance();
             error.withTimestamp(epochMicros);
             error.setException(e);
+            if (suppressedDuplicates > 0) {
+                error.getContext().addLabel("suppressed_duplicates", suppressedDuplicates);
+            }
             Transaction currentTransaction = currentTransaction();
             if (currentTransaction != null) {
                 error.setTransactionType(currentTransaction.getType());
@@ -315,16 +377,24 @@ public class SpTracerImpl implements Tracer {
                         new RuntimeException("this exception is just used to record where the transaction has been ended from"));
             }
         }
-        if (!transaction.isNoop()) {
+        if (transaction.isNoop()) {
+            transaction.decrementReferences();
+        } else if (tailSamplingBuffer != null && !tailSamplingBuffer.onTransactionEnd(transaction)) {
+            // metrics have already been tracked in Transaction#afterEnd
+            transaction.decrementReferences();
+        } else {
             // we do report non-sampled transactions (without the context)
             reporter.report(transaction);
-        } else {
-            transaction.decrementReferences();
         }
     }
 
     public void endSpan(Span span) {
         if (!span.isSampled()) {
+            Transaction transaction = span.getTransaction();
+            if (transaction != null && transaction.isSampled()) {
+                // the span has been dropped because transaction_max_spans has been reached
+                transaction.getDroppedSpanStats().captureDroppedSpan(span);
+            }
             span.decrementReferences();
             return;
         }
@@ -337,6 +407,7 @@ public class SpTracerImpl implements Tracer {
             Transaction transaction = span.getTransaction();
             if (transaction != null) {
                 transaction.getSpanCount().getDropped().incrementAndGet();
+                transaction.getDroppedSpanStats().captureDroppedSpan(span);
             }
             span.decrementReferences();
             return;
@@ -357,10 +428,15 @@ public class SpTracerImpl implements Tracer {
         span.setNonDiscardable();
         long spanFramesMinDurationMs = stacktraceConfiguration.getSpanFramesMinDurationMs();
         if (spanFramesMinDurationMs != 0 && span.isSampled() && span.getStackFrames() == null) {
-            if (span.getDurationMs() >= spanFramesMinDurationMs) {
-                span.withStacktrace(new Throwable());
+            int stackTraceLimit = stacktraceConfiguration.getStackTraceLimit();
+            if (span.getDurationMs() >= spanFramesMinDurationMs && stackTraceLimit != 0) {
+                // walks only as many frames as are serialized, instead of capturing the whole stack via a Throwable
+                span.setStackTrace(StackTraceCapturer.capture(stackTraceLimit < 0 ? Integer.MAX_VALUE : stackTraceLimit));
             }
         }
+        if (tailSamplingBuffer != null && tailSamplingBuffer.offer(span)) {
+            return;
+        }
         reporter.report(span);
     }
 
@@ -393,6 +469,9 @@ public class SpTracerImpl implements Tracer {
             }
         }
         ExecutorUtils.shutdownAndWaitTermination(sharedPool);
+        if (coarseClock != null) {
+            coarseClock.stop();
+        }
         tracerState = TracerState.STOPPED;
         logger.info("Tracer switched to STOPPED state");
         if (logger.isDebugEnabled()) {
@@ -676,6 +755,10 @@ public class SpTracerImpl implements Tracer {
         return metricRegistry;
     }
 
+    public CulpritResolver getCulpritResolver() {
+        return culpritResolver;
+    }
+
     @Override
     public void overrideServiceNameForClassLoader(@Nullable ClassLoader classLoader, @Nullable String serviceName) {
         // overriding the service name for the bootstrap class loader is not an actual use-case
@@ -718,6 +801,14 @@ public class SpTracerImpl implements Tracer {
         return metaData;
     }
 
+    /**
+     * @return the clock which is used instead of {@link System#nanoTime()} when {@link CoreConfiguration#getCoarseClockResolutionMicros()} is set
+     */
+    @Nullable
+    public CoarseClock getCoarseClock() {
+        return coarseClock;
+    }
+
     public ScheduledThreadPoolExecutor getSharedSingleThreadedPool() {
         return sharedPool;
     }
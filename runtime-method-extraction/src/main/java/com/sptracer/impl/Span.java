@@ -8,6 +8,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 public class Span extends AbstractSpan<Span> implements Recyclable {
@@ -49,6 +50,7 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
     private Transaction transaction;
     @Nullable
     private List<StackFrame> stackFrames;
+    private final Composite composite = new Composite();
 
     /**
      * If a span is non-discardable, all the spans leading up to it are non-discardable as well
@@ -262,13 +264,75 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         }
         if (parent != null) {
             parent.onChildEnd(epochMicros);
-            parent.decrementReferences();
         }
     }
 
     @Override
     protected void afterEnd() {
-        this.tracer.endSpan(this);
+        if (parent != null) {
+            // this span might already be reported and recycled when onChildSpanEnded returns
+            AbstractSpan<?> parent = this.parent;
+            parent.onChildSpanEnded(this, isCompressionEligible());
+            // the reference to the parent is released only after this span has been buffered in the parent
+            // so that the parent can't be recycled while holding a buffered span
+            parent.decrementReferences();
+        } else {
+            this.tracer.endSpan(this);
+        }
+    }
+
+    private boolean isCompressionEligible() {
+        return isExit() && isSampled() && isDiscardable()
+            && getOutcome() != Outcome.FAILURE
+            && stacktrace == null && stackFrames == null
+            && tracer.getConfig(CoreConfiguration.class).isSpanCompressionEnabled();
+    }
+
+    /**
+     * Tries to compress a consecutive sibling span into this span.
+     * Only exact matches are compressed, meaning spans with the same name, type, subtype and destination resource,
+     * where both spans are faster than {@link CoreConfiguration#getSpanCompressionExactMatchMaxDuration()}.
+     *
+     * @param sibling a span which has ended after this one and has the same parent
+     * @return {@code true} if the sibling has been compressed into this span, {@code false} otherwise
+     */
+    boolean tryToCompress(Span sibling) {
+        long maxDuration = tracer.getConfig(CoreConfiguration.class).getSpanCompressionExactMatchMaxDuration().getMillis() * 1000;
+        if (sibling.getDuration() > maxDuration || (!composite.isCompressed() && getDuration() > maxDuration)) {
+            return false;
+        }
+        if (!isSameKind(sibling) || !contentEquals(name, sibling.name)) {
+            return false;
+        }
+        if (!composite.isCompressed()) {
+            composite.init(getDuration());
+        }
+        composite.increment(sibling.getDuration());
+        duration = Math.max(duration, sibling.getTimestamp() + sibling.getDuration() - getTimestamp());
+        return true;
+    }
+
+    private boolean isSameKind(Span other) {
+        return Objects.equals(type, other.type)
+            && Objects.equals(subtype, other.subtype)
+            && contentEquals(context.getDestination().getService().getResource(), other.context.getDestination().getService().getResource());
+    }
+
+    private static boolean contentEquals(CharSequence a, CharSequence b) {
+        int length = a.length();
+        if (length != b.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Composite getComposite() {
+        return composite;
     }
 
     @Override
@@ -286,6 +350,7 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         // when trying to recycle this list by clearing it, we increase the static memory overhead of the agent
         // because all spans in the pool contain that list even if they are not used as inferred spans
         stackFrames = null;
+        composite.resetState();
     }
 
     @Override
@@ -7,14 +7,23 @@ public class StackFrame {
     @Nullable
     private final String className;
     private final String methodName;
+    @Nullable
+    private final String fileName;
+    private final int lineNumber;
 
     public static StackFrame of(@Nullable String className, String methodName) {
         return new StackFrame(className, methodName);
     }
 
     public StackFrame(@Nullable String className, String methodName) {
+        this(className, methodName, null, -1);
+    }
+
+    public StackFrame(@Nullable String className, String methodName, @Nullable String fileName, int lineNumber) {
         this.className = className;
         this.methodName = methodName;
+        this.fileName = fileName;
+        this.lineNumber = lineNumber;
     }
 
     @Nullable
@@ -26,6 +35,13 @@ public class StackFrame {
         return methodName;
     }
 
+    /**
+     * @return the line number, or {@code -1} if unknown
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
     public void appendSimpleClassName(StringBuilder sb) {
         if (className != null) {
             sb.append(className, className.lastIndexOf('.') + 1, className.length());
@@ -33,7 +49,9 @@ public class StackFrame {
     }
 
     public void appendFileName(StringBuilder replaceBuilder) {
-        if (className != null) {
+        if (fileName != null) {
+            replaceBuilder.append(fileName);
+        } else if (className != null) {
             int fileNameEnd = className.indexOf('$');
             if (fileNameEnd < 0) {
                 fileNameEnd = className.length();
@@ -57,7 +75,9 @@ public class StackFrame {
 
         StackFrame that = (StackFrame) o;
 
+        if (lineNumber != that.lineNumber) return false;
         if (!Objects.equals(className, that.className)) return false;
+        if (!Objects.equals(fileName, that.fileName)) return false;
         return methodName.equals(that.methodName);
     }
 
@@ -65,6 +85,7 @@ public class StackFrame {
     public int hashCode() {
         int result = className != null ? className.hashCode() : 0;
         result = 31 * result + methodName.hashCode();
+        result = 31 * result + lineNumber;
         return result;
     }
 
@@ -0,0 +1,59 @@
+package com.sptracer.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Captures the stack trace of the current thread via {@link StackWalker}, stopping once enough frames have been collected.
+ * <p>
+ * Creating a {@link Throwable} always walks the whole stack and {@link Throwable#getStackTrace()} creates a
+ * {@link StackTraceElement} for each frame, even though only the first {@link StacktraceConfiguration#getStackTraceLimit()}
+ * frames are serialized.
+ * In contrast, this only walks the frames which are actually needed and stores them as lightweight {@link StackFrame}s.
+ * </p>
+ * <p>
+ * The same frames as when serializing a {@link StackTraceElement} array are omitted:
+ * the top-most frames of the agent, frames without a file name and reflection frames.
+ * Omitted frames don't count towards the limit.
+ * </p>
+ */
+final class StackTraceCapturer {
+
+    private static final StackWalker STACK_WALKER = StackWalker.getInstance();
+    private static final int MAX_INITIAL_CAPACITY = 64;
+
+    private StackTraceCapturer() {
+        // don't instantiate
+    }
+
+    /**
+     * @param limit the maximum number of frames to capture
+     * @return the frames of the current thread's stack, from the top-most frame downwards
+     */
+    static List<StackFrame> capture(final int limit) {
+        return STACK_WALKER.walk(new Function<Stream<StackWalker.StackFrame>, List<StackFrame>>() {
+            @Override
+            public List<StackFrame> apply(Stream<StackWalker.StackFrame> stream) {
+                final List<StackFrame> stackFrames = new ArrayList<>(Math.min(limit, MAX_INITIAL_CAPACITY));
+                boolean agentFramesSkipped = false;
+                // the stream is lazy, so the walk stops as soon as the iteration stops
+                for (Iterator<StackWalker.StackFrame> frames = stream.iterator(); frames.hasNext() && stackFrames.size() < limit; ) {
+                    StackWalker.StackFrame frame = frames.next();
+                    String className = frame.getClassName();
+                    if (!agentFramesSkipped && className.startsWith(StacktraceConfiguration.AGENT_PACKAGE)) {
+                        continue;
+                    }
+                    agentFramesSkipped = true;
+                    if (frame.getFileName() == null || StacktraceConfiguration.isExcludedPackage(className)) {
+                        continue;
+                    }
+                    stackFrames.add(new StackFrame(className, frame.getMethodName(), frame.getFileName(), frame.getLineNumber()));
+                }
+                return stackFrames;
+            }
+        });
+    }
+}
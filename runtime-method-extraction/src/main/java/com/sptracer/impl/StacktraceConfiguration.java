@@ -5,13 +5,26 @@ import com.sptracer.configuration.ConfigurationOptionProvider;
 import com.sptracer.configuration.TimeDuration;
 import com.sptracer.configuration.converter.TimeDurationValueConverter;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+
+import static com.sptracer.configuration.RangeValidator.isInRange;
 
 public class StacktraceConfiguration extends ConfigurationOptionProvider {
 
     private static final String STACKTRACE_CATEGORY = "Stacktrace";
     public static final String APPLICATION_PACKAGES = "application_packages";
+    /**
+     * The top-most frames of a stack trace which belong to the agent itself are omitted
+     */
+    public static final String AGENT_PACKAGE = "com.sptracer.";
+    /**
+     * Frames of these packages are omitted, regardless of their position within the stack trace.
+     * Shared by the serializers and the {@link StackTraceCapturer}, so that captured and serialized stack traces omit the same frames.
+     */
+    public static final List<String> EXCLUDED_PACKAGES = Collections.unmodifiableList(Arrays.asList("java.lang.reflect", "com.sun", "sun.", "jdk.internal."));
     private final ConfigurationOption<Collection<String>> applicationPackages = ConfigurationOption.stringsOption()
             .key(APPLICATION_PACKAGES)
             .configurationCategory(STACKTRACE_CATEGORY)
@@ -62,6 +75,19 @@ public class StacktraceConfiguration extends ConfigurationOptionProvider {
             .dynamic(true)
             .buildWithDefault(TimeDuration.of("5ms"));
 
+    private final ConfigurationOption<Integer> stackFrameCacheSize = ConfigurationOption.integerOption()
+            .key("stack_frame_cache_size")
+            .tags("performance")
+            .configurationCategory(STACKTRACE_CATEGORY)
+            .description("The maximum number of serialized stack frames to cache.\n" +
+                    "Frames which occur frequently are written from the cache instead of being serialized again.\n" +
+                    "Once the cache is full, the least recently used frames are evicted.\n" +
+                    "\n" +
+                    "Setting it to 0 disables the cache.")
+            .addValidator(isInRange(0, 1_000_000))
+            .dynamic(false)
+            .buildWithDefault(4096);
+
     public Collection<String> getApplicationPackages() {
         return applicationPackages.get();
     }
@@ -70,6 +96,22 @@ public class StacktraceConfiguration extends ConfigurationOptionProvider {
         return stackTraceLimit.get();
     }
 
+    public int getStackFrameCacheSize() {
+        return stackFrameCacheSize.get();
+    }
+
+    /**
+     * @return whether the class belongs to one of the {@link #EXCLUDED_PACKAGES}
+     */
+    public static boolean isExcludedPackage(String className) {
+        for (int i = 0, size = EXCLUDED_PACKAGES.size(); i < size; i++) {
+            if (className.startsWith(EXCLUDED_PACKAGES.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public long getSpanFramesMinDurationMs() {
         return spanFramesMinDurationMs.getValue().getMillis();
     }
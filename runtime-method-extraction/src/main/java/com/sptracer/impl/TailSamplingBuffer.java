@@ -0,0 +1,319 @@
+package com.sptracer.impl;
+
+import com.sptracer.ObjectPool;
+import com.sptracer.ObjectPoolFactory;
+import com.sptracer.Recyclable;
+import com.sptracer.Reporter;
+import com.sptracer.configuration.CoreConfiguration;
+import com.sptracer.matcher.WildcardMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds back the spans of sampled transactions until the transaction has ended,
+ * so that the decision whether to report a trace can be based on its outcome and duration.
+ * <p>
+ * A trace is kept if the transaction is slower than {@link CoreConfiguration#getTailSamplingLatencyThreshold()},
+ * if it failed or if its name matches {@link CoreConfiguration#getTailSamplingKeepTransactions()}.
+ * A failed or slow span marks its trace as kept right away, which flushes the buffer
+ * and lets subsequent spans of that trace bypass it.
+ * </p>
+ * <p>
+ * The estimated size of all buffered spans is bounded by {@link CoreConfiguration#getTailSamplingMaxBufferSize()}.
+ * When a span would exceed that budget, the buffers which have been created first are evicted first,
+ * until the buffered spans take up no more than three quarters of the budget.
+ * Evicting a trace whose transaction is already slower than the threshold keeps it,
+ * otherwise its buffered spans are dropped and counted in {@link SpanCount#getDropped()}.
+ * </p>
+ * <p>
+ * Once a transaction has been running longer than the threshold, it is kept anyway.
+ * So that the buffers of such traces - including the ones of transactions which are never ended - are not held back forever,
+ * all buffers are swept periodically and the ones of slow traces are flushed.
+ * </p>
+ * <p>
+ * All state transitions of a trace happen while holding the monitor of its {@link Transaction}.
+ * Spans ending after the decision has been made just follow that decision.
+ * Other traces are only evicted while not holding the monitor of the current one,
+ * as two threads evicting each other's traces would otherwise deadlock.
+ * </p>
+ */
+public class TailSamplingBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(TailSamplingBuffer.class);
+
+    /**
+     * Rough estimate of the retained size of a {@link Span} including its context,
+     * not taking the name and stack trace into account.
+     */
+    private static final int SPAN_BASE_SIZE = 1024;
+    private static final int STACK_FRAME_SIZE = 128;
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    enum Decision {
+        UNDECIDED,
+        KEEP,
+        DISCARD
+    }
+
+    private final CoreConfiguration coreConfiguration;
+    private final Reporter reporter;
+    private final ObjectPool<SpanBuffer> bufferPool;
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final long maxBufferedBytes;
+    /**
+     * The buffers of all traces which wait for their decision, in the order they have been created.
+     * Guarded by its own monitor, which must not be held while acquiring the monitor of a transaction.
+     */
+    private final Set<SpanBuffer> buffers = new LinkedHashSet<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    TailSamplingBuffer(CoreConfiguration coreConfiguration, Reporter reporter, ObjectPoolFactory poolFactory, int maxPooledElements) {
+        this.coreConfiguration = coreConfiguration;
+        this.reporter = reporter;
+        this.maxBufferedBytes = coreConfiguration.getTailSamplingMaxBufferSize();
+        this.bufferPool = poolFactory.createSpanBufferPool(maxPooledElements);
+    }
+
+    /**
+     * Hands over a span which would otherwise be reported.
+     *
+     * @param span the span which has ended
+     * @return {@code true} if the span has been buffered or dropped, {@code false} if the caller should report it
+     */
+    boolean offer(Span span) {
+        Transaction transaction = span.getTransaction();
+        if (transaction == null || !transaction.isSampled()) {
+            return false;
+        }
+        long size = estimateSize(span);
+        evictOtherTraces(size);
+        synchronized (transaction) {
+            switch (transaction.getTailSamplingDecision()) {
+                case KEEP:
+                    return false;
+                case DISCARD:
+                    drop(transaction, span);
+                    return true;
+                default:
+            }
+            if (span.getOutcome() == Outcome.FAILURE || span.getDuration() >= getLatencyThresholdUs()) {
+                keep(transaction);
+                return false;
+            }
+            if (bufferedBytes.addAndGet(size) > maxBufferedBytes) {
+                bufferedBytes.addAndGet(-size);
+                return evict(transaction, span);
+            }
+            SpanBuffer buffer = transaction.getTailSamplingBuffer();
+            if (buffer == null) {
+                buffer = bufferPool.createInstance();
+                buffer.transaction = transaction;
+                transaction.setTailSamplingBuffer(buffer);
+                synchronized (buffers) {
+                    buffers.add(buffer);
+                }
+            }
+            buffer.add(span, size);
+            return true;
+        }
+    }
+
+    /**
+     * Decides whether the trace of the provided transaction is kept.
+     * Flushes the buffered spans if it is, drops them otherwise.
+     *
+     * @param transaction the transaction which has ended
+     * @return {@code true} if the transaction should be reported, {@code false} if it should be discarded
+     */
+    boolean onTransactionEnd(Transaction transaction) {
+        if (!transaction.isSampled()) {
+            return true;
+        }
+        synchronized (transaction) {
+            if (transaction.getTailSamplingDecision() == Decision.KEEP) {
+                return true;
+            }
+            if (transaction.getOutcome() == Outcome.FAILURE
+                || transaction.getDuration() >= getLatencyThresholdUs()
+                || WildcardMatcher.isAnyMatch(coreConfiguration.getTailSamplingKeepTransactions(), transaction.getNameForSerialization())) {
+                keep(transaction);
+                return true;
+            }
+            logger.debug("Discarding trace of {} as it is neither slow nor failed", transaction);
+            transaction.setTailSamplingDecision(Decision.DISCARD);
+            dropBuffered(transaction);
+            return false;
+        }
+    }
+
+    long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    /**
+     * Flushes the buffers of slow traces once per {@link #SWEEP_INTERVAL_MILLIS}
+     * and evicts the buffers which have been created first if the provided amount of bytes does not fit into the budget.
+     * <p>
+     * Must not be called while holding the monitor of a transaction.
+     * </p>
+     *
+     * @param size the estimated size of the span which is about to be buffered
+     */
+    private void evictOtherTraces(long size) {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last >= SWEEP_INTERVAL_MILLIS && lastSweep.compareAndSet(last, now)) {
+            SpanBuffer[] snapshot;
+            synchronized (buffers) {
+                snapshot = buffers.toArray(new SpanBuffer[0]);
+            }
+            for (SpanBuffer buffer : snapshot) {
+                Transaction transaction = buffer.transaction;
+                if (transaction != null && isRunningLongerThanThreshold(transaction)) {
+                    evictBuffer(transaction, buffer);
+                }
+            }
+        }
+        if (bufferedBytes.get() + size <= maxBufferedBytes) {
+            return;
+        }
+        long lowWatermark = maxBufferedBytes / 4 * 3;
+        while (bufferedBytes.get() + size > lowWatermark) {
+            SpanBuffer oldest;
+            synchronized (buffers) {
+                Iterator<SpanBuffer> iterator = buffers.iterator();
+                if (!iterator.hasNext()) {
+                    return;
+                }
+                oldest = iterator.next();
+                // makes sure the loop makes progress even if the buffer is released concurrently
+                iterator.remove();
+            }
+            Transaction transaction = oldest.transaction;
+            if (transaction != null) {
+                evictBuffer(transaction, oldest);
+            }
+        }
+    }
+
+    private void evictBuffer(Transaction transaction, SpanBuffer buffer) {
+        synchronized (transaction) {
+            // the trace may have been decided or the buffer may have been recycled in the meantime
+            if (transaction.getTailSamplingBuffer() != buffer) {
+                return;
+            }
+            if (isRunningLongerThanThreshold(transaction)) {
+                logger.debug("Reporting already slow trace of {}", transaction);
+                keep(transaction);
+            } else {
+                logger.debug("Tail sampling buffer is full, dropping buffered spans of {}", transaction);
+                dropBuffered(transaction);
+            }
+        }
+    }
+
+    private boolean evict(Transaction transaction, Span span) {
+        if (isRunningLongerThanThreshold(transaction)) {
+            logger.debug("Tail sampling buffer is full, reporting already slow trace of {}", transaction);
+            keep(transaction);
+            return false;
+        }
+        logger.debug("Tail sampling buffer is full, dropping buffered spans of {}", transaction);
+        dropBuffered(transaction);
+        drop(transaction, span);
+        return true;
+    }
+
+    private void keep(Transaction transaction) {
+        transaction.setTailSamplingDecision(Decision.KEEP);
+        SpanBuffer buffer = transaction.getTailSamplingBuffer();
+        if (buffer != null) {
+            transaction.setTailSamplingBuffer(null);
+            List<Span> spans = buffer.spans;
+            for (int i = 0; i < spans.size(); i++) {
+                reporter.report(spans.get(i));
+            }
+            release(buffer);
+        }
+    }
+
+    private void dropBuffered(Transaction transaction) {
+        SpanBuffer buffer = transaction.getTailSamplingBuffer();
+        if (buffer != null) {
+            transaction.setTailSamplingBuffer(null);
+            List<Span> spans = buffer.spans;
+            for (int i = 0; i < spans.size(); i++) {
+                drop(transaction, spans.get(i));
+            }
+            release(buffer);
+        }
+    }
+
+    private void drop(Transaction transaction, Span span) {
+        SpanCount spanCount = transaction.getSpanCount();
+        spanCount.getReported().decrementAndGet();
+        spanCount.getDropped().incrementAndGet();
+        span.decrementReferences();
+    }
+
+    private void release(SpanBuffer buffer) {
+        synchronized (buffers) {
+            buffers.remove(buffer);
+        }
+        bufferedBytes.addAndGet(-buffer.estimatedSize);
+        bufferPool.recycle(buffer);
+    }
+
+    private boolean isRunningLongerThanThreshold(Transaction transaction) {
+        return transaction.getTraceContext().getClock().getEpochMicros() - transaction.getTimestamp() >= getLatencyThresholdUs();
+    }
+
+    private long getLatencyThresholdUs() {
+        return coreConfiguration.getTailSamplingLatencyThreshold().getMillis() * 1000;
+    }
+
+    private static long estimateSize(Span span) {
+        long size = SPAN_BASE_SIZE + span.getNameForSerialization().length() * 2L;
+        List<StackFrame> stackFrames = span.getStackFrames();
+        if (stackFrames != null) {
+            size += stackFrames.size() * STACK_FRAME_SIZE;
+        } else if (span.getStacktrace() != null) {
+            size += span.getStacktrace().getStackTrace().length * STACK_FRAME_SIZE;
+        }
+        return size;
+    }
+
+    /**
+     * The spans of a single trace which wait for the tail sampling decision.
+     */
+    public static class SpanBuffer implements Recyclable {
+
+        private final List<Span> spans = new ArrayList<>();
+        private long estimatedSize;
+        /**
+         * The transaction this buffer is attached to, read without holding its monitor when evicting other traces
+         */
+        @Nullable
+        private volatile Transaction transaction;
+
+        void add(Span span, long size) {
+            spans.add(span);
+            estimatedSize += size;
+        }
+
+        @Override
+        public void resetState() {
+            spans.clear();
+            estimatedSize = 0;
+            transaction = null;
+        }
+    }
+}
@@ -29,6 +29,12 @@ public class TraceState implements Recyclable {
 
     private final List<String> tracestate;
 
+    /**
+     * The joined value of {@link #tracestate}, computed on first use and shared with child contexts via {@link #copyFrom(TraceState)}
+     */
+    @Nullable
+    private String textHeader;
+
     /**
      * sample rate, {@link Double#NaN} if unknown or not set
      */
@@ -49,6 +55,7 @@ public class TraceState implements Recyclable {
             //noinspection UseBulkOperation
             tracestate.add(other.tracestate.get(i));
         }
+        textHeader = other.textHeader;
         rewriteBuffer.setLength(0);
     }
 
@@ -57,6 +64,7 @@ public class TraceState implements Recyclable {
     }
 
     public void addTextHeader(String headerValue) {
+        textHeader = null;
         int vendorStart = headerValue.indexOf(VENDOR_PREFIX);
 
         if (vendorStart < 0) {
@@ -94,16 +102,10 @@ public class TraceState implements Recyclable {
             }
         }
 
-        String headerValueString = headerValue.substring(valueStart, valueEnd);
-        double value = Double.NaN;
-        try {
-            value = Double.parseDouble(headerValueString);
-        } catch (NumberFormatException e) {
-            // silently ignored
-        }
+        double value = parseSampleRate(headerValue, valueStart, valueEnd);
 
         if (Double.isNaN(value) || value < 0 || value > 1) {
-            log.warn("invalid sample rate header {}", headerValueString);
+            log.warn("invalid sample rate header {}", headerValue);
             headerValue = rewriteRemoveInvalidHeader(headerValue, vendorStart, vendorEnd);
         } else {
             if (!Double.isNaN(sampleRate)) {
@@ -129,6 +131,43 @@ public class TraceState implements Recyclable {
 
     }
 
+    /**
+     * Parses the sample rate without creating an intermediate String for the common {@code d[.ddd]} format.
+     * Other formats, such as exponents, fall back to {@link Double#parseDouble(String)}.
+     *
+     * @return the parsed value or {@link Double#NaN} if the value is not a valid number
+     */
+    static double parseSampleRate(String headerValue, int start, int end) {
+        long digits = 0;
+        long divisor = 1;
+        boolean dot = false;
+        int digitCount = 0;
+        boolean simpleFormat = start < end;
+        for (int i = start; i < end && simpleFormat; i++) {
+            char c = headerValue.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = digits * 10 + (c - '0');
+                if (dot) {
+                    divisor *= 10;
+                }
+                // up to 15 digits, both numbers are exactly representable as double and the division is correctly rounded
+                simpleFormat = ++digitCount <= 15;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                simpleFormat = false;
+            }
+        }
+        if (simpleFormat && digitCount > 0) {
+            return (double) digits / divisor;
+        }
+        try {
+            return Double.parseDouble(headerValue.substring(start, end));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
     private String rewriteRoundedHeader(String fullHeader, int valueStart, int valueEnd, double rounded) {
         // we don't minimize allocation as re-writing should be an exception
         rewriteBuffer.setLength(0);
@@ -163,6 +202,7 @@ public class TraceState implements Recyclable {
 
         sampleRate = rate;
         tracestate.add(headerValue);
+        textHeader = null;
     }
 
     /**
@@ -190,9 +230,12 @@ public class TraceState implements Recyclable {
     public String toTextHeader() {
         if (tracestate.isEmpty()) {
             return null;
-        } else {
-            return TextTracestateAppender.INSTANCE.join(tracestate, sizeLimit);
         }
+        String header = textHeader;
+        if (header == null) {
+            header = textHeader = TextTracestateAppender.INSTANCE.join(tracestate, sizeLimit);
+        }
+        return header;
     }
 
     @Override
@@ -201,6 +244,7 @@ public class TraceState implements Recyclable {
         sizeLimit = DEFAULT_SIZE_LIMIT;
         rewriteBuffer.setLength(0);
         tracestate.clear();
+        textHeader = null;
     }
 
     public void setSizeLimit(int limit) {
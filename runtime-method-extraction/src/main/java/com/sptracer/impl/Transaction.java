@@ -1,11 +1,12 @@
 package com.sptracer.impl;
 
-import com.codahale.metrics.MetricRegistry;
 import com.sptracer.TraceContext;
 import com.sptracer.configuration.CoreConfiguration;
 import com.sptracer.metrics.Labels;
+import com.sptracer.metrics.MetricRegistry;
 import com.sptracer.metrics.Timer;
 import com.sptracer.util.KeyListConcurrentHashMap;
+import org.HdrHistogram.WriterReaderPhaser;
 
 import javax.annotation.Nullable;
 import java.util.List;
@@ -31,6 +32,7 @@ public class Transaction extends AbstractSpan<Transaction> {
      */
     private final TransactionContext context = new TransactionContext();
     private final SpanCount spanCount = new SpanCount();
+    private final DroppedSpanStats droppedSpanStats = new DroppedSpanStats();
     /**
      * type: subtype: timer
      * <p>
@@ -72,6 +74,14 @@ public class Transaction extends AbstractSpan<Transaction> {
     @Nullable
     private String frameworkVersion;
 
+    /**
+     * Guarded by the monitor of this transaction, see {@link TailSamplingBuffer}
+     */
+    private TailSamplingBuffer.Decision tailSamplingDecision = TailSamplingBuffer.Decision.UNDECIDED;
+
+    @Nullable
+    private TailSamplingBuffer.SpanBuffer tailSamplingBuffer;
+
     @Override
     public Transaction getTransaction() {
         return this;
@@ -223,6 +233,10 @@ public class Transaction extends AbstractSpan<Transaction> {
         return spanCount;
     }
 
+    public DroppedSpanStats getDroppedSpanStats() {
+        return droppedSpanStats;
+    }
+
     boolean isSpanLimitReached() {
         return getSpanCount().isSpanLimitReached(maxSpans);
     }
@@ -237,14 +251,34 @@ public class Transaction extends AbstractSpan<Transaction> {
         context.resetState();
         result = null;
         spanCount.resetState();
+        droppedSpanStats.resetState();
         type = null;
         noop = false;
         maxSpans = 0;
         frameworkName = null;
         frameworkVersion = null;
+        tailSamplingDecision = TailSamplingBuffer.Decision.UNDECIDED;
+        tailSamplingBuffer = null;
         // don't clear timerBySpanTypeAndSubtype map (see field-level javadoc)
     }
 
+    TailSamplingBuffer.Decision getTailSamplingDecision() {
+        return tailSamplingDecision;
+    }
+
+    void setTailSamplingDecision(TailSamplingBuffer.Decision tailSamplingDecision) {
+        this.tailSamplingDecision = tailSamplingDecision;
+    }
+
+    @Nullable
+    TailSamplingBuffer.SpanBuffer getTailSamplingBuffer() {
+        return tailSamplingBuffer;
+    }
+
+    void setTailSamplingBuffer(@Nullable TailSamplingBuffer.SpanBuffer tailSamplingBuffer) {
+        this.tailSamplingBuffer = tailSamplingBuffer;
+    }
+
     public boolean isNoop() {
         return noop;
     }
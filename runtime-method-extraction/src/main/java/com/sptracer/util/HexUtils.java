@@ -3,9 +3,28 @@ package com.sptracer.util;
 
 import com.dslplatform.json.JsonWriter;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 public class HexUtils {
 
     private final static char[] hexArray = "0123456789abcdef".toCharArray();
+    private final static byte[] hexBytes = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * Maps ASCII chars to their hex value, or {@code -1} if the char is not a hex digit
+     */
+    private final static byte[] hexValues = new byte[128];
+
+    static {
+        Arrays.fill(hexValues, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            hexValues['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            hexValues['a' + i] = (byte) (10 + i);
+            hexValues['A' + i] = (byte) (10 + i);
+        }
+    }
 
     private HexUtils() {
         // only static utility methods, don't instantiate
@@ -34,8 +53,8 @@ public class HexUtils {
 
     private static void writeHexByte(JsonWriter jw, byte b) {
         int v = b & 0xFF;
-        jw.writeByte((byte) hexArray[v >>> 4]);
-        jw.writeByte((byte) hexArray[v & 0x0F]);
+        jw.writeByte(hexBytes[v >>> 4]);
+        jw.writeByte(hexBytes[v & 0x0F]);
     }
 
     public static void writeBytesAsHex(byte[] bytes, StringBuilder sb) {
@@ -54,7 +73,7 @@ public class HexUtils {
         sb.append(hexArray[v & 0x0F]);
     }
 
-    public static byte getNextByte(String hexEncodedString, int offset) {
+    public static byte getNextByte(CharSequence hexEncodedString, int offset) {
         final int hi = hexCharToBinary(hexEncodedString.charAt(offset));
         final int lo = hexCharToBinary(hexEncodedString.charAt(offset + 1));
         if (hi == -1 || lo == -1) {
@@ -64,16 +83,7 @@ public class HexUtils {
     }
 
     private static int hexCharToBinary(char ch) {
-        if ('0' <= ch && ch <= '9') {
-            return ch - '0';
-        }
-        if ('A' <= ch && ch <= 'F') {
-            return ch - 'A' + 10;
-        }
-        if ('a' <= ch && ch <= 'f') {
-            return ch - 'a' + 10;
-        }
-        return -1;
+        return ch < hexValues.length ? hexValues[ch] : -1;
     }
 
     public static void nextBytes(String hexEncodedString, int offset, byte[] bytes) {
@@ -96,13 +106,67 @@ public class HexUtils {
     }
 
     public static void writeAsHex(long l, JsonWriter jw) {
-        writeHexByte(jw, (byte) (l >> 56));
-        writeHexByte(jw, (byte) (l >> 48));
-        writeHexByte(jw, (byte) (l >> 40));
-        writeHexByte(jw, (byte) (l >> 32));
-        writeHexByte(jw, (byte) (l >> 24));
-        writeHexByte(jw, (byte) (l >> 16));
-        writeHexByte(jw, (byte) (l >> 8));
-        writeHexByte(jw, (byte) l);
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            jw.writeByte(hexBytes[(int) (l >>> shift) & 0x0F]);
+        }
+    }
+
+    public static void writeAsHex(long l, StringBuilder sb) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            sb.append(hexArray[(int) (l >>> shift) & 0x0F]);
+        }
+    }
+
+    /**
+     * Writes the 16 char hex representation of the provided {@code long} as ASCII bytes into the buffer
+     *
+     * @return the offset after the last written byte
+     */
+    public static int writeAsHex(long l, byte[] buffer, int offset) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            buffer[offset++] = hexBytes[(int) (l >>> shift) & 0x0F];
+        }
+        return offset;
+    }
+
+    /**
+     * Decodes 16 hex chars, starting from the offset, into a {@code long} without allocating intermediate objects
+     *
+     * @throws IllegalArgumentException if the chars are not hex encoded
+     */
+    public static long hexToLong(CharSequence hexEncoded, int offset) {
+        if (hexEncoded.length() < offset + 16) {
+            throw new IllegalArgumentException(String.format("Can't read 8 bytes from %s with offset %d", hexEncoded, offset));
+        }
+        long l = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            int v = hexCharToBinary(hexEncoded.charAt(i));
+            if (v == -1) {
+                throw new IllegalArgumentException("Not a hex encoded string: " + hexEncoded + " at offset " + i);
+            }
+            l = (l << 4) | v;
+        }
+        return l;
+    }
+
+    /**
+     * Decodes 16 hex encoded ASCII bytes, starting from the offset, into a {@code long}
+     *
+     * @throws IllegalArgumentException if the bytes are not hex encoded
+     */
+    public static long hexToLong(byte[] hexEncoded, int offset) {
+        if (hexEncoded.length < offset + 16) {
+            throw new IllegalArgumentException(String.format("Can't read 8 bytes from a buffer of length %d with offset %d", hexEncoded.length, offset));
+        }
+        long l = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            byte b = hexEncoded[i];
+            int v = b >= 0 ? hexValues[b] : -1;
+            if (v == -1) {
+                throw new IllegalArgumentException("Not a hex encoded byte at offset " + i);
+            }
+            l = (l << 4) | v;
+        }
+        return l;
     }
 }
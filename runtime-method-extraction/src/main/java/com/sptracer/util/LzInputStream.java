@@ -0,0 +1,162 @@
+package com.sptracer.util;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses a stream which has been compressed by a {@link LzOutputStream},
+ * for example within an intake server which receives requests with the {@link LzOutputStream#CONTENT_ENCODING}.
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+public class LzInputStream extends FilterInputStream {
+
+    private final byte[] block = new byte[LzOutputStream.BLOCK_SIZE];
+    private final byte[] compressed = new byte[LzOutputStream.maxCompressedLength(LzOutputStream.BLOCK_SIZE)];
+    private int position;
+    private int limit;
+
+    public LzInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !readBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == limit && !readBlock()) {
+            return -1;
+        }
+        final int n = Math.min(len, limit - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && (position < limit || readBlock())) {
+            final int step = (int) Math.min(n - skipped, limit - position);
+            position += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return {@code false} if the end of the stream has been reached
+     */
+    private boolean readBlock() throws IOException {
+        final int first = in.read();
+        if (first < 0) {
+            return false;
+        }
+        final int length = first << 24 | readByte() << 16 | readByte() << 8 | readByte();
+        final int storedLength = readInt();
+        if (length <= 0 || length > block.length || storedLength <= 0 || storedLength > length) {
+            throw new IOException("Invalid block header");
+        }
+        if (storedLength == length) {
+            readFully(block, length);
+        } else {
+            readFully(compressed, storedLength);
+            decompress(compressed, storedLength, block, length);
+        }
+        position = 0;
+        limit = length;
+        return true;
+    }
+
+    private int readInt() throws IOException {
+        return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+    }
+
+    private int readByte() throws IOException {
+        final int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        for (int read = 0; read < length; ) {
+            final int n = in.read(buffer, read, length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+    }
+
+    static void decompress(byte[] src, int srcLength, byte[] dst, int dstLength) throws IOException {
+        try {
+            int srcPosition = 0;
+            int dstPosition = 0;
+            while (srcPosition < srcLength) {
+                final int token = src[srcPosition++] & 0xFF;
+                int literalsLength = token >>> 4;
+                if (literalsLength == 15) {
+                    int b;
+                    do {
+                        b = src[srcPosition++] & 0xFF;
+                        literalsLength += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, srcPosition, dst, dstPosition, literalsLength);
+                srcPosition += literalsLength;
+                dstPosition += literalsLength;
+                if (srcPosition == srcLength) {
+                    // the last sequence only consists of literals
+                    break;
+                }
+                final int offset = (src[srcPosition++] & 0xFF) | (src[srcPosition++] & 0xFF) << 8;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[srcPosition++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += LzOutputStream.MIN_MATCH;
+                int reference = dstPosition - offset;
+                if (offset == 0 || reference < 0 || dstPosition + matchLength > dstLength) {
+                    throw new IOException("Invalid back reference");
+                }
+                // byte by byte, as the match may overlap with the bytes it produces
+                for (int i = 0; i < matchLength; i++) {
+                    dst[dstPosition++] = dst[reference++];
+                }
+            }
+            if (dstPosition != dstLength) {
+                throw new IOException("Unexpected block length");
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt block", e);
+        }
+    }
+}
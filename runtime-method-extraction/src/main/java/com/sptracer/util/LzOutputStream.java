@@ -0,0 +1,197 @@
+package com.sptracer.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compresses a stream with a fast LZ77 codec, which trades a lower compression ratio for considerably less CPU than deflate.
+ * <p>
+ * The data is split into blocks of up to {@link #BLOCK_SIZE} bytes, each of which is compressed on its own:
+ * </p>
+ * <pre>
+ * block: uncompressed length (4) | stored length (4) | data (stored length)
+ * </pre>
+ * <p>
+ * The lengths are big endian.
+ * If the stored length equals the uncompressed length, the data is stored as is,
+ * otherwise it's a sequence of literals and back references in the LZ4 block format.
+ * See {@link LzInputStream} for decompression.
+ * </p>
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+public class LzOutputStream extends FilterOutputStream {
+
+    public static final String CONTENT_ENCODING = "x-lz-block";
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final int MIN_MATCH = 4;
+    /**
+     * The last literals of a block are never part of a match, which simplifies decompression
+     */
+    private static final int LAST_LITERALS = 5;
+    /**
+     * Matches don't start within the last bytes of a block
+     */
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] compressed = new byte[maxCompressedLength(BLOCK_SIZE)];
+    private final int[] hashTable = new int[1 << HASH_LOG];
+    private int position;
+    private boolean closed;
+
+    public LzOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (position == BLOCK_SIZE) {
+            writeBlock();
+        }
+        block[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (position == BLOCK_SIZE) {
+                writeBlock();
+            }
+            final int n = Math.min(len, BLOCK_SIZE - position);
+            System.arraycopy(b, off, block, position, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                writeBlock();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (position == 0) {
+            return;
+        }
+        final int compressedLength = compress(block, position, compressed, hashTable);
+        writeInt(position);
+        if (compressedLength < position) {
+            writeInt(compressedLength);
+            out.write(compressed, 0, compressedLength);
+        } else {
+            writeInt(position);
+            out.write(block, 0, position);
+        }
+        position = 0;
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Greedily replaces sequences of at least {@link #MIN_MATCH} bytes which have occurred before by back references.
+     * Previous occurrences are looked up in a hash table of the positions of 4 byte sequences.
+     *
+     * @return the length of the compressed data
+     */
+    static int compress(byte[] src, int length, byte[] dst, int[] hashTable) {
+        Arrays.fill(hashTable, -1);
+        int anchor = 0;
+        int dstPosition = 0;
+        final int matchLimit = length - LAST_LITERALS;
+        final int matchFindLimit = length - MATCH_FIND_LIMIT;
+        int position = 0;
+        while (position < matchFindLimit) {
+            final int sequence = readInt(src, position);
+            final int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            int reference = hashTable[hash];
+            hashTable[hash] = position;
+            if (reference < 0 || position - reference > MAX_OFFSET || readInt(src, reference) != sequence) {
+                position++;
+                continue;
+            }
+            int start = position;
+            while (start > anchor && reference > 0 && src[start - 1] == src[reference - 1]) {
+                start--;
+                reference--;
+            }
+            int matchLength = MIN_MATCH + position - start;
+            while (start + matchLength < matchLimit && src[reference + matchLength] == src[start + matchLength]) {
+                matchLength++;
+            }
+            dstPosition = writeSequence(src, anchor, start - anchor, start - reference, matchLength, dst, dstPosition);
+            position = start + matchLength;
+            anchor = position;
+        }
+        return writeLastLiterals(src, anchor, length - anchor, dst, dstPosition);
+    }
+
+    private static int writeSequence(byte[] src, int literalsStart, int literalsLength, int offset, int matchLength,
+                                     byte[] dst, int dstPosition) {
+        final int matchLengthCode = matchLength - MIN_MATCH;
+        dst[dstPosition++] = (byte) ((Math.min(literalsLength, 15) << 4) | Math.min(matchLengthCode, 15));
+        dstPosition = writeLength(literalsLength, dst, dstPosition);
+        System.arraycopy(src, literalsStart, dst, dstPosition, literalsLength);
+        dstPosition += literalsLength;
+        dst[dstPosition++] = (byte) offset;
+        dst[dstPosition++] = (byte) (offset >>> 8);
+        return writeLength(matchLengthCode, dst, dstPosition);
+    }
+
+    private static int writeLastLiterals(byte[] src, int literalsStart, int literalsLength, byte[] dst, int dstPosition) {
+        dst[dstPosition++] = (byte) (Math.min(literalsLength, 15) << 4);
+        dstPosition = writeLength(literalsLength, dst, dstPosition);
+        System.arraycopy(src, literalsStart, dst, dstPosition, literalsLength);
+        return dstPosition + literalsLength;
+    }
+
+    /**
+     * Lengths of 15 and more don't fit into the 4 bits of the token and are continued in additional bytes
+     */
+    private static int writeLength(int length, byte[] dst, int dstPosition) {
+        if (length >= 15) {
+            length -= 15;
+            while (length >= 255) {
+                dst[dstPosition++] = (byte) 255;
+                length -= 255;
+            }
+            dst[dstPosition++] = (byte) length;
+        }
+        return dstPosition;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF)
+            | (bytes[offset + 1] & 0xFF) << 8
+            | (bytes[offset + 2] & 0xFF) << 16
+            | (bytes[offset + 3] & 0xFF) << 24;
+    }
+}
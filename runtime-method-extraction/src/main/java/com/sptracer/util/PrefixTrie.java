@@ -0,0 +1,81 @@
+package com.sptracer.util;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable set of prefixes, which determines whether a string starts with any of them
+ * in a single pass over the string, regardless of the number of prefixes.
+ */
+public class PrefixTrie {
+
+    private final Node root;
+
+    public PrefixTrie(Collection<String> prefixes) {
+        root = new Node();
+        for (String prefix : prefixes) {
+            Node node = root;
+            for (int i = 0; i < prefix.length() && !node.terminal; i++) {
+                node = node.getOrAddChild(prefix.charAt(i));
+            }
+            // longer prefixes are redundant if a shorter one matches already
+            node.terminal = true;
+            node.keys = new char[0];
+            node.children = new Node[0];
+        }
+    }
+
+    /**
+     * @return whether the string starts with any of the prefixes, analogous to {@link String#startsWith(String)}
+     */
+    public boolean matches(String s) {
+        Node node = root;
+        for (int i = 0; !node.terminal; i++) {
+            if (i == s.length()) {
+                return false;
+            }
+            node = node.getChild(s.charAt(i));
+            if (node == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return !root.terminal && root.keys.length == 0;
+    }
+
+    /**
+     * The children are held in arrays which are scanned linearly, as there are usually only a few of them
+     */
+    private static class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private boolean terminal;
+
+        @Nullable
+        private Node getChild(char c) {
+            final char[] keys = this.keys;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private Node getOrAddChild(char c) {
+            Node child = getChild(c);
+            if (child == null) {
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                keys[keys.length - 1] = c;
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+}
@@ -99,6 +99,8 @@ public class SslUtils {
             sslContext = SSLContext.getInstance("TLS");
         }
         sslContext.init(null, trustAllCerts, new java.security.SecureRandom());
+        // the socket factories are shared by all connections, so that TLS sessions can be resumed from the JDK's session cache
+        // instead of doing a full handshake
         return sslContext.getSocketFactory();
     }
 